@@ -0,0 +1,246 @@
+// File: BankingBenchmarks.java (JMH benchmarks for the banking core)
+package com.example.banking;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BankingBenchmarks {
+
+    private static final BigDecimal ONE_CENT = new BigDecimal("0.01");
+    // Large enough that random one-cent transfers never run an account dry
+    private static final BigDecimal OPENING_BALANCE = new BigDecimal("1000000000.00");
+
+    static OnlineBankingApplication open(Path dataDir, OnlineBankingApplication.TransactionLog.Durability durability) {
+        return new OnlineBankingApplication(new ObjectMapper(), new SimpleMeterRegistry(), dataDir.toString(), false, durability, 65536,
+                1_000_000, Duration.ofHours(24), Duration.ofHours(1), "", "", "", "", "", Duration.ofSeconds(5));
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    // Writes a CSV snapshot directly, which is far faster than creating accounts one by one;
+    // the application migrates it to the binary format the first time it opens the directory
+    static void writeSnapshot(Path dataDir, int accounts) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(dataDir.resolve("accounts.txt"), StandardCharsets.UTF_8))) {
+            writer.println("#seq=0");
+            for (int id = 1; id <= accounts; id++) {
+                writer.println(id + ",Account " + id + "," + OPENING_BALANCE.toPlainString());
+            }
+        }
+    }
+
+    // Fewer accounts means more transfers collide on the same lock stripes
+    @State(Scope.Benchmark)
+    public static class Bank {
+        @Param({"2", "64", "100000"})
+        int accounts;
+
+        // A String because generated JMH code cannot name the package-private Durability type
+        @Param({"ASYNC", "FSYNC"})
+        String durability;
+
+        Path dataDir;
+        OnlineBankingApplication app;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dataDir = Files.createTempDirectory("bank-bench");
+            writeSnapshot(dataDir, accounts);
+            app = open(dataDir, OnlineBankingApplication.TransactionLog.Durability.valueOf(durability));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            app.close();
+            deleteRecursively(dataDir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Batch {
+        @Param({"1000"})
+        int batchSize;
+
+        List<OnlineBankingApplication.TransferRequest> transfers;
+
+        @Setup(Level.Trial)
+        public void setUp(Bank bank) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            transfers = new ArrayList<>(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                long from = 1 + random.nextInt(bank.accounts);
+                long to = 1 + random.nextInt(bank.accounts);
+                transfers.add(new OnlineBankingApplication.TransferRequest(from, to, ONE_CENT));
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public String transfer(Bank bank) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long from = 1 + random.nextInt(bank.accounts);
+        long to = 1 + random.nextInt(bank.accounts);
+        return bank.app.transfer(from, to, ONE_CENT);
+    }
+
+    // Tail latency with many transfers in flight: JMH reports p50 to p99.99 and the maximum, for
+    // FSYNC's shared fsync against ASYNC's; run with -t to try other numbers of concurrent callers
+    @Benchmark
+    @Threads(64)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String transferLatency(Bank bank) {
+        return transfer(bank);
+    }
+
+    @Benchmark
+    @Threads(8)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public List<String> transferBatch(Bank bank, Batch batch) {
+        return bank.app.transferBatch(batch.transfers);
+    }
+
+    // One keyed transfer per thread, made once so that every benchmark call is a retry of it
+    @State(Scope.Thread)
+    public static class Retry {
+        String key;
+        long from;
+        long to;
+
+        @Setup(Level.Trial)
+        public void setUp(Bank bank) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            key = UUID.randomUUID().toString();
+            from = 1 + random.nextInt(bank.accounts);
+            to = 1 + random.nextInt(bank.accounts);
+            bank.app.transfer(from, to, ONE_CENT, key);
+        }
+    }
+
+    // A client retrying after a timeout: answered from the idempotency cache without touching an account
+    @Benchmark
+    @Threads(8)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public String transferRetry(Bank bank, Retry retry) {
+        return bank.app.transfer(retry.from, retry.to, ONE_CENT, retry.key);
+    }
+
+    // Dashboard traffic: readers polling accounts and pages of the listing while transfers run
+    @Benchmark
+    @Group("dashboard")
+    @GroupThreads(6)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public byte[] dashboardGet(Bank bank) {
+        return bank.app.getAccountJson(1L + ThreadLocalRandom.current().nextInt(bank.accounts)).getBody();
+    }
+
+    @Benchmark
+    @Group("dashboard")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public List<OnlineBankingApplication.Account> dashboardList(Bank bank) {
+        return bank.app.listAccounts(null, 100);
+    }
+
+    @Benchmark
+    @Group("dashboard")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public String dashboardTransfer(Bank bank) {
+        return transfer(bank);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        @Param({"10000", "1000000", "10000000"})
+        int accounts;
+
+        Path dataDir;
+        OnlineBankingApplication app;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dataDir = Files.createTempDirectory("bank-bench");
+            writeSnapshot(dataDir, accounts);
+            app = open(dataDir, OnlineBankingApplication.TransactionLog.Durability.ASYNC);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            app.close();
+            deleteRecursively(dataDir);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public void saveAccountsToFile(Store store) {
+        store.app.saveAccountsToFile();
+    }
+
+    // A data directory holding only a binary snapshot, with no application left open on it
+    @State(Scope.Benchmark)
+    public static class SavedStore {
+        @Param({"10000", "1000000", "10000000"})
+        int accounts;
+
+        Path dataDir;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dataDir = Files.createTempDirectory("bank-bench");
+            writeSnapshot(dataDir, accounts);
+            open(dataDir, OnlineBankingApplication.TransactionLog.Durability.ASYNC).close();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            deleteRecursively(dataDir);
+        }
+    }
+
+    // Startup cost: maps and decodes the binary snapshot and replays the (empty) log tail
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public int loadAccountsFromFile(SavedStore store) throws IOException {
+        OnlineBankingApplication loaded = open(store.dataDir, OnlineBankingApplication.TransactionLog.Durability.ASYNC);
+        try {
+            return loaded.listAccounts(null, 1).size();
+        } finally {
+            loaded.close();
+        }
+    }
+}
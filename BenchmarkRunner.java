@@ -0,0 +1,29 @@
+// File: BenchmarkRunner.java (JMH entry point writing JSON results per commit)
+package com.example.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+
+        // Unless the caller chose a result file, write JSON named after the commit under test
+        if (!commandLine.getResult().hasValue()) {
+            String commit = System.getProperty("benchmark.commit", "local");
+            Path result = Paths.get("jmh-results", "jmh-" + commit + ".json");
+            Files.createDirectories(result.getParent());
+            options.resultFormat(ResultFormatType.JSON).result(result.toString());
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,526 @@
+// File: ConsoleBenchmarks.java (JMH benchmarks for the calculator and contact manager)
+package com.example.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The console programs are compiled into the unnamed package, which Java code in a named
+ * package cannot reference and JMH does not accept for benchmark classes. Their methods
+ * are therefore reached through method handles held in static final fields, which the
+ * JIT treats as constants and inlines like a direct call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConsoleBenchmarks {
+
+    private static final MethodType EXECUTE = MethodType.methodType(double.class, double[].class);
+    private static final MethodType VALIDATE = MethodType.methodType(void.class, String.class);
+    private static final MethodType EXECUTE_BATCH = MethodType.methodType(int.class,
+            double[].class, double[].class, double[].class, byte[].class, int.class, int.class);
+
+    private static final MethodHandle GET_OPERATION = factory();
+    private static final MethodHandle ADDITION = operation("Addition");
+    private static final MethodHandle SUBTRACTION = operation("Subtraction");
+    private static final MethodHandle MULTIPLICATION = operation("Multiplication");
+    private static final MethodHandle DIVISION = operation("Division");
+    private static final MethodHandle POWER = operation("Power");
+    private static final MethodHandle SQUARE_ROOT = operation("SquareRoot");
+    private static final MethodHandle LOGARITHM = operation("Logarithm");
+    private static final MethodHandle MULTIPLICATION_DECIMAL = decimalOperation("Multiplication");
+    private static final MethodHandle DIVISION_DECIMAL = decimalOperation("Division");
+    private static final MethodHandle MULTIPLICATION_FIXED = fixedOperation("Multiplication");
+    private static final MethodHandle DIVISION_FIXED = fixedOperation("Division");
+    private static final MethodHandle NEW_FIXED_POINT = fixedPoint();
+    private static final MethodHandle PARSE_FIXED = fixedParse();
+    private static final MethodHandle DIVISION_BATCH = batchOperation("Division");
+    private static final MethodHandle SQUARE_ROOT_BATCH = batchOperation("SquareRoot");
+
+    private static final MethodHandle PARSE_EXPRESSION = expression("ExpressionParser", "parse");
+    private static final MethodHandle NEW_EXPRESSION_CACHE = expressionCache();
+    private static final MethodHandle COMPILE_EXPRESSION = expression("ExpressionCache", "compile");
+    private static final MethodHandle EVALUATE_EXPRESSION = expression("CompiledExpression", "evaluate");
+    private static final MethodHandle EVALUATE_EXPRESSION_BATCH = expression("CompiledExpression", "evaluateBatch");
+
+    private static final MethodHandle VALIDATE_NAME = contactValidator("validateName");
+    private static final MethodHandle VALIDATE_EMAIL = contactValidator("validateEmail");
+
+    private static final MethodHandle NEW_REPOSITORY = repository("<init>", MethodType.methodType(void.class));
+    private static final MethodHandle ADD_CONTACT = repository("add", MethodType.methodType(Object.class, String.class, String.class, String.class));
+    private static final MethodHandle FIND_BY_EMAIL = repository("findByEmail", MethodType.methodType(List.class, String.class));
+    private static final MethodHandle FIND_BY_NAME_PREFIX = repository("findByNamePrefix", MethodType.methodType(List.class, String.class, int.class));
+    private static final MethodHandle SEARCH = repository("search", MethodType.methodType(List.class, String.class, int.class));
+
+    private static MethodHandles.Lookup lookupIn(String className) throws ReflectiveOperationException {
+        return MethodHandles.privateLookupIn(Class.forName(className), MethodHandles.lookup());
+    }
+
+    // OperationFactory.getOperation(String) as (String)Object
+    private static MethodHandle factory() {
+        try {
+            Class<?> factory = Class.forName("OperationFactory");
+            Class<?> operation = Class.forName("Operation");
+            return lookupIn("OperationFactory")
+                    .findStatic(factory, "getOperation", MethodType.methodType(operation, String.class))
+                    .asType(MethodType.methodType(Object.class, String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // execute(double[]) bound to a single instance of the named Operation
+    private static MethodHandle operation(String className) {
+        try {
+            Class<?> type = Class.forName(className);
+            MethodHandles.Lookup lookup = lookupIn(className);
+            Object instance = lookup.findConstructor(type, MethodType.methodType(void.class)).invoke();
+            return lookup.findVirtual(type, "execute", EXECUTE).bindTo(instance);
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // ExpressionParser.parse as (String)Object; ExpressionCache.compile and CompiledExpression.evaluate
+    // as instance methods taking the receiver as Object
+    private static MethodHandle expression(String className, String methodName) {
+        try {
+            Class<?> type = Class.forName(className);
+            Class<?> compiled = Class.forName("CompiledExpression");
+            MethodHandles.Lookup lookup = lookupIn(className);
+            switch (methodName) {
+                case "parse":
+                    return lookup.findStatic(type, methodName, MethodType.methodType(compiled, String.class))
+                            .asType(MethodType.methodType(Object.class, String.class));
+                case "compile":
+                    return lookup.findVirtual(type, methodName, MethodType.methodType(compiled, String.class))
+                            .asType(MethodType.methodType(Object.class, Object.class, String.class));
+                case "evaluateBatch":
+                    MethodType batch = MethodType.methodType(int.class,
+                            double[][].class, double[].class, byte[].class, int.class, int.class);
+                    return lookup.findVirtual(type, methodName, batch).asType(batch.insertParameterTypes(0, Object.class));
+                default:
+                    return lookup.findVirtual(type, methodName, EXECUTE)
+                            .asType(MethodType.methodType(double.class, Object.class, double[].class));
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle expressionCache() {
+        try {
+            Class<?> type = Class.forName("ExpressionCache");
+            return lookupIn("ExpressionCache").findConstructor(type, MethodType.methodType(void.class, int.class))
+                    .asType(MethodType.methodType(Object.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // executeBatch(double[], double[], double[], byte[], int, int) bound to a single instance
+    private static MethodHandle batchOperation(String className) {
+        try {
+            Class<?> type = Class.forName(className);
+            MethodHandles.Lookup lookup = lookupIn(className);
+            Object instance = lookup.findConstructor(type, MethodType.methodType(void.class)).invoke();
+            return lookup.findVirtual(type, "executeBatch", EXECUTE_BATCH).bindTo(instance);
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // execute(BigDecimal[], MathContext) bound to a single instance
+    private static MethodHandle decimalOperation(String className) {
+        try {
+            Class<?> type = Class.forName(className);
+            MethodHandles.Lookup lookup = lookupIn(className);
+            Object instance = lookup.findConstructor(type, MethodType.methodType(void.class)).invoke();
+            return lookup.findVirtual(type, "execute",
+                    MethodType.methodType(BigDecimal.class, BigDecimal[].class, MathContext.class)).bindTo(instance);
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // executeFixed(long[], FixedPoint) bound to a single instance, as (long[], Object)long
+    private static MethodHandle fixedOperation(String className) {
+        try {
+            Class<?> type = Class.forName(className);
+            MethodHandles.Lookup lookup = lookupIn(className);
+            Object instance = lookup.findConstructor(type, MethodType.methodType(void.class)).invoke();
+            return lookup.findVirtual(type, "executeFixed",
+                            MethodType.methodType(long.class, long[].class, Class.forName("FixedPoint")))
+                    .bindTo(instance)
+                    .asType(MethodType.methodType(long.class, long[].class, Object.class));
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle fixedPoint() {
+        try {
+            Class<?> type = Class.forName("FixedPoint");
+            return lookupIn("FixedPoint").findConstructor(type, MethodType.methodType(void.class, int.class))
+                    .asType(MethodType.methodType(Object.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle fixedParse() {
+        try {
+            Class<?> type = Class.forName("FixedPoint");
+            return lookupIn("FixedPoint").findVirtual(type, "parse", MethodType.methodType(long.class, String.class))
+                    .asType(MethodType.methodType(long.class, Object.class, String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle contactValidator(String methodName) {
+        try {
+            Class<?> type = Class.forName("ContactManagementSystem");
+            return lookupIn("ContactManagementSystem").findStatic(type, methodName, VALIDATE);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // ContactRepository methods as (Object repository, ...) so they can be invoked exactly
+    private static MethodHandle repository(String methodName, MethodType erased) {
+        try {
+            Class<?> type = Class.forName("ContactRepository");
+            MethodHandles.Lookup lookup = lookupIn("ContactRepository");
+            if (methodName.equals("<init>")) {
+                return lookup.findConstructor(type, erased).asType(MethodType.methodType(Object.class));
+            }
+            MethodType declared = methodName.equals("add")
+                    ? erased.changeReturnType(Class.forName("Contact"))
+                    : erased;
+            return lookup.findVirtual(type, methodName, declared).asType(erased.insertParameterTypes(0, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final double[] pair = {1234.5678, 8.765};
+    private final double[] single = {1234.5678};
+
+    // A pricing-style formula with two variables, compiled once through the cache
+    @State(Scope.Thread)
+    public static class Formula {
+        static final String SOURCE = "principal * pow(1 + rate / 12, 12 * 5) - principal";
+
+        Object cache;
+        Object compiled;
+        final double[] values = {25_000, 0.045};
+
+        @Setup(Level.Trial)
+        public void setUp() throws Throwable {
+            cache = (Object) NEW_EXPRESSION_CACHE.invokeExact(256);
+            compiled = (Object) COMPILE_EXPRESSION.invokeExact(cache, SOURCE);
+        }
+    }
+
+    // Columnar operands; about 1 in 100 divisors is zero and 1 in 100 square-root operands negative
+    @State(Scope.Thread)
+    public static class Columns {
+        static final int ROWS = 65_536;
+
+        final double[] first = new double[ROWS];
+        final double[] second = new double[ROWS];
+        final double[][] formulaColumns = {first, second};
+        final double[] results = new double[ROWS];
+        final byte[] status = new byte[ROWS];
+        final double[] pair = new double[2];
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random random = new Random(42);
+            for (int i = 0; i < ROWS; i++) {
+                first[i] = random.nextInt(100) == 0 ? -1 : 1_000 + random.nextDouble() * 50_000;
+                second[i] = random.nextInt(100) == 0 ? 0 : random.nextDouble() * 0.1;
+            }
+        }
+    }
+
+    // Amounts and rates in each numeric backend's representation, for amount * rate / 12
+    @State(Scope.Thread)
+    public static class Amounts {
+        static final int COUNT = 1_024;
+
+        final double[] doubles = new double[COUNT * 2];
+        final BigDecimal[] decimals = new BigDecimal[COUNT * 2];
+        final long[] fixed = new long[COUNT * 2];
+        final double[] doublePair = new double[2];
+        final BigDecimal[] decimalPair = new BigDecimal[2];
+        final long[] fixedPair = new long[2];
+        final MathContext context = MathContext.DECIMAL128;
+        Object format;
+        long fixedTwelve;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Throwable {
+            Random random = new Random(42);
+            format = (Object) NEW_FIXED_POINT.invokeExact(4);
+            fixedTwelve = (long) PARSE_FIXED.invokeExact(format, "12");
+            for (int i = 0; i < COUNT * 2; i += 2) {
+                String amount = BigDecimal.valueOf(random.nextInt(10_000_000), 2).toPlainString();
+                String rate = BigDecimal.valueOf(100 + random.nextInt(900), 4).toPlainString();
+                doubles[i] = Double.parseDouble(amount);
+                doubles[i + 1] = Double.parseDouble(rate);
+                decimals[i] = new BigDecimal(amount);
+                decimals[i + 1] = new BigDecimal(rate);
+                fixed[i] = (long) PARSE_FIXED.invokeExact(format, amount);
+                fixed[i + 1] = (long) PARSE_FIXED.invokeExact(format, rate);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Emails {
+        @Param({"alice.smith@example.com", "not-an-email"})
+        String email;
+    }
+
+    // A directory of generated contacts with names built from random syllables, so trigrams spread like real names
+    @State(Scope.Benchmark)
+    public static class Directory {
+        private static final String[] SYLLABLES = {
+                "an", "bel", "cor", "da", "el", "fin", "gar", "ha", "is", "jo", "ka", "lin",
+                "mar", "no", "os", "pe", "quin", "ra", "sol", "ta", "ul", "vi", "wen", "ya", "zo"};
+
+        @Param({"10000", "1000000"})
+        int contacts;
+
+        Object repository;
+        String email;
+        String namePrefix;
+        String misspelledName;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Throwable {
+            Random random = new Random(42);
+            repository = (Object) NEW_REPOSITORY.invokeExact();
+            String target = null;
+            for (int i = 0; i < contacts; i++) {
+                String name = word(random, 2) + " " + word(random, 3);
+                if (i == contacts / 2) target = name;
+                Object contact = (Object) ADD_CONTACT.invokeExact(repository,
+                        name, "contact" + i + "@example.com", "555-" + (1_000_000 + random.nextInt(9_000_000)));
+            }
+            email = "contact" + contacts / 2 + "@example.com";
+            namePrefix = target.substring(0, 4);
+            // Drop one letter of the surname
+            int typo = target.indexOf(' ') + 2;
+            misspelledName = target.substring(0, typo) + target.substring(typo + 1);
+        }
+
+        private static String word(Random random, int syllables) {
+            StringBuilder word = new StringBuilder();
+            for (int i = 0; i < syllables; i++) {
+                word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            word.setCharAt(0, Character.toUpperCase(word.charAt(0)));
+            return word.toString();
+        }
+    }
+
+    @Benchmark
+    public Object getOperation() throws Throwable {
+        return (Object) GET_OPERATION.invokeExact("4");
+    }
+
+    @Benchmark
+    public double addition() throws Throwable {
+        return (double) ADDITION.invokeExact(pair);
+    }
+
+    @Benchmark
+    public double subtraction() throws Throwable {
+        return (double) SUBTRACTION.invokeExact(pair);
+    }
+
+    @Benchmark
+    public double multiplication() throws Throwable {
+        return (double) MULTIPLICATION.invokeExact(pair);
+    }
+
+    @Benchmark
+    public double division() throws Throwable {
+        return (double) DIVISION.invokeExact(pair);
+    }
+
+    @Benchmark
+    public double power() throws Throwable {
+        return (double) POWER.invokeExact(pair);
+    }
+
+    @Benchmark
+    public double squareRoot() throws Throwable {
+        return (double) SQUARE_ROOT.invokeExact(single);
+    }
+
+    @Benchmark
+    public double logarithm() throws Throwable {
+        return (double) LOGARITHM.invokeExact(single);
+    }
+
+    @Benchmark
+    public Object parseExpression() throws Throwable {
+        return (Object) PARSE_EXPRESSION.invokeExact(Formula.SOURCE);
+    }
+
+    // Cache lookup plus evaluation, as the console does for a repeated formula
+    @Benchmark
+    public double evaluateCachedExpression(Formula formula) throws Throwable {
+        Object compiled = (Object) COMPILE_EXPRESSION.invokeExact(formula.cache, Formula.SOURCE);
+        return (double) EVALUATE_EXPRESSION.invokeExact(compiled, formula.values);
+    }
+
+    @Benchmark
+    public double evaluateCompiledExpression(Formula formula) throws Throwable {
+        return (double) EVALUATE_EXPRESSION.invokeExact(formula.compiled, formula.values);
+    }
+
+    // One tuple at a time through Operation.execute, as the console does
+    @Benchmark
+    @OperationsPerInvocation(Columns.ROWS)
+    public int divisionScalar(Columns columns) throws Throwable {
+        int failures = 0;
+        double[] pair = columns.pair;
+        for (int i = 0; i < Columns.ROWS; i++) {
+            pair[0] = columns.first[i];
+            pair[1] = columns.second[i];
+            try {
+                columns.results[i] = (double) DIVISION.invokeExact(pair);
+            } catch (Exception e) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Columns.ROWS)
+    public int divisionBatch(Columns columns) throws Throwable {
+        return (int) DIVISION_BATCH.invokeExact(columns.first, columns.second, columns.results, columns.status, 0, Columns.ROWS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Columns.ROWS)
+    public int squareRootBatch(Columns columns) throws Throwable {
+        return (int) SQUARE_ROOT_BATCH.invokeExact(columns.first, (double[]) null, columns.results, columns.status, 0, Columns.ROWS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Columns.ROWS)
+    public double formulaScalar(Formula formula, Columns columns) throws Throwable {
+        double sum = 0;
+        double[] values = columns.pair;
+        for (int i = 0; i < Columns.ROWS; i++) {
+            values[0] = columns.first[i];
+            values[1] = columns.second[i];
+            sum += (double) EVALUATE_EXPRESSION.invokeExact(formula.compiled, values);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Columns.ROWS)
+    public int formulaBatch(Formula formula, Columns columns) throws Throwable {
+        return (int) EVALUATE_EXPRESSION_BATCH.invokeExact(formula.compiled, columns.formulaColumns,
+                columns.results, columns.status, 0, Columns.ROWS);
+    }
+
+    // amount * rate / 12 in each numeric backend; run with -prof gc to compare allocation
+    @Benchmark
+    @OperationsPerInvocation(Amounts.COUNT)
+    public double monthlyInterestDouble(Amounts amounts) throws Throwable {
+        double sum = 0;
+        double[] pair = amounts.doublePair;
+        for (int i = 0; i < Amounts.COUNT * 2; i += 2) {
+            pair[0] = amounts.doubles[i];
+            pair[1] = amounts.doubles[i + 1];
+            pair[0] = (double) MULTIPLICATION.invokeExact(pair);
+            pair[1] = 12;
+            sum += (double) DIVISION.invokeExact(pair);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Amounts.COUNT)
+    public BigDecimal monthlyInterestDecimal(Amounts amounts) throws Throwable {
+        BigDecimal sum = BigDecimal.ZERO;
+        BigDecimal twelve = BigDecimal.valueOf(12);
+        BigDecimal[] pair = amounts.decimalPair;
+        for (int i = 0; i < Amounts.COUNT * 2; i += 2) {
+            pair[0] = amounts.decimals[i];
+            pair[1] = amounts.decimals[i + 1];
+            pair[0] = (BigDecimal) MULTIPLICATION_DECIMAL.invokeExact(pair, amounts.context);
+            pair[1] = twelve;
+            sum = sum.add((BigDecimal) DIVISION_DECIMAL.invokeExact(pair, amounts.context));
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Amounts.COUNT)
+    public long monthlyInterestFixed(Amounts amounts) throws Throwable {
+        long sum = 0;
+        long[] pair = amounts.fixedPair;
+        for (int i = 0; i < Amounts.COUNT * 2; i += 2) {
+            pair[0] = amounts.fixed[i];
+            pair[1] = amounts.fixed[i + 1];
+            pair[0] = (long) MULTIPLICATION_FIXED.invokeExact(pair, amounts.format);
+            pair[1] = amounts.fixedTwelve;
+            sum += (long) DIVISION_FIXED.invokeExact(pair, amounts.format);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void validateName() throws Throwable {
+        VALIDATE_NAME.invokeExact("Alice Smith");
+    }
+
+    // Invalid addresses throw, so this also measures the exception path
+    @Benchmark
+    public boolean validateEmail(Emails emails) throws Throwable {
+        try {
+            VALIDATE_EMAIL.invokeExact(emails.email);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Benchmark
+    public List<?> findByEmail(Directory directory) throws Throwable {
+        return (List<?>) FIND_BY_EMAIL.invokeExact(directory.repository, directory.email);
+    }
+
+    @Benchmark
+    public List<?> findByNamePrefix(Directory directory) throws Throwable {
+        return (List<?>) FIND_BY_NAME_PREFIX.invokeExact(directory.repository, directory.namePrefix, 20);
+    }
+
+    // A misspelled name, ranked over the trigram index
+    @Benchmark
+    public List<?> fuzzySearch(Directory directory) throws Throwable {
+        return (List<?>) SEARCH.invokeExact(directory.repository, directory.misspelledName, 20);
+    }
+}
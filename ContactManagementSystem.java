@@ -1,28 +1,95 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 import java.util.logging.Level;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 public class ContactManagementSystem {
     private static final Logger LOGGER = Logger.getLogger(ContactManagementSystem.class.getName());
-    private final ArrayList<Contact> contacts;
+    private static final int SEARCH_LIMIT = 20;
+    private static final Pattern EMAIL_PATTERN = Pattern.compile("^[\\w-\\.]+@([\\w-]+\\.)+[\\w-]{2,4}$");
+    private final ContactRepository contacts;
     private final Scanner scanner;
 
-    public ContactManagementSystem() {
-        this.contacts = new ArrayList<>();
+    public ContactManagementSystem(ContactRepository contacts) {
+        this.contacts = contacts;
         this.scanner = new Scanner(System.in);
     }
 
+    /**
+     * Usage: ContactManagementSystem [dataDir] [--import file | --export file]
+     *
+     * Contacts are kept in dataDir, "contacts" by default. With --import or --export the
+     * file is transferred in bulk without starting the menu; its format follows the
+     * extension, .csv or .vcf.
+     */
     public static void main(String[] args) {
-        ContactManagementSystem system = new ContactManagementSystem();
-        system.start();
+        int flag = args.length > 0 && args[0].startsWith("--") ? 0 : 1;
+        Path dataDir = Paths.get(flag == 1 && args.length > 0 ? args[0] : "contacts");
+        ContactRepository contacts = ContactRepository.open(dataDir);
+        try {
+            if (args.length >= flag + 2 && args[flag].equals("--import")) {
+                printImport(ContactTransfer.importFile(contacts, Paths.get(args[flag + 1])));
+            } else if (args.length >= flag + 2 && args[flag].equals("--export")) {
+                System.out.println("Exported " + ContactTransfer.exportFile(contacts, Paths.get(args[flag + 1])) + " contacts.");
+            } else {
+                new ContactManagementSystem(contacts).start();
+            }
+        } catch (IOException | ContactException e) {
+            LOGGER.log(Level.SEVERE, "Bulk transfer failed", e);
+            System.out.println("Error: " + e.getMessage());
+        } finally {
+            try {
+                contacts.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Unable to close contact store", e);
+            }
+        }
     }
 
     private void start() {
         while (true) {
             displayMenu();
-            String choice = getUserInput("Enter your choice (1-5): ");
-            if (choice.equals("5")) {
+            String choice = getUserInput("Enter your choice (1-8): ");
+            if (choice.equals("8")) {
                 LOGGER.info("Contact Management System shutting down.");
                 System.out.println("Goodbye!");
                 break;
@@ -38,7 +105,10 @@ public class ContactManagementSystem {
         System.out.println("2. View Contacts");
         System.out.println("3. Update Contact");
         System.out.println("4. Delete Contact");
-        System.out.println("5. Exit");
+        System.out.println("5. Search Contacts");
+        System.out.println("6. Import Contacts");
+        System.out.println("7. Export Contacts");
+        System.out.println("8. Exit");
     }
 
     private String getUserInput(String prompt) {
@@ -53,13 +123,19 @@ public class ContactManagementSystem {
                 case "2": viewContacts(); break;
                 case "3": updateContact(); break;
                 case "4": deleteContact(); break;
+                case "5": searchContacts(); break;
+                case "6": importContacts(); break;
+                case "7": exportContacts(); break;
                 default:
                     LOGGER.warning("Invalid choice: " + choice);
-                    System.out.println("Invalid choice. Please select 1-5.");
+                    System.out.println("Invalid choice. Please select 1-8.");
             }
         } catch (ContactException e) {
             LOGGER.severe("Error: " + e.getMessage());
             System.out.println("Error: " + e.getMessage());
+        } catch (UncheckedIOException e) {
+            LOGGER.log(Level.SEVERE, "Contact store unavailable", e);
+            System.out.println("Error: " + e.getMessage());
         }
     }
 
@@ -69,86 +145,156 @@ public class ContactManagementSystem {
         String email = getUserInput("Enter email: ");
         validateEmail(email);
         String phone = getUserInput("Enter phone: ");
-        contacts.add(new Contact(name, email, phone));
+        contacts.add(name, email, phone);
         LOGGER.info("Contact added: " + name);
         System.out.println("Contact added successfully.");
     }
 
-    private void viewContacts() {
-        if (contacts.isEmpty()) {
+    // Contacts are numbered by their id, which stays the same across updates, deletes and restarts
+    private boolean viewContacts() {
+        Collection<Contact> all = contacts.all();
+        if (all.isEmpty()) {
             System.out.println("No contacts available.");
-            return;
+            return false;
         }
         System.out.println("\n=== Contacts ===");
-        for (int i = 0; i < contacts.size(); i++) {
-            System.out.println((i + 1) + ". " + contacts.get(i));
+        for (Contact contact : all) {
+            System.out.println(contact.getId() + ". " + contact);
         }
+        return true;
     }
 
     private void updateContact() throws ContactException {
-        viewContacts();
-        if (contacts.isEmpty()) return;
-        int index = getContactIndex();
+        if (!viewContacts()) return;
+        long id = getContactId();
+        if (contacts.get(id) == null) {
+            throw new ContactException("No contact with id " + id + ".");
+        }
         String name = getUserInput("Enter new name: ");
         validateName(name);
         String email = getUserInput("Enter new email: ");
         validateEmail(email);
         String phone = getUserInput("Enter new phone: ");
-        contacts.set(index, new Contact(name, email, phone));
-        LOGGER.info("Contact updated at index: " + index);
+        if (contacts.update(id, name, email, phone) == null) {
+            throw new ContactException("No contact with id " + id + ".");
+        }
+        LOGGER.info("Contact updated: " + id);
         System.out.println("Contact updated successfully.");
     }
 
     private void deleteContact() throws ContactException {
-        viewContacts();
-        if (contacts.isEmpty()) return;
-        int index = getContactIndex();
-        Contact removed = contacts.remove(index);
+        if (!viewContacts()) return;
+        long id = getContactId();
+        Contact removed = contacts.delete(id);
+        if (removed == null) {
+            throw new ContactException("No contact with id " + id + ".");
+        }
         LOGGER.info("Contact deleted: " + removed.getName());
         System.out.println("Contact deleted successfully.");
     }
 
-    private int getContactIndex() throws ContactException {
+    private void searchContacts() throws ContactException {
+        System.out.println("1. By email");
+        System.out.println("2. By name prefix");
+        System.out.println("3. Fuzzy name or phone");
+        String mode = getUserInput("Search by (1-3): ");
+        String query = getUserInput("Enter search text: ");
+        List<Contact> found;
+        switch (mode) {
+            case "1": found = contacts.findByEmail(query); break;
+            case "2": found = contacts.findByNamePrefix(query, SEARCH_LIMIT); break;
+            case "3": found = contacts.search(query, SEARCH_LIMIT); break;
+            default: throw new ContactException("Invalid search option: " + mode);
+        }
+        if (found.isEmpty()) {
+            System.out.println("No matching contacts.");
+            return;
+        }
+        System.out.println("\n=== Matches ===");
+        for (Contact contact : found) {
+            System.out.println(contact.getId() + ". " + contact);
+        }
+    }
+
+    private void importContacts() throws ContactException {
+        Path file = Paths.get(getUserInput("Enter file to import (.csv or .vcf): "));
+        try {
+            printImport(ContactTransfer.importFile(contacts, file));
+        } catch (IOException e) {
+            throw new ContactException("Unable to import " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static void printImport(ContactTransfer.ImportResult result) {
+        LOGGER.info("Imported " + result.imported + " contacts, rejected " + result.rejected);
+        System.out.println("Imported " + result.imported + " contacts.");
+        if (result.rejected > 0) {
+            System.out.println("Rejected " + result.rejected + " records; see " + result.rejectsFile + " for line numbers and reasons.");
+        }
+    }
+
+    private void exportContacts() throws ContactException {
+        Path file = Paths.get(getUserInput("Enter file to export to (.csv or .vcf): "));
+        try {
+            long exported = ContactTransfer.exportFile(contacts, file);
+            LOGGER.info("Exported " + exported + " contacts to " + file);
+            System.out.println("Exported " + exported + " contacts.");
+        } catch (IOException e) {
+            throw new ContactException("Unable to export " + file + ": " + e.getMessage());
+        }
+    }
+
+    private long getContactId() throws ContactException {
         String input = getUserInput("Enter contact number: ");
         try {
-            int index = Integer.parseInt(input) - 1;
-            if (index < 0 || index >= contacts.size()) {
-                throw new ContactException("Invalid contact number.");
-            }
-            return index;
+            return Long.parseLong(input);
         } catch (NumberFormatException e) {
             throw new ContactException("Invalid number format: " + input);
         }
     }
 
-    private void validateName(String name) throws ContactException {
+    static void validateName(String name) throws ContactException {
         if (name == null || name.trim().isEmpty()) {
             throw new ContactException("Name cannot be empty.");
         }
     }
 
-    private void validateEmail(String email) throws ContactException {
-        if (email == null || !email.matches("^[\\w-\\.]+@([\\w-]+\\.)+[\\w-]{2,4}$")) {
+    static void validateEmail(String email) throws ContactException {
+        if (email == null || !EMAIL_PATTERN.matcher(email).matches()) {
             throw new ContactException("Invalid email format.");
         }
     }
 }
 
 class Contact {
+    private final long id;
     private final String name;
     private final String email;
     private final String phone;
 
-    public Contact(String name, String email, String phone) {
+    public Contact(long id, String name, String email, String phone) {
+        this.id = id;
         this.name = name;
         this.email = email;
         this.phone = phone;
     }
 
+    public long getId() {
+        return id;
+    }
+
     public String getName() {
         return name;
     }
 
+    public String getEmail() {
+        return email;
+    }
+
+    public String getPhone() {
+        return phone;
+    }
+
     @Override
     public String toString() {
         return "Name: " + name + ", Email: " + email + ", Phone: " + phone;
@@ -160,3 +306,1118 @@ class ContactException extends Exception {
         super(message);
     }
 }
+
+/**
+ * Contact store with stable ids and secondary indexes, optionally backed by a {@link ContactLog}.
+ *
+ * Lookups by email go through a hash index, name prefixes through a sorted index, and
+ * fuzzy name or phone search through a trigram index. Writers are serialized by one lock;
+ * readers take none. Every index maps keys to contact ids and readers re-check each
+ * contact they resolve, so a read racing a write may miss the contact being changed but
+ * never returns one that does not match.
+ *
+ * A repository from {@link #open(Path)} is returned at once and loads in the background:
+ * listing and reading by id wait only for the log replay, searches also wait for the
+ * indexes, and writes wait for both.
+ */
+class ContactRepository implements Closeable {
+    private static final int GRAM_LENGTH = 3;
+    // Contacts indexed together when loading, so each posting list is published once per batch
+    private static final int INDEX_BATCH = 10_000;
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ConcurrentSkipListMap<Long, Contact> byId = new ConcurrentSkipListMap<>();
+    private final Map<String, IdList> byEmail = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<NameKey> byName = new ConcurrentSkipListSet<>();
+    private final Map<String, IdList> byGram = new ConcurrentHashMap<>();
+    private volatile long lastId;
+    private final CountDownLatch contactsLoaded;
+    private final CountDownLatch indexesLoaded;
+    private ContactLog log;
+    private volatile IOException loadFailure;
+
+    // An empty, in-memory repository
+    public ContactRepository() {
+        this(0);
+    }
+
+    private ContactRepository(int pendingLoads) {
+        this.contactsLoaded = new CountDownLatch(pendingLoads);
+        this.indexesLoaded = new CountDownLatch(pendingLoads);
+    }
+
+    // A repository persisted in the given directory, replayed from its log on a background thread
+    public static ContactRepository open(Path dir) {
+        ContactRepository repository = new ContactRepository(1);
+        Thread loader = new Thread(() -> repository.load(dir), "contact-loader");
+        loader.setDaemon(true);
+        loader.start();
+        return repository;
+    }
+
+    // Holds the write lock throughout, so writes queue behind the load while reads wait on the latches
+    private void load(Path dir) {
+        writeLock.lock();
+        try {
+            log = ContactLog.open(dir, this, new ContactLog.Replay() {
+                public void put(Contact contact) {
+                    byId.put(contact.getId(), contact);
+                    lastId = Math.max(lastId, contact.getId());
+                }
+
+                public void delete(long id) {
+                    byId.remove(id);
+                }
+
+                public void base(long baseLastId) {
+                    byId.clear();
+                    lastId = baseLastId;
+                }
+            });
+            contactsLoaded.countDown();
+            // Indexing in id order turns every posting list update into an append
+            List<Contact> batch = new ArrayList<>(INDEX_BATCH);
+            for (Contact contact : byId.values()) {
+                batch.add(contact);
+                if (batch.size() == INDEX_BATCH) {
+                    index(prepare(batch), batch);
+                    batch = new ArrayList<>(INDEX_BATCH);
+                }
+            }
+            index(prepare(batch), batch);
+        } catch (IOException e) {
+            loadFailure = e;
+        } finally {
+            contactsLoaded.countDown();
+            indexesLoaded.countDown();
+            writeLock.unlock();
+        }
+    }
+
+    private void await(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (latch.getCount() > 0) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (loadFailure != null) {
+            throw new UncheckedIOException("Unable to load contacts", loadFailure);
+        }
+    }
+
+    // Called under the write lock; makes the mutation durable before it is applied in memory
+    private void persist(Contact put, long deletedId) throws ContactException {
+        await(indexesLoaded);
+        if (log == null) return;
+        try {
+            if (put != null) {
+                log.put(put);
+            } else {
+                log.delete(deletedId);
+            }
+            log.sync();
+        } catch (IOException e) {
+            throw new ContactException("Unable to save contacts: " + e.getMessage());
+        }
+    }
+
+    long lastId() {
+        return lastId;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            if (log != null) log.close();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Immutable, sorted view of the ids filed under one index key, held as primitive longs
+     * so a million-entry posting list costs 8 bytes per id and membership is a binary
+     * search. The writer publishes a new view per change: new ids are the largest yet and
+     * append into the array past the old view's size, anything else copies it.
+     */
+    private static final class IdList {
+        static final IdList EMPTY = new IdList(new long[0], 0);
+
+        final long[] ids;
+        final int size;
+
+        IdList(long[] ids, int size) {
+            this.ids = ids;
+            this.size = size;
+        }
+
+        boolean contains(long id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        // Appends count ids, ascending and larger than any in this list, as one new view
+        IdList withAll(long[] added, int count) {
+            if (size > 0 && ids[size - 1] >= added[0]) {
+                IdList merged = this;
+                for (int i = 0; i < count; i++) merged = merged.with(added[i]);
+                return merged;
+            }
+            long[] grown = size + count <= ids.length ? ids : Arrays.copyOf(ids, Math.max(size * 2, size + count));
+            System.arraycopy(added, 0, grown, size, count);
+            return new IdList(grown, size + count);
+        }
+
+        IdList with(long id) {
+            if (size == 0 || ids[size - 1] < id) {
+                long[] grown = size < ids.length ? ids : Arrays.copyOf(ids, Math.max(4, size * 2));
+                grown[size] = id;
+                return new IdList(grown, size + 1);
+            }
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i >= 0) return this;
+            i = -i - 1;
+            long[] copy = new long[size + 1];
+            System.arraycopy(ids, 0, copy, 0, i);
+            copy[i] = id;
+            System.arraycopy(ids, i, copy, i + 1, size - i);
+            return new IdList(copy, copy.length);
+        }
+
+        // Returns null once the last id is removed, so the key can be dropped
+        IdList without(long id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i < 0) return this;
+            if (size == 1) return null;
+            long[] rest = new long[size - 1];
+            System.arraycopy(ids, 0, rest, 0, i);
+            System.arraycopy(ids, i + 1, rest, i, size - i - 1);
+            return new IdList(rest, rest.length);
+        }
+    }
+
+    // Positions in a prepared batch filed under one index key, which become ids once the batch is indexed
+    private static final class PendingIds {
+        long[] ids = new long[4];
+        int size;
+
+        void add(long position) {
+            // A key can come up twice for one contact, as a repeated trigram does
+            if (size > 0 && ids[size - 1] == position) return;
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = position;
+        }
+    }
+
+    /**
+     * Contacts with their index keys already worked out, each key listing the positions of the
+     * contacts filed under it. Preparing touches no repository state, so callers can do it in
+     * parallel and off the write lock, which is then held for one update per key, not per contact.
+     * A batch is indexed once; its positions are overwritten with ids as it is.
+     */
+    static final class Prepared {
+        final List<Contact> contacts;
+        private final String[] names;
+        private final Map<String, PendingIds> emails;
+        private final Map<String, PendingIds> grams;
+
+        private Prepared(List<Contact> contacts) {
+            this.contacts = contacts;
+            this.names = new String[contacts.size()];
+            // Emails are mostly distinct; a batch's grams are fewer than its contacts once it is large
+            this.emails = new HashMap<>(contacts.size() * 4 / 3 + 1);
+            this.grams = new HashMap<>(contacts.size() * 4 / 3 + 1);
+        }
+    }
+
+    static Prepared prepare(List<Contact> contacts) {
+        Prepared batch = new Prepared(contacts);
+        for (int i = 0; i < contacts.size(); i++) {
+            Contact contact = contacts.get(i);
+            batch.names[i] = normalizeName(contact.getName());
+            batch.emails.computeIfAbsent(normalizeEmail(contact.getEmail()), key -> new PendingIds()).add(i);
+            for (String gram : grams(contact.getName(), contact.getPhone())) {
+                batch.grams.computeIfAbsent(gram, key -> new PendingIds()).add(i);
+            }
+        }
+        return batch;
+    }
+
+    // Sorts by normalized name, then id, so equal names stay distinct and a prefix is one contiguous range
+    private static final class NameKey implements Comparable<NameKey> {
+        final String name;
+        final long id;
+
+        NameKey(String name, long id) {
+            this.name = name;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(NameKey other) {
+            int c = name.compareTo(other.name);
+            return c != 0 ? c : Long.compare(id, other.id);
+        }
+    }
+
+    public Contact add(String name, String email, String phone) throws ContactException {
+        writeLock.lock();
+        try {
+            Contact contact = new Contact(lastId + 1, name, email, phone);
+            persist(contact, 0);
+            lastId = contact.getId();
+            byId.put(contact.getId(), contact);
+            index(contact);
+            return contact;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Adds contacts in one write: ids are assigned in order, the whole batch is logged with
+     * a single sync, and the drafts' own ids are ignored. Returns the stored contacts.
+     */
+    public List<Contact> addAll(List<Contact> drafts) throws ContactException {
+        return addAll(prepare(drafts));
+    }
+
+    List<Contact> addAll(Prepared drafts) throws ContactException {
+        writeLock.lock();
+        try {
+            await(indexesLoaded);
+            List<Contact> added = new ArrayList<>(drafts.contacts.size());
+            long id = lastId;
+            for (Contact draft : drafts.contacts) {
+                added.add(new Contact(++id, draft.getName(), draft.getEmail(), draft.getPhone()));
+            }
+            if (log != null) {
+                try {
+                    for (Contact contact : added) log.put(contact);
+                    log.sync();
+                } catch (IOException e) {
+                    throw new ContactException("Unable to save contacts: " + e.getMessage());
+                }
+            }
+            lastId = id;
+            for (Contact contact : added) {
+                byId.put(contact.getId(), contact);
+            }
+            index(drafts, added);
+            return added;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Returns the updated contact, or null if there is no contact with this id
+    public Contact update(long id, String name, String email, String phone) throws ContactException {
+        writeLock.lock();
+        try {
+            await(indexesLoaded);
+            Contact old = byId.get(id);
+            if (old == null) return null;
+            Contact contact = new Contact(id, name, email, phone);
+            persist(contact, 0);
+            byId.put(id, contact);
+            unindex(old);
+            index(contact);
+            return contact;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Returns the removed contact, or null if there is no contact with this id
+    public Contact delete(long id) throws ContactException {
+        writeLock.lock();
+        try {
+            await(indexesLoaded);
+            if (!byId.containsKey(id)) return null;
+            persist(null, id);
+            Contact removed = byId.remove(id);
+            unindex(removed);
+            return removed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public Contact get(long id) {
+        await(contactsLoaded);
+        return byId.get(id);
+    }
+
+    public int size() {
+        await(contactsLoaded);
+        return byId.size();
+    }
+
+    // All contacts in id order; a live view that reflects concurrent changes
+    public Collection<Contact> all() {
+        await(contactsLoaded);
+        return byId.values();
+    }
+
+    public List<Contact> findByEmail(String email) {
+        await(indexesLoaded);
+        String key = normalizeEmail(email);
+        List<Contact> found = new ArrayList<>();
+        IdList ids = byEmail.getOrDefault(key, IdList.EMPTY);
+        for (int i = 0; i < ids.size; i++) {
+            Contact contact = byId.get(ids.ids[i]);
+            if (contact != null && normalizeEmail(contact.getEmail()).equals(key)) {
+                found.add(contact);
+            }
+        }
+        return found;
+    }
+
+    // Contacts whose name starts with the prefix, ignoring case, in name order
+    public List<Contact> findByNamePrefix(String prefix, int limit) {
+        await(indexesLoaded);
+        String key = normalizeName(prefix);
+        List<Contact> found = new ArrayList<>();
+        for (NameKey entry : byName.tailSet(new NameKey(key, Long.MIN_VALUE))) {
+            if (found.size() >= limit || !entry.name.startsWith(key)) break;
+            Contact contact = byId.get(entry.id);
+            if (contact != null && normalizeName(contact.getName()).startsWith(key)) {
+                found.add(contact);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Fuzzy search over names and phone numbers. Contacts sharing at least a third of the
+     * query's trigrams match, ranked by how many they share, so misspellings and partial
+     * numbers still find their contact. Such a contact must be filed under one of the
+     * (grams - minShared + 1) rarest trigrams, so only those lists are scanned; lists for
+     * grams common to most names are only probed by binary search.
+     */
+    public List<Contact> search(String text, int limit) {
+        await(indexesLoaded);
+        Set<String> grams = grams(text, text);
+        List<Contact> found = new ArrayList<>();
+        if (grams.isEmpty()) return found;
+        List<IdList> postings = new ArrayList<>();
+        for (String gram : grams) {
+            postings.add(byGram.getOrDefault(gram, IdList.EMPTY));
+        }
+        postings.sort(Comparator.comparingInt(ids -> ids.size));
+        int minShared = Math.max(1, (grams.size() + 2) / 3);
+
+        Set<Long> candidates = new HashSet<>();
+        for (IdList ids : postings.subList(0, postings.size() - minShared + 1)) {
+            for (int i = 0; i < ids.size; i++) {
+                candidates.add(ids.ids[i]);
+            }
+        }
+        List<long[]> ranked = new ArrayList<>();
+        for (long id : candidates) {
+            int shared = 0;
+            for (IdList ids : postings) {
+                if (ids.contains(id)) shared++;
+            }
+            if (shared >= minShared) ranked.add(new long[] {shared, id});
+        }
+        ranked.sort((a, b) -> a[0] != b[0] ? Long.compare(b[0], a[0]) : Long.compare(a[1], b[1]));
+        for (long[] match : ranked) {
+            if (found.size() >= limit) break;
+            Contact contact = byId.get(match[1]);
+            if (contact != null) found.add(contact);
+        }
+        return found;
+    }
+
+    private void index(Contact contact) {
+        long id = contact.getId();
+        add(byEmail, normalizeEmail(contact.getEmail()), id);
+        byName.add(new NameKey(normalizeName(contact.getName()), id));
+        for (String gram : grams(contact.getName(), contact.getPhone())) {
+            add(byGram, gram, id);
+        }
+    }
+
+    // Files a prepared batch under the ids its contacts were stored with, ascending and newer than any indexed so far
+    private void index(Prepared batch, List<Contact> stored) {
+        long[] ids = new long[stored.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = stored.get(i).getId();
+            byName.add(new NameKey(batch.names[i], ids[i]));
+        }
+        addAll(byEmail, batch.emails, ids);
+        addAll(byGram, batch.grams, ids);
+    }
+
+    private void unindex(Contact contact) {
+        long id = contact.getId();
+        remove(byEmail, normalizeEmail(contact.getEmail()), id);
+        byName.remove(new NameKey(normalizeName(contact.getName()), id));
+        for (String gram : grams(contact.getName(), contact.getPhone())) {
+            remove(byGram, gram, id);
+        }
+    }
+
+    // Index changes are only made under the write lock
+    private static void add(Map<String, IdList> index, String key, long id) {
+        index.put(key, index.getOrDefault(key, IdList.EMPTY).with(id));
+    }
+
+    private static void addAll(Map<String, IdList> index, Map<String, PendingIds> pending, long[] ids) {
+        for (Map.Entry<String, PendingIds> entry : pending.entrySet()) {
+            PendingIds filed = entry.getValue();
+            for (int i = 0; i < filed.size; i++) filed.ids[i] = ids[(int) filed.ids[i]];
+            index.put(entry.getKey(), index.getOrDefault(entry.getKey(), IdList.EMPTY).withAll(filed.ids, filed.size));
+        }
+    }
+
+    private static void remove(Map<String, IdList> index, String key, long id) {
+        IdList ids = index.get(key);
+        if (ids == null) return;
+        IdList rest = ids.without(id);
+        if (rest == null) {
+            index.remove(key);
+        } else {
+            index.put(key, rest);
+        }
+    }
+
+    private static String normalizeEmail(String email) {
+        return email == null ? "" : email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static String normalizeName(String name) {
+        if (name == null) return "";
+        String trimmed = name.trim();
+        return (singleSpaced(trimmed) ? trimmed : WHITESPACE.matcher(trimmed).replaceAll(" ")).toLowerCase(Locale.ROOT);
+    }
+
+    // Whether the trimmed text has nothing for WHITESPACE to collapse, as most names do
+    private static boolean singleSpaced(String text) {
+        for (int i = 1; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == ' ' ? text.charAt(i - 1) == ' ' : c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Trigrams of the padded name plus trigrams of the phone number's digits
+    private static Set<String> grams(String name, String phone) {
+        Set<String> grams = new LinkedHashSet<>();
+        addGrams(grams, normalizeName(name));
+        addGrams(grams, phone == null ? "" : digits(phone));
+        return grams;
+    }
+
+    // The ASCII digits of the phone number, found without a regex
+    private static String digits(String phone) {
+        StringBuilder digits = new StringBuilder(phone.length());
+        for (int i = 0; i < phone.length(); i++) {
+            char c = phone.charAt(i);
+            if (c >= '0' && c <= '9') digits.append(c);
+        }
+        return digits.toString();
+    }
+
+    private static void addGrams(Set<String> grams, String text) {
+        if (text.isEmpty()) return;
+        String padded = "  " + text + " ";
+        for (int i = 0; i + GRAM_LENGTH <= padded.length(); i++) {
+            grams.add(padded.substring(i, i + GRAM_LENGTH));
+        }
+    }
+}
+
+/**
+ * Append-only, segmented log of contact mutations.
+ *
+ * Every add and update is appended as a PUT record holding the whole contact, and every
+ * delete as a DELETE record, each framed as [length][crc32][type][payload] in the active
+ * segment file. Segments roll over at {@link #SEGMENT_BYTES}; once
+ * {@link #COMPACT_AFTER_SEGMENTS} have been sealed, a background thread rewrites the live
+ * contacts over the newest sealed segment, starting with a BASE record, and deletes the
+ * older ones. Replay discards everything read before a BASE record and every record is
+ * idempotent, so a crash at any step of compaction replays to the same contacts. Segments
+ * are memory-mapped for replay, and a torn record at the tail of the last one is cut off.
+ */
+class ContactLog implements Closeable {
+    private static final int MAGIC = 0x43534731; // "CSG1"
+    private static final int HEADER_SIZE = 4;
+    private static final int FRAME_SIZE = 8;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte BASE = 3;
+    private static final long SEGMENT_BYTES = 64L << 20;
+    private static final int COMPACT_AFTER_SEGMENTS = 4;
+    private static final String SEGMENT_PREFIX = "contacts-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    interface Replay {
+        void put(Contact contact);
+        void delete(long id);
+        // Everything replayed so far is superseded by the contacts that follow
+        void base(long lastId);
+    }
+
+    // Frames records into a growable buffer until they are drained to a file
+    private static final class RecordWriter {
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        void write(byte type, long id, Contact contact) {
+            byte[][] fields = contact == null ? new byte[0][] : new byte[][] {
+                    bytes(contact.getName()), bytes(contact.getEmail()), bytes(contact.getPhone())};
+            int length = 1 + 8;
+            for (byte[] field : fields) length += 4 + (field == null ? 0 : field.length);
+            if (buffer.remaining() < FRAME_SIZE + length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + FRAME_SIZE + length));
+                buffer.flip();
+                buffer = grown.put(buffer);
+            }
+            int start = buffer.position();
+            buffer.position(start + FRAME_SIZE);
+            buffer.put(type).putLong(id);
+            for (byte[] field : fields) {
+                if (field == null) {
+                    buffer.putInt(-1);
+                } else {
+                    buffer.putInt(field.length).put(field);
+                }
+            }
+            crc.reset();
+            crc.update(buffer.array(), start + FRAME_SIZE, length);
+            buffer.putInt(start, length).putInt(start + 4, (int) crc.getValue());
+        }
+
+        private static byte[] bytes(String value) {
+            return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        int buffered() {
+            return buffer.position();
+        }
+
+        void drainTo(FileChannel channel) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        void discard() {
+            buffer.clear();
+        }
+    }
+
+    private final Path dir;
+    private final ContactRepository repository;
+    private final RecordWriter records = new RecordWriter();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "contact-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private FileChannel active;
+    // End of the last record the active segment has forced to disk
+    private long committed;
+    private long activeNumber;
+    private int sealedSegments;
+
+    private ContactLog(Path dir, ContactRepository repository) {
+        this.dir = dir;
+        this.repository = repository;
+    }
+
+    // Replays every segment in order, then reopens the last one for appending
+    static ContactLog open(Path dir, ContactRepository repository, Replay replay) throws IOException {
+        Files.createDirectories(dir);
+        List<Long> numbers = segmentNumbers(dir);
+        ContactLog log = new ContactLog(dir, repository);
+        for (int i = 0; i < numbers.size(); i++) {
+            Path segment = log.segment(numbers.get(i));
+            long validEnd = replay(segment, replay);
+            if (validEnd < Files.size(segment)) {
+                if (i < numbers.size() - 1) throw new IOException("Corrupt contact segment " + segment);
+                try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                    channel.truncate(validEnd);
+                }
+            }
+        }
+        log.sealedSegments = Math.max(0, numbers.size() - 1);
+        log.openActive(numbers.isEmpty() ? 1 : numbers.get(numbers.size() - 1));
+        return log;
+    }
+
+    private static List<Long> segmentNumbers(Path dir) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    private Path segment(long number) {
+        return dir.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    // Returns the offset just past the last intact record
+    private static long replay(Path segment, Replay replay) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) return 0;
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (map.getInt() != MAGIC) throw new IOException("Not a contact segment: " + segment);
+            CRC32 crc = new CRC32();
+            while (map.remaining() >= FRAME_SIZE) {
+                int start = map.position();
+                int length = map.getInt();
+                int checksum = map.getInt();
+                if (length <= 0 || length > map.remaining()) return start;
+                ByteBuffer record = map.slice(map.position(), length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != checksum) return start;
+                map.position(map.position() + length);
+                byte type = record.get();
+                long id = record.getLong();
+                switch (type) {
+                    case PUT: replay.put(new Contact(id, getString(record), getString(record), getString(record))); break;
+                    case DELETE: replay.delete(id); break;
+                    case BASE: replay.base(id); break;
+                    default: throw new IOException("Unknown record type " + type + " in " + segment);
+                }
+            }
+            return map.position();
+        }
+    }
+
+    private static String getString(ByteBuffer record) {
+        int length = record.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void openActive(long number) throws IOException {
+        Path path = segment(number);
+        active = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (active.size() < HEADER_SIZE) {
+            active.truncate(0);
+            active.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).flip(), 0);
+        }
+        active.position(active.size());
+        committed = active.position();
+        activeNumber = number;
+    }
+
+    void put(Contact contact) {
+        records.write(PUT, contact.getId(), contact);
+    }
+
+    void delete(long id) {
+        records.write(DELETE, id, null);
+    }
+
+    // Writes and forces everything appended so far, rolling to a new segment once the active one is full
+    void sync() throws IOException {
+        try {
+            records.drainTo(active);
+            active.force(false);
+        } catch (IOException e) {
+            rollBack();
+            throw e;
+        }
+        committed = active.position();
+        if (active.size() >= SEGMENT_BYTES) roll();
+    }
+
+    // Cuts off whatever part of a failed sync reached the file, so the caller's retry is not logged twice
+    private void rollBack() {
+        records.discard();
+        try {
+            active.truncate(committed);
+            active.position(committed);
+        } catch (IOException e) {
+            Logger.getLogger(ContactLog.class.getName()).log(Level.WARNING, "Could not roll back contact segment " + activeNumber, e);
+        }
+    }
+
+    private void roll() throws IOException {
+        active.close();
+        long sealed = activeNumber;
+        openActive(activeNumber + 1);
+        if (++sealedSegments >= COMPACT_AFTER_SEGMENTS) {
+            sealedSegments = 0;
+            try {
+                compactor.execute(() -> compact(sealed));
+            } catch (RejectedExecutionException e) {
+                // Closing; the segments are compacted on a later run instead
+            }
+        }
+    }
+
+    /**
+     * Rewrites the live contacts over segment {@code upTo} and deletes the segments before it.
+     * The contacts are read while writes continue, so each is at least as new as segment
+     * {@code upTo}; replaying the later segments on top of them converges to the same state.
+     */
+    private void compact(long upTo) {
+        Path tmp = dir.resolve(segment(upTo).getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).flip());
+            RecordWriter writer = new RecordWriter();
+            writer.write(BASE, repository.lastId(), null);
+            for (Contact contact : repository.all()) {
+                writer.write(PUT, contact.getId(), contact);
+                if (writer.buffered() >= (1 << 20)) writer.drainTo(channel);
+            }
+            writer.drainTo(channel);
+            channel.force(true);
+        } catch (IOException e) {
+            Logger.getLogger(ContactLog.class.getName()).log(Level.WARNING, "Contact compaction failed", e);
+            return;
+        }
+        try {
+            Files.move(tmp, segment(upTo), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for (long number : segmentNumbers(dir)) {
+                if (number < upTo) Files.deleteIfExists(segment(number));
+            }
+        } catch (IOException e) {
+            Logger.getLogger(ContactLog.class.getName()).log(Level.WARNING, "Contact compaction failed", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        active.close();
+    }
+}
+
+/**
+ * Streaming bulk import and export of contacts as CSV (name,email,phone) or vCard.
+ *
+ * Import runs as a pipeline: the calling thread only splits the file into raw records,
+ * batches of records are parsed, validated and given their index keys in parallel, and
+ * accepted contacts are committed in file order: one repository batch, one log sync and one
+ * update per index key per batch. At most {@link #MAX_IN_FLIGHT} batches exist at a time, so
+ * memory stays bounded however large the file is. Rejected records are written with their
+ * line number and reason to a ".rejects" file next to the input.
+ */
+class ContactTransfer {
+    private static final int BATCH_SIZE = 10_000;
+    private static final int WORKERS = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_IN_FLIGHT = WORKERS * 2;
+
+    enum Format {
+        CSV, VCARD;
+
+        static Format of(Path file) throws IOException {
+            String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".csv")) return CSV;
+            if (name.endsWith(".vcf") || name.endsWith(".vcard")) return VCARD;
+            throw new IOException("Unknown contact file format, expected .csv or .vcf: " + file);
+        }
+    }
+
+    static final class ImportResult {
+        final long imported;
+        final long rejected;
+        final Path rejectsFile;
+
+        ImportResult(long imported, long rejected, Path rejectsFile) {
+            this.imported = imported;
+            this.rejected = rejected;
+            this.rejectsFile = rejectsFile;
+        }
+    }
+
+    // The unparsed text of one record and the line it starts on
+    private static final class RawRecord {
+        final long line;
+        final String text;
+
+        RawRecord(long line, String text) {
+            this.line = line;
+            this.text = text;
+        }
+    }
+
+    private static final class Batch {
+        final List<Contact> accepted = new ArrayList<>();
+        final List<String> rejects = new ArrayList<>();
+        ContactRepository.Prepared prepared;
+    }
+
+    private ContactTransfer() {}
+
+    static ImportResult importFile(ContactRepository contacts, Path file) throws IOException, ContactException {
+        Format format = Format.of(file);
+        Path rejectsFile = file.resolveSibling(file.getFileName() + ".rejects");
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS, r -> {
+            Thread thread = new Thread(r, "contact-import");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long imported = 0;
+        long rejected = 0;
+        ArrayDeque<Future<Batch>> inFlight = new ArrayDeque<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             BufferedWriter rejects = Files.newBufferedWriter(rejectsFile, StandardCharsets.UTF_8)) {
+            RecordReader records = format == Format.CSV ? new CsvReader(reader) : new VCardReader(reader);
+            List<RawRecord> chunk = new ArrayList<>(BATCH_SIZE);
+            RawRecord record;
+            while (true) {
+                record = records.next();
+                if (record != null) chunk.add(record);
+                if (chunk.size() == BATCH_SIZE || (record == null && !chunk.isEmpty())) {
+                    List<RawRecord> submitted = chunk;
+                    inFlight.add(workers.submit(() -> parse(format, submitted)));
+                    chunk = new ArrayList<>(BATCH_SIZE);
+                }
+                // Commit the oldest batch when the window is full, and everything once the file is read
+                while (!inFlight.isEmpty() && (inFlight.size() >= MAX_IN_FLIGHT || record == null)) {
+                    Batch batch = join(inFlight.poll());
+                    contacts.addAll(batch.prepared);
+                    imported += batch.accepted.size();
+                    rejected += batch.rejects.size();
+                    for (String reject : batch.rejects) {
+                        rejects.write(reject);
+                        rejects.newLine();
+                    }
+                }
+                if (record == null) break;
+            }
+        } finally {
+            for (Future<Batch> pending : inFlight) pending.cancel(true);
+            workers.shutdownNow();
+        }
+        if (rejected == 0) Files.deleteIfExists(rejectsFile);
+        return new ImportResult(imported, rejected, rejectsFile);
+    }
+
+    private static Batch join(Future<Batch> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Import failed", e.getCause());
+        }
+    }
+
+    private static Batch parse(Format format, List<RawRecord> records) {
+        Batch batch = new Batch();
+        for (RawRecord record : records) {
+            try {
+                Contact contact = format == Format.CSV ? parseCsv(record.text) : parseVCard(record.text);
+                ContactManagementSystem.validateName(contact.getName());
+                ContactManagementSystem.validateEmail(contact.getEmail());
+                batch.accepted.add(contact);
+            } catch (ContactException e) {
+                batch.rejects.add("line " + record.line + ": " + e.getMessage());
+            }
+        }
+        batch.prepared = ContactRepository.prepare(batch.accepted);
+        return batch;
+    }
+
+    static long exportFile(ContactRepository contacts, Path file) throws IOException {
+        Format format = Format.of(file);
+        long exported = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            if (format == Format.CSV) writer.write("name,email,phone\n");
+            for (Contact contact : contacts.all()) {
+                if (format == Format.CSV) {
+                    writer.write(csvField(contact.getName()) + "," + csvField(contact.getEmail()) + "," + csvField(contact.getPhone()) + "\n");
+                } else {
+                    writer.write("BEGIN:VCARD\r\nVERSION:3.0\r\n");
+                    writer.write("FN:" + vCardText(contact.getName()) + "\r\n");
+                    writer.write("EMAIL:" + vCardText(contact.getEmail()) + "\r\n");
+                    if (contact.getPhone() != null && !contact.getPhone().isEmpty()) {
+                        writer.write("TEL:" + vCardText(contact.getPhone()) + "\r\n");
+                    }
+                    writer.write("END:VCARD\r\n");
+                }
+                exported++;
+            }
+        }
+        return exported;
+    }
+
+    private interface RecordReader {
+        // Returns null at the end of the file
+        RawRecord next() throws IOException;
+    }
+
+    // One record per line, except that a quoted field may span lines; a name,email,phone header is skipped
+    private static final class CsvReader implements RecordReader {
+        private final BufferedReader reader;
+        private long lineNumber;
+
+        CsvReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public RawRecord next() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) continue;
+                if (lineNumber == 1 && line.trim().toLowerCase(Locale.ROOT).startsWith("name,")) continue;
+                long start = lineNumber;
+                StringBuilder text = null;
+                // An odd number of quotes so far means a quoted field continues on the next line
+                int quotes = quotes(line);
+                while (quotes % 2 != 0) {
+                    String more = reader.readLine();
+                    if (more == null) break;
+                    lineNumber++;
+                    if (text == null) text = new StringBuilder(line);
+                    text.append('\n').append(more);
+                    quotes += quotes(more);
+                }
+                return new RawRecord(start, text == null ? line : text.toString());
+            }
+            return null;
+        }
+
+        private static int quotes(String line) {
+            int count = 0;
+            for (int i = 0; i < line.length(); i++) {
+                if (line.charAt(i) == '"') count++;
+            }
+            return count;
+        }
+    }
+
+    // One record per BEGIN:VCARD ... END:VCARD block, with folded lines joined
+    private static final class VCardReader implements RecordReader {
+        private final BufferedReader reader;
+        private long lineNumber;
+
+        VCardReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public RawRecord next() throws IOException {
+            String line;
+            long start = -1;
+            StringBuilder text = new StringBuilder();
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (start < 0) {
+                    if (line.trim().equalsIgnoreCase("BEGIN:VCARD")) start = lineNumber;
+                    continue;
+                }
+                if (line.trim().equalsIgnoreCase("END:VCARD")) return new RawRecord(start, text.toString());
+                if (!line.isEmpty() && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+                    text.append(line, 1, line.length());
+                } else {
+                    text.append('\n').append(line);
+                }
+            }
+            return start < 0 ? null : new RawRecord(start, text.toString());
+        }
+    }
+
+    static Contact parseCsv(String text) throws ContactException {
+        List<String> fields = new ArrayList<>(3);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) throw new ContactException("Unterminated quoted field.");
+        fields.add(field.toString().trim());
+        if (fields.size() < 2 || fields.size() > 3) {
+            throw new ContactException("Expected name,email,phone but found " + fields.size() + " fields.");
+        }
+        return new Contact(0, fields.get(0), fields.get(1), fields.size() == 3 ? fields.get(2) : "");
+    }
+
+    static Contact parseVCard(String text) throws ContactException {
+        String name = null;
+        String email = null;
+        String phone = null;
+        for (String line : text.split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon < 0) continue;
+            String property = line.substring(0, colon);
+            int params = property.indexOf(';');
+            if (params >= 0) property = property.substring(0, params);
+            // A group prefix such as "item1.EMAIL" does not change the property
+            property = property.substring(property.lastIndexOf('.') + 1).toUpperCase(Locale.ROOT);
+            String value = unescapeVCard(line.substring(colon + 1).trim());
+            if (property.equals("FN") && name == null) name = value;
+            else if (property.equals("EMAIL") && email == null) email = value;
+            else if (property.equals("TEL") && phone == null) phone = value;
+        }
+        if (name == null) throw new ContactException("vCard has no FN property.");
+        return new Contact(0, name, email, phone == null ? "" : phone);
+    }
+
+    private static String csvField(String value) {
+        if (value == null) return "";
+        boolean quote = value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0
+                || value.indexOf('\r') >= 0 || !value.equals(value.trim());
+        return quote ? '"' + value.replace("\"", "\"\"") + '"' : value;
+    }
+
+    private static String vCardText(String value) {
+        return value.replace("\\", "\\\\").replace(",", "\\,").replace(";", "\\;").replace("\n", "\\n");
+    }
+
+    private static String unescapeVCard(String value) {
+        if (value.indexOf('\\') < 0) return value;
+        StringBuilder out = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                out.append(next == 'n' || next == 'N' ? '\n' : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
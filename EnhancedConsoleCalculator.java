@@ -1,36 +1,163 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
 public class EnhancedConsoleCalculator {
     private static final Logger LOGGER = Logger.getLogger(EnhancedConsoleCalculator.class.getName());
+    private static final int EXPRESSION_CACHE_SIZE = 256;
+
     private final Scanner scanner;
+    private final NumericBackend backend;
+    private final ExpressionCache expressions = new ExpressionCache(EXPRESSION_CACHE_SIZE);
+    // Values assigned with "name = expression", reused by later expressions
+    private final Map<String, Double> variables = new HashMap<>();
 
     public EnhancedConsoleCalculator() {
+        this(NumericBackend.DOUBLE);
+    }
+
+    public EnhancedConsoleCalculator(NumericBackend backend) {
         this.scanner = new Scanner(System.in);
+        this.backend = backend;
     }
 
+    // [--numeric double|decimal[:precision]|fixed[:scale]] [--batch ... | --columns ...]
     public static void main(String[] args) {
-        EnhancedConsoleCalculator calculator = new EnhancedConsoleCalculator();
+        NumericBackend backend = NumericBackend.DOUBLE;
+        if (args.length >= 2 && args[0].equals("--numeric")) {
+            try {
+                backend = NumericBackend.forName(args[1]);
+            } catch (CalculatorException e) {
+                System.out.println("Error: " + e.getMessage());
+                System.exit(2);
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        if (args.length > 0 && args[0].equals("--columns")) {
+            if (backend != NumericBackend.DOUBLE) {
+                System.out.println("Error: Column evaluation is only available in double mode.");
+                System.exit(2);
+            }
+            System.exit(evaluateColumns(args));
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.exit(evaluateLines(args, backend));
+        }
+        EnhancedConsoleCalculator calculator = new EnhancedConsoleCalculator(backend);
         calculator.start();
     }
 
+    // --columns <expression> <results file> <status file> <column file per variable>...
+    private static int evaluateColumns(String[] args) {
+        if (args.length < 4) {
+            System.out.println("Usage: EnhancedConsoleCalculator --columns <expression> <results file> <status file> <column file>...");
+            return 2;
+        }
+        try {
+            CompiledExpression expression = ExpressionParser.parse(args[1]);
+            List<Path> columns = new ArrayList<>();
+            for (int i = 4; i < args.length; i++) {
+                columns.add(Paths.get(args[i]));
+            }
+            long started = System.nanoTime();
+            long failures = MappedColumns.evaluate(expression, columns, Paths.get(args[2]), Paths.get(args[3]));
+            long rows = columns.isEmpty() ? 0 : columns.get(0).toFile().length() / Double.BYTES;
+            LOGGER.info("Evaluated " + rows + " rows of " + expression.getSource() + " in "
+                    + (System.nanoTime() - started) / 1_000_000 + " ms");
+            System.out.println("Evaluated " + rows + " rows, " + failures + " failed.");
+            return 0;
+        } catch (CalculatorException e) {
+            LOGGER.severe("Error during batch evaluation: " + e.getMessage());
+            System.out.println("Error: " + e.getMessage());
+            return 1;
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Batch evaluation failed: ", e);
+            System.out.println("Error: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    // --batch [--parallel] [input file]; reads stdin when no file is given and writes results to stdout
+    private static int evaluateLines(String[] args, NumericBackend backend) {
+        boolean parallel = false;
+        Path file = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--parallel")) {
+                parallel = true;
+            } else if (file == null) {
+                file = Paths.get(args[i]);
+            } else {
+                System.out.println("Usage: EnhancedConsoleCalculator --batch [--parallel] [input file]");
+                return 2;
+            }
+        }
+        HeadlessCalculator calculator = new HeadlessCalculator(backend, parallel ? Runtime.getRuntime().availableProcessors() : 1);
+        Writer output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out),
+                StandardCharsets.UTF_8), 1 << 16);
+        long started = System.nanoTime();
+        try (BufferedReader input = file != null
+                ? Files.newBufferedReader(file, StandardCharsets.UTF_8)
+                : new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16)) {
+            HeadlessCalculator.Summary summary = calculator.run(input, output);
+            LOGGER.info(() -> "Evaluated " + summary.lines + " lines with " + summary.errors + " errors in "
+                    + (System.nanoTime() - started) / 1_000_000 + " ms");
+            return summary.errors == 0 ? 0 : 1;
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Batch evaluation failed: ", e);
+            return 1;
+        }
+    }
+
     public void start() {
         while (true) {
             displayMenu();
-            String choice = getUserInput("Enter your choice (1-8): ");
-            if (choice.equals("8")) {
+            String choice = getUserInput("Enter your choice (1-9): ");
+            if (choice.equals("9")) {
                 LOGGER.info("Calculator shutting down.");
                 System.out.println("Goodbye!");
                 break;
             }
-            processOperation(choice);
+            if (choice.equals("8")) {
+                processExpression();
+            } else {
+                processOperation(choice);
+            }
         }
         scanner.close();
     }
 
     private void displayMenu() {
-        System.out.println("\n=== Enhanced Console Calculator ===");
+        System.out.println("\n=== Enhanced Console Calculator (" + backend.describe() + ") ===");
         System.out.println("1. Addition");
         System.out.println("2. Subtraction");
         System.out.println("3. Multiplication");
@@ -38,7 +165,8 @@ public class EnhancedConsoleCalculator {
         System.out.println("5. Power");
         System.out.println("6. Square Root");
         System.out.println("7. Logarithm (base 10)");
-        System.out.println("8. Exit");
+        System.out.println("8. Evaluate Expression");
+        System.out.println("9. Exit");
     }
 
     private String getUserInput(String prompt) {
@@ -51,16 +179,20 @@ public class EnhancedConsoleCalculator {
             Operation operation = OperationFactory.getOperation(choice);
             if (operation == null) {
                 LOGGER.warning("Invalid operation selected: " + choice);
-                System.out.println("Invalid choice. Please select a number between 1 and 8.");
+                System.out.println("Invalid choice. Please select a number between 1 and 9.");
                 return;
             }
 
-            double[] inputs = operation.requiresTwoOperands()
-                    ? getTwoNumbers()
-                    : new double[]{getSingleNumber()};
-            double result = operation.execute(inputs);
-            System.out.printf("Result: %.2f%n", result);
-            LOGGER.info("Operation " + choice + " executed successfully with result: " + result);
+            String[] operands = operation.requiresTwoOperands()
+                    ? new String[]{getUserInput("Enter a number: "), getUserInput("Enter a number: ")}
+                    : new String[]{getUserInput("Enter a number: ")};
+            StringBuilder result = new StringBuilder();
+            backend.execute(operation, operands, result);
+            System.out.println("Result: " + result);
+            LOGGER.info(() -> "Operation " + choice + " executed successfully with result: " + result);
+        } catch (NumberFormatException e) {
+            LOGGER.severe("Error during operation: Invalid number format: " + e.getMessage());
+            System.out.println("Error: Invalid number format: " + e.getMessage());
         } catch (CalculatorException e) {
             LOGGER.severe("Error during operation: " + e.getMessage());
             System.out.println("Error: " + e.getMessage());
@@ -70,25 +202,156 @@ public class EnhancedConsoleCalculator {
         }
     }
 
-    private double[] getTwoNumbers() throws CalculatorException {
-        double num1 = getSingleNumber();
-        double num2 = getSingleNumber();
-        return new double[]{num1, num2};
+    private void processExpression() {
+        try {
+            String input = getUserInput("Enter an expression (or name = expression): ");
+            String target = null;
+            int equals = input.indexOf('=');
+            if (equals >= 0) {
+                target = input.substring(0, equals).trim();
+                input = input.substring(equals + 1).trim();
+                if (!target.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+                    throw new CalculatorException("Invalid variable name: " + target);
+                }
+            }
+            CompiledExpression expression = expressions.compile(input);
+            List<String> names = expression.getVariables();
+            double[] values = new double[names.size()];
+            for (int i = 0; i < values.length; i++) {
+                Double known = variables.get(names.get(i));
+                values[i] = known != null ? known : getNamedNumber(names.get(i));
+            }
+            double result = expression.evaluate(values);
+            if (target != null) {
+                variables.put(target, result);
+                System.out.println(target + " = " + result);
+            } else {
+                System.out.println("Result: " + result);
+            }
+            String source = input;
+            LOGGER.info(() -> "Expression " + source + " evaluated successfully with result: " + result);
+        } catch (CalculatorException e) {
+            LOGGER.severe("Error during expression: " + e.getMessage());
+            System.out.println("Error: " + e.getMessage());
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Unexpected error: ", e);
+            System.out.println("An unexpected error occurred. Please try again.");
+        }
     }
 
-    private double getSingleNumber() throws CalculatorException {
-        String input = getUserInput("Enter a number: ");
+    private double getNamedNumber(String name) throws CalculatorException {
+        String input = getUserInput("Enter a value for " + name + ": ");
         try {
             return Double.parseDouble(input);
         } catch (NumberFormatException e) {
             throw new CalculatorException("Invalid number format: " + input);
         }
     }
+
 }
 
 interface Operation {
     double execute(double[] inputs) throws CalculatorException;
     boolean requiresTwoOperands();
+
+    /**
+     * Applies this operation to rows [from, to) of columnar operands, writing each row's
+     * result and {@link BatchStatus} code. Failures are reported per row rather than
+     * thrown; failed rows get a NaN result. {@code second} is ignored for single-operand
+     * operations.
+     *
+     * @return the number of failed rows
+     */
+    default int executeBatch(double[] first, double[] second, double[] results, byte[] status, int from, int to) {
+        double[] inputs = new double[requiresTwoOperands() ? 2 : 1];
+        int failures = 0;
+        for (int i = from; i < to; i++) {
+            inputs[0] = first[i];
+            if (inputs.length == 2) inputs[1] = second[i];
+            try {
+                results[i] = execute(inputs);
+                status[i] = BatchStatus.OK;
+            } catch (CalculatorException e) {
+                results[i] = Double.NaN;
+                status[i] = BatchStatus.FAILED;
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Decimal counterpart of {@link #execute(double[])}; results are rounded to {@code context}.
+     */
+    default BigDecimal execute(BigDecimal[] inputs, MathContext context) throws CalculatorException {
+        throw new CalculatorException(getClass().getSimpleName() + " does not support decimal arithmetic.");
+    }
+
+    /**
+     * Fixed-point counterpart of {@link #execute(double[])}; inputs and result are scaled
+     * longs in {@code format}. Implementations should not allocate unless they throw.
+     */
+    default long executeFixed(long[] inputs, FixedPoint format) throws CalculatorException {
+        throw new CalculatorException(getClass().getSimpleName() + " does not support fixed-point arithmetic.");
+    }
+}
+
+/**
+ * Per-row outcome codes for batch evaluation, mirroring the errors the scalar
+ * operations throw.
+ */
+final class BatchStatus {
+    static final byte OK = 0;
+    static final byte DIVISION_BY_ZERO = 1;
+    static final byte NEGATIVE_SQUARE_ROOT = 2;
+    static final byte NON_POSITIVE_LOGARITHM = 3;
+    // An Operation without a batch implementation threw
+    static final byte FAILED = 4;
+
+    private BatchStatus() {
+    }
+
+    static String message(byte status) {
+        switch (status) {
+            case OK: return "OK";
+            case DIVISION_BY_ZERO: return "Division by zero is not allowed.";
+            case NEGATIVE_SQUARE_ROOT: return "Square root of a negative number is not allowed.";
+            case NON_POSITIVE_LOGARITHM: return "Logarithm of a non-positive number is not allowed.";
+            default: return "Operation failed.";
+        }
+    }
+
+    // The reject methods are branch-free so the loops vectorize; a row keeps its first failure
+
+    static void rejectZero(double[] divisors, byte[] status, int from, int to) {
+        for (int i = from; i < to; i++) {
+            status[i] = status[i] == OK && divisors[i] == 0 ? DIVISION_BY_ZERO : status[i];
+        }
+    }
+
+    static void rejectNegative(double[] operands, byte[] status, int from, int to) {
+        for (int i = from; i < to; i++) {
+            status[i] = status[i] == OK && operands[i] < 0 ? NEGATIVE_SQUARE_ROOT : status[i];
+        }
+    }
+
+    static void rejectNonPositive(double[] operands, byte[] status, int from, int to) {
+        for (int i = from; i < to; i++) {
+            status[i] = status[i] == OK && operands[i] <= 0 ? NON_POSITIVE_LOGARITHM : status[i];
+        }
+    }
+
+    // Sets failed results to NaN and returns how many rows failed
+    static int finish(double[] results, byte[] status, int from, int to) {
+        int failures = 0;
+        for (int i = from; i < to; i++) {
+            if (status[i] != OK) {
+                results[i] = Double.NaN;
+                failures++;
+            }
+        }
+        return failures;
+    }
 }
 
 class CalculatorException extends Exception {
@@ -98,15 +361,24 @@ class CalculatorException extends Exception {
 }
 
 class OperationFactory {
+    // Operations are stateless, so one shared instance of each is enough
+    private static final Operation ADDITION = new Addition();
+    private static final Operation SUBTRACTION = new Subtraction();
+    private static final Operation MULTIPLICATION = new Multiplication();
+    private static final Operation DIVISION = new Division();
+    private static final Operation POWER = new Power();
+    private static final Operation SQUARE_ROOT = new SquareRoot();
+    private static final Operation LOGARITHM = new Logarithm();
+
     public static Operation getOperation(String choice) {
         switch (choice) {
-            case "1": return new Addition();
-            case "2": return new Subtraction();
-            case "3": return new Multiplication();
-            case "4": return new Division();
-            case "5": return new Power();
-            case "6": return new SquareRoot();
-            case "7": return new Logarithm();
+            case "1": return ADDITION;
+            case "2": return SUBTRACTION;
+            case "3": return MULTIPLICATION;
+            case "4": return DIVISION;
+            case "5": return POWER;
+            case "6": return SQUARE_ROOT;
+            case "7": return LOGARITHM;
             default: return null;
         }
     }
@@ -123,6 +395,23 @@ class Addition implements Operation {
     public boolean requiresTwoOperands() {
         return true;
     }
+
+    @Override
+    public BigDecimal execute(BigDecimal[] inputs, MathContext context) throws CalculatorException {
+        if (inputs.length != 2) throw new CalculatorException("Addition requires two numbers.");
+        return inputs[0].add(inputs[1], context);
+    }
+
+    @Override
+    public long executeFixed(long[] inputs, FixedPoint format) throws CalculatorException {
+        if (inputs.length != 2) throw new CalculatorException("Addition requires two numbers.");
+        return format.add(inputs[0], inputs[1]);
+    }
+
+    @Override
+    public int executeBatch(double[] first, double[] second, double[] results, byte[] status, int from, int to) {
+        return ExpressionFunction.ADD.applyBatch(first, second, results, status, from, to);
+    }
 }
 
 class Subtraction implements Operation {
@@ -136,6 +425,23 @@ class Subtraction implements Operation {
     public boolean requiresTwoOperands() {
         return true;
     }
+
+    @Override
+    public BigDecimal execute(BigDecimal[] inputs, MathContext context) throws CalculatorException {
+        if (inputs.length != 2) throw new CalculatorException("Subtraction requires two numbers.");
+        return inputs[0].subtract(inputs[1], context);
+    }
+
+    @Override
+    public long executeFixed(long[] inputs, FixedPoint format) throws CalculatorException {
+        if (inputs.length != 2) throw new CalculatorException("Subtraction requires two numbers.");
+        return format.subtract(inputs[0], inputs[1]);
+    }
+
+    @Override
+    public int executeBatch(double[] first, double[] second, double[] results, byte[] status, int from, int to) {
+        return ExpressionFunction.SUBTRACT.applyBatch(first, second, results, status, from, to);
+    }
 }
 
 class Multiplication implements Operation {
@@ -149,6 +455,23 @@ class Multiplication implements Operation {
     public boolean requiresTwoOperands() {
         return true;
     }
+
+    @Override
+    public BigDecimal execute(BigDecimal[] inputs, MathContext context) throws CalculatorException {
+        if (inputs.length != 2) throw new CalculatorException("Multiplication requires two numbers.");
+        return inputs[0].multiply(inputs[1], context);
+    }
+
+    @Override
+    public long executeFixed(long[] inputs, FixedPoint format) throws CalculatorException {
+        if (inputs.length != 2) throw new CalculatorException("Multiplication requires two numbers.");
+        return format.multiply(inputs[0], inputs[1]);
+    }
+
+    @Override
+    public int executeBatch(double[] first, double[] second, double[] results, byte[] status, int from, int to) {
+        return ExpressionFunction.MULTIPLY.applyBatch(first, second, results, status, from, to);
+    }
 }
 
 class Division implements Operation {
@@ -163,6 +486,24 @@ class Division implements Operation {
     public boolean requiresTwoOperands() {
         return true;
     }
+
+    @Override
+    public BigDecimal execute(BigDecimal[] inputs, MathContext context) throws CalculatorException {
+        if (inputs.length != 2) throw new CalculatorException("Division requires two numbers.");
+        if (inputs[1].signum() == 0) throw new CalculatorException("Division by zero is not allowed.");
+        return inputs[0].divide(inputs[1], context);
+    }
+
+    @Override
+    public long executeFixed(long[] inputs, FixedPoint format) throws CalculatorException {
+        if (inputs.length != 2) throw new CalculatorException("Division requires two numbers.");
+        return format.divide(inputs[0], inputs[1]);
+    }
+
+    @Override
+    public int executeBatch(double[] first, double[] second, double[] results, byte[] status, int from, int to) {
+        return ExpressionFunction.DIVIDE.applyBatch(first, second, results, status, from, to);
+    }
 }
 
 class Power implements Operation {
@@ -176,6 +517,43 @@ class Power implements Operation {
     public boolean requiresTwoOperands() {
         return true;
     }
+
+    @Override
+    public BigDecimal execute(BigDecimal[] inputs, MathContext context) throws CalculatorException {
+        if (inputs.length != 2) throw new CalculatorException("Power requires two numbers.");
+        return pow(inputs[0], inputs[1], context);
+    }
+
+    @Override
+    public long executeFixed(long[] inputs, FixedPoint format) throws CalculatorException {
+        if (inputs.length != 2) throw new CalculatorException("Power requires two numbers.");
+        return format.pow(inputs[0], inputs[1]);
+    }
+
+    @Override
+    public int executeBatch(double[] first, double[] second, double[] results, byte[] status, int from, int to) {
+        return ExpressionFunction.POW.applyBatch(first, second, results, status, from, to);
+    }
+
+    // Whole exponents are exact up to the context's precision; fractional ones go through double
+    private static BigDecimal pow(BigDecimal base, BigDecimal exponent, MathContext context) throws CalculatorException {
+        try {
+            if (exponent.signum() == 0 || exponent.stripTrailingZeros().scale() <= 0) {
+                if (base.signum() == 0 && exponent.signum() < 0) {
+                    throw new CalculatorException("Division by zero is not allowed.");
+                }
+                return base.pow(exponent.intValueExact(), context);
+            }
+        } catch (ArithmeticException e) {
+            throw new CalculatorException("Power result is out of range.");
+        }
+        if (base.signum() < 0) {
+            throw new CalculatorException("A negative number cannot be raised to a fractional power.");
+        }
+        double result = Math.pow(base.doubleValue(), exponent.doubleValue());
+        if (Double.isInfinite(result)) throw new CalculatorException("Power result is out of range.");
+        return BigDecimal.valueOf(result).round(context);
+    }
 }
 
 class SquareRoot implements Operation {
@@ -190,6 +568,24 @@ class SquareRoot implements Operation {
     public boolean requiresTwoOperands() {
         return false;
     }
+
+    @Override
+    public BigDecimal execute(BigDecimal[] inputs, MathContext context) throws CalculatorException {
+        if (inputs.length != 1) throw new CalculatorException("Square root requires one number.");
+        if (inputs[0].signum() < 0) throw new CalculatorException("Square root of a negative number is not allowed.");
+        return inputs[0].sqrt(context);
+    }
+
+    @Override
+    public long executeFixed(long[] inputs, FixedPoint format) throws CalculatorException {
+        if (inputs.length != 1) throw new CalculatorException("Square root requires one number.");
+        return format.sqrt(inputs[0]);
+    }
+
+    @Override
+    public int executeBatch(double[] first, double[] second, double[] results, byte[] status, int from, int to) {
+        return ExpressionFunction.SQRT.applyBatch(first, second, results, status, from, to);
+    }
 }
 
 class Logarithm implements Operation {
@@ -204,4 +600,1256 @@ class Logarithm implements Operation {
     public boolean requiresTwoOperands() {
         return false;
     }
+
+    @Override
+    public BigDecimal execute(BigDecimal[] inputs, MathContext context) throws CalculatorException {
+        if (inputs.length != 1) throw new CalculatorException("Logarithm requires one number.");
+        return log10(inputs[0], context);
+    }
+
+    @Override
+    public long executeFixed(long[] inputs, FixedPoint format) throws CalculatorException {
+        if (inputs.length != 1) throw new CalculatorException("Logarithm requires one number.");
+        return format.log10(inputs[0]);
+    }
+
+    @Override
+    public int executeBatch(double[] first, double[] second, double[] results, byte[] status, int from, int to) {
+        return ExpressionFunction.LOG10.applyBatch(first, second, results, status, from, to);
+    }
+
+    // x = m * 10^k with 1 <= m < 10, so log10(x) = k + log10(m): exact for powers of ten and
+    // otherwise accurate to double precision, for magnitudes far beyond the double range
+    private static BigDecimal log10(BigDecimal x, MathContext context) throws CalculatorException {
+        if (x.signum() <= 0) throw new CalculatorException("Logarithm of a non-positive number is not allowed.");
+        int exponent = x.precision() - x.scale() - 1;
+        double mantissa = x.movePointLeft(exponent).doubleValue();
+        return BigDecimal.valueOf(exponent).add(BigDecimal.valueOf(Math.log10(mantissa)), context);
+    }
+}
+
+/**
+ * The operators and built-in functions an expression may use. Each keeps the error
+ * semantics of the matching {@link Operation}: division by zero, the square root of a
+ * negative number and the logarithm of a non-positive number are rejected.
+ */
+enum ExpressionFunction {
+    ADD(null, 2) {
+        double apply(double a, double b) { return a + b; }
+    },
+    SUBTRACT(null, 2) {
+        double apply(double a, double b) { return a - b; }
+    },
+    MULTIPLY(null, 2) {
+        double apply(double a, double b) { return a * b; }
+    },
+    DIVIDE(null, 2) {
+        double apply(double a, double b) throws CalculatorException {
+            if (b == 0) throw new CalculatorException("Division by zero is not allowed.");
+            return a / b;
+        }
+    },
+    REMAINDER(null, 2) {
+        double apply(double a, double b) throws CalculatorException {
+            if (b == 0) throw new CalculatorException("Division by zero is not allowed.");
+            return a % b;
+        }
+    },
+    NEGATE(null, 1) {
+        double apply(double a, double b) { return -a; }
+    },
+    POW("pow", 2) {
+        double apply(double a, double b) { return Math.pow(a, b); }
+    },
+    SQRT("sqrt", 1) {
+        double apply(double a, double b) throws CalculatorException {
+            if (a < 0) throw new CalculatorException("Square root of a negative number is not allowed.");
+            return Math.sqrt(a);
+        }
+    },
+    LOG10("log10", 1) {
+        double apply(double a, double b) throws CalculatorException {
+            if (a <= 0) throw new CalculatorException("Logarithm of a non-positive number is not allowed.");
+            return Math.log10(a);
+        }
+    },
+    LN("ln", 1) {
+        double apply(double a, double b) throws CalculatorException {
+            if (a <= 0) throw new CalculatorException("Logarithm of a non-positive number is not allowed.");
+            return Math.log(a);
+        }
+    },
+    EXP("exp", 1) {
+        double apply(double a, double b) { return Math.exp(a); }
+    },
+    ABS("abs", 1) {
+        double apply(double a, double b) { return Math.abs(a); }
+    },
+    SIN("sin", 1) {
+        double apply(double a, double b) { return Math.sin(a); }
+    },
+    COS("cos", 1) {
+        double apply(double a, double b) { return Math.cos(a); }
+    },
+    TAN("tan", 1) {
+        double apply(double a, double b) { return Math.tan(a); }
+    },
+    ATAN2("atan2", 2) {
+        double apply(double a, double b) { return Math.atan2(a, b); }
+    },
+    HYPOT("hypot", 2) {
+        double apply(double a, double b) { return Math.hypot(a, b); }
+    },
+    MIN("min", 2) {
+        double apply(double a, double b) { return Math.min(a, b); }
+    },
+    MAX("max", 2) {
+        double apply(double a, double b) { return Math.max(a, b); }
+    },
+    FLOOR("floor", 1) {
+        double apply(double a, double b) { return Math.floor(a); }
+    },
+    CEIL("ceil", 1) {
+        double apply(double a, double b) { return Math.ceil(a); }
+    },
+    ROUND("round", 1) {
+        double apply(double a, double b) { return Math.rint(a); }
+    };
+
+    private static final Map<String, ExpressionFunction> BY_NAME = new HashMap<>();
+
+    static {
+        for (ExpressionFunction function : values()) {
+            if (function.functionName != null) BY_NAME.put(function.functionName, function);
+        }
+    }
+
+    private final String functionName;
+    private final int arity;
+
+    ExpressionFunction(String functionName, int arity) {
+        this.functionName = functionName;
+        this.arity = arity;
+    }
+
+    // Unary functions ignore b
+    abstract double apply(double a, double b) throws CalculatorException;
+
+    /**
+     * Applies this function element-wise over [from, to): out[i] = f(a[i], b[i]). Each case is
+     * a plain counted loop over primitive arrays, which C2 compiles to SIMD instructions where
+     * the platform has them. Elements this function rejects are flagged in {@code status}
+     * unless an earlier step already failed them. {@code out} may be {@code a} or {@code b};
+     * {@code b} is ignored (and may be null) for unary functions.
+     */
+    void applyRange(double[] a, double[] b, double[] out, byte[] status, int from, int to) {
+        switch (this) {
+            case ADD: for (int i = from; i < to; i++) out[i] = a[i] + b[i]; break;
+            case SUBTRACT: for (int i = from; i < to; i++) out[i] = a[i] - b[i]; break;
+            case MULTIPLY: for (int i = from; i < to; i++) out[i] = a[i] * b[i]; break;
+            case DIVIDE:
+                BatchStatus.rejectZero(b, status, from, to);
+                for (int i = from; i < to; i++) out[i] = a[i] / b[i];
+                break;
+            case REMAINDER:
+                BatchStatus.rejectZero(b, status, from, to);
+                for (int i = from; i < to; i++) out[i] = a[i] % b[i];
+                break;
+            case NEGATE: for (int i = from; i < to; i++) out[i] = -a[i]; break;
+            case POW: for (int i = from; i < to; i++) out[i] = Math.pow(a[i], b[i]); break;
+            case SQRT:
+                BatchStatus.rejectNegative(a, status, from, to);
+                for (int i = from; i < to; i++) out[i] = Math.sqrt(a[i]);
+                break;
+            case LOG10:
+                BatchStatus.rejectNonPositive(a, status, from, to);
+                for (int i = from; i < to; i++) out[i] = Math.log10(a[i]);
+                break;
+            case LN:
+                BatchStatus.rejectNonPositive(a, status, from, to);
+                for (int i = from; i < to; i++) out[i] = Math.log(a[i]);
+                break;
+            case EXP: for (int i = from; i < to; i++) out[i] = Math.exp(a[i]); break;
+            case ABS: for (int i = from; i < to; i++) out[i] = Math.abs(a[i]); break;
+            case SIN: for (int i = from; i < to; i++) out[i] = Math.sin(a[i]); break;
+            case COS: for (int i = from; i < to; i++) out[i] = Math.cos(a[i]); break;
+            case TAN: for (int i = from; i < to; i++) out[i] = Math.tan(a[i]); break;
+            case ATAN2: for (int i = from; i < to; i++) out[i] = Math.atan2(a[i], b[i]); break;
+            case HYPOT: for (int i = from; i < to; i++) out[i] = Math.hypot(a[i], b[i]); break;
+            case MIN: for (int i = from; i < to; i++) out[i] = Math.min(a[i], b[i]); break;
+            case MAX: for (int i = from; i < to; i++) out[i] = Math.max(a[i], b[i]); break;
+            case FLOOR: for (int i = from; i < to; i++) out[i] = Math.floor(a[i]); break;
+            case CEIL: for (int i = from; i < to; i++) out[i] = Math.ceil(a[i]); break;
+            case ROUND: for (int i = from; i < to; i++) out[i] = Math.rint(a[i]); break;
+            default: throw new AssertionError(this);
+        }
+    }
+
+    // A complete batch: status is reset, failed results become NaN, and the failure count is returned
+    int applyBatch(double[] a, double[] b, double[] out, byte[] status, int from, int to) {
+        Arrays.fill(status, from, to, BatchStatus.OK);
+        applyRange(a, b, out, status, from, to);
+        return BatchStatus.finish(out, status, from, to);
+    }
+
+    int arity() {
+        return arity;
+    }
+
+    static ExpressionFunction byName(String name) {
+        return BY_NAME.get(name);
+    }
+}
+
+/**
+ * A node of a compiled expression tree. Evaluation reads variables by slot from the array
+ * passed in and allocates nothing, so a compiled expression can be evaluated repeatedly and
+ * from several threads at once.
+ */
+abstract class ExpressionNode {
+    abstract double evaluate(double[] variables) throws CalculatorException;
+
+    /**
+     * Evaluates rows [offset, offset + length) of the variable columns into out[0, length).
+     * Intermediate results are written to {@code scratch[depth]} and deeper, never shallower.
+     */
+    abstract void evaluateBlock(double[][] columns, int offset, int length, double[] out, byte[] status,
+                                double[][] scratch, int depth);
+
+    // Number of scratch blocks evaluateBlock needs below this node
+    int scratchDepth() {
+        return 0;
+    }
+
+    // Nodes on the longest path from this one down to a leaf, which is how deep evaluation recurses
+    int height() {
+        return 1;
+    }
+
+    boolean isConstant() {
+        return false;
+    }
+}
+
+final class ConstantNode extends ExpressionNode {
+    private final double value;
+
+    ConstantNode(double value) {
+        this.value = value;
+    }
+
+    @Override
+    double evaluate(double[] variables) {
+        return value;
+    }
+
+    @Override
+    void evaluateBlock(double[][] columns, int offset, int length, double[] out, byte[] status,
+                       double[][] scratch, int depth) {
+        Arrays.fill(out, 0, length, value);
+    }
+
+    @Override
+    boolean isConstant() {
+        return true;
+    }
+}
+
+final class VariableNode extends ExpressionNode {
+    private final int slot;
+
+    VariableNode(int slot) {
+        this.slot = slot;
+    }
+
+    @Override
+    double evaluate(double[] variables) {
+        return variables[slot];
+    }
+
+    @Override
+    void evaluateBlock(double[][] columns, int offset, int length, double[] out, byte[] status,
+                       double[][] scratch, int depth) {
+        System.arraycopy(columns[slot], offset, out, 0, length);
+    }
+}
+
+final class UnaryNode extends ExpressionNode {
+    private final ExpressionFunction function;
+    private final ExpressionNode operand;
+    // Worked out once here rather than by walking the tree again
+    private final int scratchDepth;
+    private final int height;
+
+    UnaryNode(ExpressionFunction function, ExpressionNode operand) {
+        this.function = function;
+        this.operand = operand;
+        this.scratchDepth = operand.scratchDepth();
+        this.height = 1 + operand.height();
+    }
+
+    @Override
+    double evaluate(double[] variables) throws CalculatorException {
+        return function.apply(operand.evaluate(variables), 0);
+    }
+
+    @Override
+    void evaluateBlock(double[][] columns, int offset, int length, double[] out, byte[] status,
+                       double[][] scratch, int depth) {
+        operand.evaluateBlock(columns, offset, length, out, status, scratch, depth);
+        function.applyRange(out, null, out, status, 0, length);
+    }
+
+    @Override
+    int scratchDepth() {
+        return scratchDepth;
+    }
+
+    @Override
+    int height() {
+        return height;
+    }
+}
+
+final class BinaryNode extends ExpressionNode {
+    private final ExpressionFunction function;
+    private final ExpressionNode left;
+    private final ExpressionNode right;
+    // Worked out once here rather than by walking the tree again
+    private final int scratchDepth;
+    private final int height;
+
+    BinaryNode(ExpressionFunction function, ExpressionNode left, ExpressionNode right) {
+        this.function = function;
+        this.left = left;
+        this.right = right;
+        this.scratchDepth = Math.max(left.scratchDepth(), 1 + right.scratchDepth());
+        this.height = 1 + Math.max(left.height(), right.height());
+    }
+
+    @Override
+    double evaluate(double[] variables) throws CalculatorException {
+        return function.apply(left.evaluate(variables), right.evaluate(variables));
+    }
+
+    // The left operand is evaluated into out, the right one into this depth's scratch block
+    @Override
+    void evaluateBlock(double[][] columns, int offset, int length, double[] out, byte[] status,
+                       double[][] scratch, int depth) {
+        left.evaluateBlock(columns, offset, length, out, status, scratch, depth);
+        double[] operand = scratch[depth];
+        right.evaluateBlock(columns, offset, length, operand, status, scratch, depth + 1);
+        function.applyRange(out, operand, out, status, 0, length);
+    }
+
+    @Override
+    int scratchDepth() {
+        return scratchDepth;
+    }
+
+    @Override
+    int height() {
+        return height;
+    }
+}
+
+/**
+ * An expression parsed once into a tree. Variables are numbered in order of first
+ * appearance; {@link #evaluate(double[])} takes their values in that order.
+ */
+final class CompiledExpression {
+    // Rows evaluated per pass over the tree; small enough that a block and its scratch stay in cache
+    private static final int BLOCK_ROWS = 1024;
+
+    private final String source;
+    private final String[] variables;
+    private final ExpressionNode root;
+    private final int scratchDepth;
+
+    CompiledExpression(String source, String[] variables, ExpressionNode root) {
+        this.source = source;
+        this.variables = variables;
+        this.root = root;
+        this.scratchDepth = root.scratchDepth();
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public List<String> getVariables() {
+        return Collections.unmodifiableList(Arrays.asList(variables));
+    }
+
+    public double evaluate(double[] values) throws CalculatorException {
+        if (values.length < variables.length) {
+            throw new CalculatorException("Expression requires " + variables.length + " variable values.");
+        }
+        return root.evaluate(values);
+    }
+
+    /**
+     * Evaluates rows [from, to) column-wise: {@code columns[v][row]} holds the value of
+     * variable v. Instead of throwing, rows that fail get a {@link BatchStatus} code and a
+     * NaN result; a row keeps the first failure in evaluation order, which is the error
+     * {@link #evaluate(double[])} would have thrown for it.
+     *
+     * @return the number of failed rows
+     */
+    public int evaluateBatch(double[][] columns, double[] results, byte[] status, int from, int to)
+            throws CalculatorException {
+        if (columns.length < variables.length) {
+            throw new CalculatorException("Expression requires " + variables.length + " variable columns.");
+        }
+        int blockRows = Math.min(BLOCK_ROWS, Math.max(to - from, 0));
+        double[][] scratch = new double[scratchDepth][blockRows];
+        double[] block = new double[blockRows];
+        byte[] blockStatus = new byte[blockRows];
+        for (int start = from; start < to; start += blockRows) {
+            int length = Math.min(blockRows, to - start);
+            Arrays.fill(blockStatus, 0, length, BatchStatus.OK);
+            root.evaluateBlock(columns, start, length, block, blockStatus, scratch, 0);
+            System.arraycopy(block, 0, results, start, length);
+            System.arraycopy(blockStatus, 0, status, start, length);
+        }
+        return BatchStatus.finish(results, status, from, to);
+    }
+}
+
+/**
+ * Recursive-descent parser for infix expressions:
+ *
+ * <pre>
+ * expression := term (('+' | '-') term)*
+ * term       := unary (('*' | '/' | '%') unary)*
+ * unary      := ('-' | '+') unary | power
+ * power      := primary ('^' unary)?
+ * primary    := number | constant | variable | function '(' arguments ')' | '(' expression ')'
+ * </pre>
+ *
+ * {@code ^} is right-associative and binds tighter than unary minus, so {@code -2^2} is -4.
+ * Subtrees without variables are folded to constants while parsing, unless evaluating them
+ * fails, in which case the error is left to surface at evaluation time. Both the parser and
+ * evaluation recurse, so input nested deeper than {@link #MAX_DEPTH} is rejected, as is a
+ * tree that many nodes tall, which also bounds the scratch blocks of a batch evaluation.
+ */
+class ExpressionParser {
+    static final int MAX_DEPTH = 1000;
+
+    private final String source;
+    private final Map<String, Integer> variables = new LinkedHashMap<>();
+    private int position;
+    // Open parentheses, function calls and operators the parser is inside of
+    private int nesting;
+
+    private ExpressionParser(String source) {
+        this.source = source;
+    }
+
+    public static CompiledExpression parse(String source) throws CalculatorException {
+        ExpressionParser parser = new ExpressionParser(source);
+        ExpressionNode root = parser.parseExpression();
+        parser.skipWhitespace();
+        if (parser.position < source.length()) {
+            throw parser.error("Unexpected '" + source.charAt(parser.position) + "'");
+        }
+        String[] names = parser.variables.keySet().toArray(new String[0]);
+        return new CompiledExpression(source, names, root);
+    }
+
+    private ExpressionNode parseExpression() throws CalculatorException {
+        ExpressionNode node = parseTerm();
+        while (true) {
+            if (accept('+')) node = binary(ExpressionFunction.ADD, node, parseTerm());
+            else if (accept('-')) node = binary(ExpressionFunction.SUBTRACT, node, parseTerm());
+            else return node;
+        }
+    }
+
+    private ExpressionNode parseTerm() throws CalculatorException {
+        ExpressionNode node = parseUnary();
+        while (true) {
+            if (accept('*')) node = binary(ExpressionFunction.MULTIPLY, node, parseUnary());
+            else if (accept('/')) node = binary(ExpressionFunction.DIVIDE, node, parseUnary());
+            else if (accept('%')) node = binary(ExpressionFunction.REMAINDER, node, parseUnary());
+            else return node;
+        }
+    }
+
+    // Every level of nesting passes through here, so this is where it is counted
+    private ExpressionNode parseUnary() throws CalculatorException {
+        if (++nesting > MAX_DEPTH) throw error("Expression is nested more than " + MAX_DEPTH + " levels deep");
+        try {
+            if (accept('-')) return unary(ExpressionFunction.NEGATE, parseUnary());
+            if (accept('+')) return parseUnary();
+            return parsePower();
+        } finally {
+            nesting--;
+        }
+    }
+
+    private ExpressionNode parsePower() throws CalculatorException {
+        ExpressionNode base = parsePrimary();
+        if (accept('^')) return binary(ExpressionFunction.POW, base, parseUnary());
+        return base;
+    }
+
+    private ExpressionNode parsePrimary() throws CalculatorException {
+        skipWhitespace();
+        if (position >= source.length()) throw error("Unexpected end of expression");
+        char c = source.charAt(position);
+        if (accept('(')) {
+            ExpressionNode node = parseExpression();
+            expect(')');
+            return node;
+        }
+        if (Character.isDigit(c) || c == '.') return parseNumber();
+        if (Character.isLetter(c) || c == '_') return parseIdentifier();
+        throw error("Unexpected '" + c + "'");
+    }
+
+    private ExpressionNode parseNumber() throws CalculatorException {
+        int start = position;
+        while (position < source.length() && (Character.isDigit(source.charAt(position)) || source.charAt(position) == '.')) {
+            position++;
+        }
+        if (position < source.length() && (source.charAt(position) == 'e' || source.charAt(position) == 'E')) {
+            int exponent = position + 1;
+            if (exponent < source.length() && (source.charAt(exponent) == '+' || source.charAt(exponent) == '-')) exponent++;
+            if (exponent < source.length() && Character.isDigit(source.charAt(exponent))) {
+                position = exponent;
+                while (position < source.length() && Character.isDigit(source.charAt(position))) position++;
+            }
+        }
+        String number = source.substring(start, position);
+        try {
+            return new ConstantNode(Double.parseDouble(number));
+        } catch (NumberFormatException e) {
+            position = start;
+            throw error("Invalid number format: " + number);
+        }
+    }
+
+    private ExpressionNode parseIdentifier() throws CalculatorException {
+        int start = position;
+        while (position < source.length()
+                && (Character.isLetterOrDigit(source.charAt(position)) || source.charAt(position) == '_')) {
+            position++;
+        }
+        String name = source.substring(start, position);
+        if (accept('(')) {
+            ExpressionFunction function = ExpressionFunction.byName(name);
+            if (function == null) {
+                position = start;
+                throw error("Unknown function '" + name + "'");
+            }
+            ExpressionNode first = parseExpression();
+            if (function.arity() == 1) {
+                expect(')');
+                return unary(function, first);
+            }
+            expect(',');
+            ExpressionNode second = parseExpression();
+            expect(')');
+            return binary(function, first, second);
+        }
+        switch (name) {
+            case "pi": return new ConstantNode(Math.PI);
+            case "e": return new ConstantNode(Math.E);
+            default:
+                Integer slot = variables.get(name);
+                if (slot == null) {
+                    slot = variables.size();
+                    variables.put(name, slot);
+                }
+                return new VariableNode(slot);
+        }
+    }
+
+    private ExpressionNode unary(ExpressionFunction function, ExpressionNode operand) throws CalculatorException {
+        return fold(checkHeight(new UnaryNode(function, operand)), operand.isConstant());
+    }
+
+    private ExpressionNode binary(ExpressionFunction function, ExpressionNode left, ExpressionNode right)
+            throws CalculatorException {
+        return fold(checkHeight(new BinaryNode(function, left, right)), left.isConstant() && right.isConstant());
+    }
+
+    // A long chain such as 1+x+x+...+x nests no deeper than its first term, but its tree is as tall as it is long
+    private ExpressionNode checkHeight(ExpressionNode node) throws CalculatorException {
+        if (node.height() > MAX_DEPTH) throw error("Expression is nested more than " + MAX_DEPTH + " levels deep");
+        return node;
+    }
+
+    private static ExpressionNode fold(ExpressionNode node, boolean constant) {
+        if (!constant) return node;
+        try {
+            return new ConstantNode(node.evaluate(null));
+        } catch (CalculatorException e) {
+            return node;
+        }
+    }
+
+    private boolean accept(char expected) {
+        skipWhitespace();
+        if (position < source.length() && source.charAt(position) == expected) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char expected) throws CalculatorException {
+        if (!accept(expected)) {
+            throw error(position < source.length() ? "Expected '" + expected + "'" : "Missing '" + expected + "'");
+        }
+    }
+
+    private void skipWhitespace() {
+        while (position < source.length() && Character.isWhitespace(source.charAt(position))) position++;
+    }
+
+    private CalculatorException error(String message) {
+        return new CalculatorException(message + " at position " + (position + 1) + ".");
+    }
+}
+
+/**
+ * A bounded least-recently-used cache of compiled expressions keyed by their source text,
+ * so formulas that are evaluated repeatedly are parsed only once.
+ */
+class ExpressionCache {
+    private final Map<String, CompiledExpression> entries;
+
+    public ExpressionCache(final int capacity) {
+        this.entries = new LinkedHashMap<String, CompiledExpression>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public CompiledExpression compile(String source) throws CalculatorException {
+        synchronized (entries) {
+            CompiledExpression cached = entries.get(source);
+            if (cached != null) return cached;
+        }
+        // Parse outside the lock; if two threads race on the same source, both results are equivalent
+        CompiledExpression compiled = ExpressionParser.parse(source);
+        synchronized (entries) {
+            entries.put(source, compiled);
+        }
+        return compiled;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+}
+
+/**
+ * Evaluates a compiled expression over operand columns stored on disk: one file of
+ * little-endian doubles per variable, in the order {@link CompiledExpression#getVariables()}
+ * lists them. Results are written as a file of little-endian doubles and a status file
+ * with one {@link BatchStatus} byte per row. Files are mapped one chunk at a time, so
+ * their size is not bounded by the heap.
+ */
+final class MappedColumns {
+    private static final int CHUNK_ROWS = 1 << 20;
+
+    private MappedColumns() {
+    }
+
+    /**
+     * @return the number of failed rows
+     */
+    static long evaluate(CompiledExpression expression, List<Path> columnFiles, Path resultsFile, Path statusFile)
+            throws IOException, CalculatorException {
+        int variables = expression.getVariables().size();
+        if (columnFiles.size() != variables) {
+            throw new CalculatorException("Expression has " + variables + " variables but "
+                    + columnFiles.size() + " column files were given.");
+        }
+        List<FileChannel> columns = new ArrayList<>();
+        try (FileChannel results = FileChannel.open(resultsFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             FileChannel status = FileChannel.open(statusFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long rows = -1;
+            for (Path file : columnFiles) {
+                FileChannel column = FileChannel.open(file, StandardOpenOption.READ);
+                columns.add(column);
+                long size = column.size();
+                if (size % Double.BYTES != 0 || (rows >= 0 && size / Double.BYTES != rows)) {
+                    throw new CalculatorException("Column file " + file + " does not hold " + (rows >= 0 ? rows : "whole")
+                            + " doubles.");
+                }
+                rows = size / Double.BYTES;
+            }
+            if (rows < 0) {
+                throw new CalculatorException("Constant expressions need no column files; evaluate them directly.");
+            }
+
+            int chunkRows = (int) Math.min(CHUNK_ROWS, rows);
+            double[][] operands = new double[variables][chunkRows];
+            double[] chunkResults = new double[chunkRows];
+            byte[] chunkStatus = new byte[chunkRows];
+            long failures = 0;
+            for (long start = 0; start < rows; start += chunkRows) {
+                int length = (int) Math.min(chunkRows, rows - start);
+                for (int v = 0; v < variables; v++) {
+                    columns.get(v).map(FileChannel.MapMode.READ_ONLY, start * Double.BYTES, (long) length * Double.BYTES)
+                            .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(operands[v], 0, length);
+                }
+                failures += expression.evaluateBatch(operands, chunkResults, chunkStatus, 0, length);
+                results.map(FileChannel.MapMode.READ_WRITE, start * Double.BYTES, (long) length * Double.BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().put(chunkResults, 0, length);
+                status.map(FileChannel.MapMode.READ_WRITE, start, length).put(chunkStatus, 0, length);
+            }
+            return failures;
+        } finally {
+            for (FileChannel column : columns) {
+                column.close();
+            }
+        }
+    }
+}
+
+/**
+ * Headless evaluation of newline-delimited input. Each line is either an operation, given
+ * as a menu number or name followed by its operands ("4 10 2", "div 10 2", "sqrt 16") and
+ * computed in the chosen {@link NumericBackend}, or an expression without variables
+ * ("10 / 2 + sqrt(16)"), which is always computed in double. There is one output line per
+ * input line: the result at full precision, "Error: " and the message, or an empty line
+ * for an empty input line, so output can be lined up against input.
+ *
+ * Lines are independent of each other. With more than one worker, chunks of
+ * {@link #CHUNK_LINES} lines are evaluated on a thread pool while the calling thread reads
+ * ahead and writes finished chunks in input order; at most {@code 2 * workers} chunks are
+ * in flight, so memory stays bounded however large the input is.
+ */
+final class HeadlessCalculator {
+    private static final Logger LOGGER = Logger.getLogger(HeadlessCalculator.class.getName());
+    private static final int CHUNK_LINES = 8_192;
+    private static final int EXPRESSION_CACHE_SIZE = 1_024;
+    // Progress is logged once per this many lines rather than per line
+    private static final long PROGRESS_INTERVAL = 1_000_000;
+    private static final Map<String, String> OPERATION_NAMES = new HashMap<>();
+
+    static {
+        String[][] names = {
+                {"1", "add"}, {"2", "sub", "subtract"}, {"3", "mul", "multiply"}, {"4", "div", "divide"},
+                {"5", "pow", "power"}, {"6", "sqrt"}, {"7", "log", "log10"}};
+        for (String[] aliases : names) {
+            for (String alias : aliases) {
+                OPERATION_NAMES.put(alias, aliases[0]);
+            }
+        }
+    }
+
+    static final class Summary {
+        final long lines;
+        final long errors;
+
+        Summary(long lines, long errors) {
+            this.lines = lines;
+            this.errors = errors;
+        }
+    }
+
+    private static final class Chunk {
+        final StringBuilder output = new StringBuilder();
+        long errors;
+    }
+
+    // Per-thread state, so cache lookups and operand arrays are never shared between workers
+    private static final class Evaluator {
+        final ExpressionCache expressions = new ExpressionCache(EXPRESSION_CACHE_SIZE);
+        final String[] one = new String[1];
+        final String[] two = new String[2];
+        final String[] tokens = new String[4];
+    }
+
+    private static final double[] NO_VARIABLES = new double[0];
+
+    private final NumericBackend backend;
+    private final int workers;
+    private final ThreadLocal<Evaluator> evaluators = ThreadLocal.withInitial(Evaluator::new);
+
+    HeadlessCalculator(NumericBackend backend, int workers) {
+        this.backend = backend;
+        this.workers = Math.max(1, workers);
+    }
+
+    Summary run(BufferedReader input, Writer output) throws IOException {
+        Summary summary = workers == 1 ? runSequential(input, output) : runParallel(input, output);
+        output.flush();
+        return summary;
+    }
+
+    private Summary runSequential(BufferedReader input, Writer output) throws IOException {
+        Evaluator evaluator = evaluators.get();
+        Chunk chunk = new Chunk();
+        long lines = 0;
+        String line;
+        while ((line = input.readLine()) != null) {
+            evaluate(evaluator, ++lines, line, chunk);
+            if (chunk.output.length() >= 1 << 16) {
+                output.append(chunk.output);
+                chunk.output.setLength(0);
+            }
+            logProgress(lines - 1, lines);
+        }
+        output.append(chunk.output);
+        return new Summary(lines, chunk.errors);
+    }
+
+    private Summary runParallel(BufferedReader input, Writer output) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "calculator-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int maxInFlight = workers * 2;
+        ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+        long lines = 0;
+        long errors = 0;
+        try {
+            List<String> chunk = new ArrayList<>(CHUNK_LINES);
+            String line;
+            while (true) {
+                line = input.readLine();
+                if (line != null) chunk.add(line);
+                if (chunk.size() == CHUNK_LINES || (line == null && !chunk.isEmpty())) {
+                    List<String> submitted = chunk;
+                    long firstLine = lines + 1;
+                    inFlight.add(pool.submit(() -> evaluate(firstLine, submitted)));
+                    lines += submitted.size();
+                    logProgress(firstLine - 1, lines);
+                    chunk = new ArrayList<>(CHUNK_LINES);
+                }
+                // Write the oldest chunk when the window is full, and everything once the input is read
+                while (!inFlight.isEmpty() && (inFlight.size() >= maxInFlight || line == null)) {
+                    Chunk done = join(inFlight.poll());
+                    output.append(done.output);
+                    errors += done.errors;
+                }
+                if (line == null) break;
+            }
+        } finally {
+            for (Future<Chunk> pending : inFlight) pending.cancel(true);
+            pool.shutdownNow();
+        }
+        return new Summary(lines, errors);
+    }
+
+    private Chunk evaluate(long firstLine, List<String> lines) {
+        Evaluator evaluator = evaluators.get();
+        Chunk chunk = new Chunk();
+        long number = firstLine;
+        for (String line : lines) {
+            evaluate(evaluator, number++, line, chunk);
+        }
+        return chunk;
+    }
+
+    private void evaluate(Evaluator evaluator, long number, String line, Chunk chunk) {
+        StringBuilder out = chunk.output;
+        if (line.isBlank()) {
+            out.append('\n');
+            return;
+        }
+        int mark = out.length();
+        try {
+            evaluate(evaluator, line, out);
+            out.append('\n');
+        } catch (CalculatorException e) {
+            chunk.errors++;
+            out.setLength(mark);
+            out.append("Error: ").append(e.getMessage()).append('\n');
+            LOGGER.fine(() -> "Line " + number + ": " + e.getMessage());
+        }
+    }
+
+    private void evaluate(Evaluator evaluator, String line, StringBuilder out) throws CalculatorException {
+        String[] tokens = evaluator.tokens;
+        int count = tokenize(line, tokens);
+        String choice = count >= 2 && count <= 3 ? OPERATION_NAMES.get(tokens[0]) : null;
+        if (choice != null) {
+            Operation operation = OperationFactory.getOperation(choice);
+            String[] operands = operation.requiresTwoOperands() ? evaluator.two : evaluator.one;
+            if (count - 1 == operands.length) {
+                System.arraycopy(tokens, 1, operands, 0, operands.length);
+                int mark = out.length();
+                try {
+                    backend.execute(operation, operands, out);
+                    return;
+                } catch (NumberFormatException e) {
+                    // Not numbers, so not an operation line; "2 + 3" is read as an expression instead
+                    out.setLength(mark);
+                }
+            }
+        }
+        CompiledExpression expression = evaluator.expressions.compile(line.trim());
+        if (!expression.getVariables().isEmpty()) {
+            throw new CalculatorException("Undefined variable: " + expression.getVariables().get(0));
+        }
+        out.append(expression.evaluate(NO_VARIABLES));
+    }
+
+    // Splits on whitespace into at most tokens.length tokens; returns tokens.length + 1 if there are more
+    private static int tokenize(String line, String[] tokens) {
+        int count = 0;
+        int i = 0;
+        int length = line.length();
+        while (i < length) {
+            while (i < length && Character.isWhitespace(line.charAt(i))) i++;
+            if (i == length) break;
+            int start = i;
+            while (i < length && !Character.isWhitespace(line.charAt(i))) i++;
+            if (count == tokens.length) return count + 1;
+            tokens[count++] = line.substring(start, i);
+        }
+        return count;
+    }
+
+    private static void logProgress(long before, long after) {
+        if (before / PROGRESS_INTERVAL != after / PROGRESS_INTERVAL) {
+            LOGGER.info(() -> "Read " + after + " lines");
+        }
+    }
+
+    private static Chunk join(Future<Chunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch evaluation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Batch evaluation failed", e.getCause());
+        }
+    }
+}
+
+/**
+ * Fixed-point numbers held in a long scaled by 10^scale, so 12.34 at scale 2 is 1234.
+ * Addition and subtraction are exact; multiplication, division and square roots round
+ * half-even through a 128-bit intermediate, and powers round at each squaring step.
+ * Nothing allocates unless an operation fails. Results that do not fit in a long fail
+ * with "Fixed-point overflow." instead of wrapping around.
+ *
+ * The scale is capped at {@link #MAX_SCALE}, which keeps at least nine integer digits
+ * and lets square roots be computed from a double estimate plus an exact correction.
+ */
+final class FixedPoint {
+    static final int MAX_SCALE = 9;
+
+    private final int scale;
+    private final long factor;
+
+    FixedPoint(int scale) {
+        if (scale < 0 || scale > MAX_SCALE) {
+            throw new IllegalArgumentException("Fixed-point scale must be between 0 and " + MAX_SCALE + ": " + scale);
+        }
+        this.scale = scale;
+        long factor = 1;
+        for (int i = 0; i < scale; i++) factor *= 10;
+        this.factor = factor;
+    }
+
+    int scale() {
+        return scale;
+    }
+
+    /**
+     * Parses a plain decimal such as "-12.345", rounding extra fraction digits half-even.
+     *
+     * @throws NumberFormatException with the text as its message if it is not a plain decimal
+     *                               or does not fit
+     */
+    long parse(String text) {
+        int i = 0;
+        int length = text.length();
+        boolean negative = false;
+        if (i < length && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        int roundingDigit = -1;
+        boolean sticky = false;
+        try {
+            for (; i < length; i++) {
+                char c = text.charAt(i);
+                if (c == '.' && fractionDigits < 0) {
+                    fractionDigits = 0;
+                } else if (c >= '0' && c <= '9') {
+                    digits++;
+                    if (fractionDigits < 0 || fractionDigits < scale) {
+                        value = Math.addExact(Math.multiplyExact(value, 10), c - '0');
+                        if (fractionDigits >= 0) fractionDigits++;
+                    } else if (roundingDigit < 0) {
+                        roundingDigit = c - '0';
+                    } else {
+                        sticky |= c != '0';
+                    }
+                } else {
+                    throw new NumberFormatException(text);
+                }
+            }
+            if (digits == 0) throw new NumberFormatException(text);
+            for (int f = Math.max(fractionDigits, 0); f < scale; f++) {
+                value = Math.multiplyExact(value, 10);
+            }
+            if (roundingDigit > 5 || (roundingDigit == 5 && (sticky || (value & 1) == 1))) {
+                value = Math.addExact(value, 1);
+            }
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException(text);
+        }
+        return negative ? -value : value;
+    }
+
+    void format(long value, StringBuilder out) {
+        if (value < 0) out.append('-');
+        long magnitude = Math.abs(value);
+        out.append(magnitude / factor);
+        if (scale > 0) {
+            out.append('.');
+            long fraction = magnitude % factor;
+            for (long digit = factor / 10; digit > 0; digit /= 10) {
+                out.append((char) ('0' + fraction / digit % 10));
+            }
+        }
+    }
+
+    long add(long a, long b) throws CalculatorException {
+        long sum = a + b;
+        // Overflow iff both operands have the same sign and the sum's sign differs; MIN_VALUE stays unused
+        if (((a ^ sum) & (b ^ sum)) < 0 || sum == Long.MIN_VALUE) throw overflow();
+        return sum;
+    }
+
+    long subtract(long a, long b) throws CalculatorException {
+        long difference = a - b;
+        if (((a ^ b) & (a ^ difference)) < 0 || difference == Long.MIN_VALUE) throw overflow();
+        return difference;
+    }
+
+    long multiply(long a, long b) throws CalculatorException {
+        return multiplyDivide(a, b, factor);
+    }
+
+    long divide(long a, long b) throws CalculatorException {
+        if (b == 0) throw new CalculatorException("Division by zero is not allowed.");
+        return multiplyDivide(a, factor, b);
+    }
+
+    long pow(long base, long exponent) throws CalculatorException {
+        if (exponent % factor != 0) {
+            throw new CalculatorException("Fixed-point powers need a whole-number exponent.");
+        }
+        long n = Math.abs(exponent / factor);
+        long result = factor;
+        long square = base;
+        while (n > 0) {
+            if ((n & 1) == 1) result = multiply(result, square);
+            n >>= 1;
+            if (n > 0) square = multiply(square, square);
+        }
+        if (exponent < 0) {
+            if (result == 0) throw new CalculatorException("Division by zero is not allowed.");
+            result = multiplyDivide(factor, factor, result);
+        }
+        return result;
+    }
+
+    // sqrt(a / factor) * factor = sqrt(a * factor), rounded to the nearest integer
+    long sqrt(long a) throws CalculatorException {
+        if (a < 0) throw new CalculatorException("Square root of a negative number is not allowed.");
+        long root = (long) Math.sqrt((double) a * factor);
+        // The true remainder a * factor - root^2 is small, so computing it modulo 2^64 is exact
+        long remainder = a * factor - root * root;
+        while (remainder < 0) {
+            root--;
+            remainder += 2 * root + 1;
+        }
+        while (remainder > 2 * root) {
+            remainder -= 2 * root + 1;
+            root++;
+        }
+        return remainder > root ? root + 1 : root;
+    }
+
+    // Transcendental, so computed in double and rounded to this scale
+    long log10(long a) throws CalculatorException {
+        if (a <= 0) throw new CalculatorException("Logarithm of a non-positive number is not allowed.");
+        return Math.round(Math.log10((double) a / factor) * factor);
+    }
+
+    /**
+     * x * y / d rounded half-even, with the product held in 128 bits so it cannot overflow
+     * on the way.
+     */
+    static long multiplyDivide(long x, long y, long d) throws CalculatorException {
+        if (x == Long.MIN_VALUE || y == Long.MIN_VALUE || d == Long.MIN_VALUE) throw overflow();
+        boolean negative = (x < 0) ^ (y < 0) ^ (d < 0);
+        long ux = Math.abs(x);
+        long uy = Math.abs(y);
+        long ud = Math.abs(d);
+        long high = Math.multiplyHigh(ux, uy);
+        long low = ux * uy;
+        // The quotient needs more than 64 bits
+        if (high >= ud) throw overflow();
+        long quotient;
+        long remainder;
+        if (high == 0) {
+            quotient = Long.divideUnsigned(low, ud);
+            remainder = Long.remainderUnsigned(low, ud);
+        } else {
+            // Shift-subtract long division of high:low by ud; the remainder stays below ud < 2^63,
+            // so shifting it left never loses a bit
+            quotient = 0;
+            remainder = high;
+            for (int bit = 63; bit >= 0; bit--) {
+                remainder = (remainder << 1) | ((low >>> bit) & 1);
+                quotient <<= 1;
+                if (Long.compareUnsigned(remainder, ud) >= 0) {
+                    remainder -= ud;
+                    quotient |= 1;
+                }
+            }
+        }
+        long half = ud - remainder;
+        if (remainder > half || (remainder == half && (quotient & 1) == 1)) quotient++;
+        // Above Long.MAX_VALUE as an unsigned value
+        if (quotient < 0) throw overflow();
+        return negative ? -quotient : quotient;
+    }
+
+    private static CalculatorException overflow() {
+        return new CalculatorException("Fixed-point overflow.");
+    }
+}
+
+/**
+ * The number representation operations are carried out in: double (the default and
+ * fastest), BigDecimal rounded to a {@link MathContext}, or {@link FixedPoint} scaled
+ * longs. Chosen with "--numeric double|decimal[:precision]|fixed[:scale]".
+ */
+abstract class NumericBackend {
+    static final NumericBackend DOUBLE = new DoubleBackend();
+
+    static NumericBackend forName(String spec) throws CalculatorException {
+        int colon = spec.indexOf(':');
+        String name = colon < 0 ? spec : spec.substring(0, colon);
+        Integer parameter = null;
+        if (colon >= 0) {
+            try {
+                parameter = Integer.parseInt(spec.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new CalculatorException("Invalid numeric mode: " + spec);
+            }
+        }
+        switch (name) {
+            case "double":
+                if (parameter != null) throw new CalculatorException("The double mode takes no parameter.");
+                return DOUBLE;
+            case "decimal":
+                if (parameter == null) return new DecimalBackend(MathContext.DECIMAL128);
+                if (parameter < 1) throw new CalculatorException("Decimal precision must be at least 1.");
+                return new DecimalBackend(new MathContext(parameter, RoundingMode.HALF_EVEN));
+            case "fixed":
+                if (parameter == null) return new FixedPointBackend(new FixedPoint(4));
+                if (parameter < 0 || parameter > FixedPoint.MAX_SCALE) {
+                    throw new CalculatorException("Fixed-point scale must be between 0 and " + FixedPoint.MAX_SCALE + ".");
+                }
+                return new FixedPointBackend(new FixedPoint(parameter));
+            default:
+                throw new CalculatorException("Unknown numeric mode: " + spec + ". Use double, decimal[:precision] or fixed[:scale].");
+        }
+    }
+
+    abstract String describe();
+
+    /**
+     * Parses the operands, applies the operation and appends the formatted result.
+     *
+     * @throws NumberFormatException with the offending text as its message if an operand
+     *                               is not a number in this representation
+     */
+    abstract void execute(Operation operation, String[] operands, StringBuilder out) throws CalculatorException;
+}
+
+final class DoubleBackend extends NumericBackend {
+    @Override
+    String describe() {
+        return "double";
+    }
+
+    @Override
+    void execute(Operation operation, String[] operands, StringBuilder out) throws CalculatorException {
+        double[] inputs = new double[operands.length];
+        for (int i = 0; i < inputs.length; i++) {
+            try {
+                inputs[i] = Double.parseDouble(operands[i]);
+            } catch (NumberFormatException e) {
+                throw new NumberFormatException(operands[i]);
+            }
+        }
+        out.append(operation.execute(inputs));
+    }
+}
+
+final class DecimalBackend extends NumericBackend {
+    private final MathContext context;
+
+    DecimalBackend(MathContext context) {
+        this.context = context;
+    }
+
+    @Override
+    String describe() {
+        return "decimal, " + context.getPrecision() + " digits";
+    }
+
+    @Override
+    void execute(Operation operation, String[] operands, StringBuilder out) throws CalculatorException {
+        BigDecimal[] inputs = new BigDecimal[operands.length];
+        for (int i = 0; i < inputs.length; i++) {
+            try {
+                inputs[i] = new BigDecimal(operands[i]);
+            } catch (NumberFormatException e) {
+                throw new NumberFormatException(operands[i]);
+            }
+        }
+        out.append(operation.execute(inputs, context).toPlainString());
+    }
+}
+
+final class FixedPointBackend extends NumericBackend {
+    private final FixedPoint format;
+
+    FixedPointBackend(FixedPoint format) {
+        this.format = format;
+    }
+
+    @Override
+    String describe() {
+        return "fixed point, " + format.scale() + " decimal places";
+    }
+
+    @Override
+    void execute(Operation operation, String[] operands, StringBuilder out) throws CalculatorException {
+        long[] inputs = new long[operands.length];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = format.parse(operands[i]);
+        }
+        format.format(operation.executeFixed(inputs, format), out);
+    }
 }
@@ -1,120 +1,4369 @@
 // File: OnlineBankingApplication.java (Full Version with HTML Dashboard)
 package com.example.banking;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 @SpringBootApplication
 @RestController
 @RequestMapping("/api")
 public class OnlineBankingApplication {
 
-    public static void main(String[] args) {
-        SpringApplication.run(OnlineBankingApplication.class, args);
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // Self-checks against scratch data directories, without starting the server
+        if (args.length > 0 && args[0].equals("--recovery-test")) {
+            int cuts = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+            System.exit(RecoveryTest.run(cuts) ? 0 : 1);
+        }
+        if (args.length > 0 && args[0].equals("--stress")) {
+            int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 2;
+            long transfers = args.length > 2 ? Long.parseLong(args[2]) : 2_000_000L;
+            System.exit(StressTest.run(threads, transfers) ? 0 : 1);
+        }
+        SpringApplication app = new SpringApplication(OnlineBankingApplication.class);
+        // Requests run on virtual threads, so a request parked on the log flush does not hold a platform thread
+        app.setDefaultProperties(Map.of(
+                "spring.threads.virtual.enabled", "true",
+                "management.endpoints.web.exposure.include", "health,prometheus"));
+        app.run(args);
     }
 
-    private final Map<Long, Account> accountStore = new HashMap<>();
+    private final AccountTable accountStore;
+    private final Path snapshotFile;
+    private final Path legacySnapshotFile;
+    private final Path logFile;
     private final AtomicLong idGenerator = new AtomicLong();
-    private static final String FILE_NAME = "accounts.txt";
+    private static final String FILE_NAME = "accounts.snap";
+    private static final String LOG_FILE_NAME = "accounts.wal";
+    private static final String LEDGER_DIR_NAME = "ledger";
+    // CSV snapshot written before the binary format; migrated once at startup
+    private static final String LEGACY_FILE_NAME = "accounts.txt";
+    private static final String SEQ_HEADER = "#seq=";
+    // Number of logged mutations after which the snapshot is rewritten and covered log segments are dropped
+    private static final int SNAPSHOT_INTERVAL = 10_000;
+    // Power of two; each account id hashes to one stripe guarding its balance
+    private static final int LOCK_STRIPES = 1024;
+    // Optimistic attempts at a consistent read of several balances before locking their stripes
+    private static final int OPTIMISTIC_READS = 4;
+    // Rows per consistent chunk when streaming the whole table
+    private static final int STREAM_CHUNK_ROWS = 1024;
+    // Power of two; serialized responses for the most recently read accounts
+    private static final int ACCOUNT_CACHE_SLOTS = 4096;
+    private static final int MAX_BATCH_SIZE = 100_000;
+    // Names are logged with an unsigned 16-bit length
+    private static final int MAX_NAME_BYTES = 0xFFFF;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 10_000;
+    private static final String NDJSON = "application/x-ndjson";
+    private static final int LEDGER_QUEUE_CAPACITY = 1024;
+    private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+    // Stands in for an amount that is not a whole number of cents when comparing retried requests
+    private static final long INVALID_CENTS = Long.MIN_VALUE;
+    // Idempotency keys of the steps of a transfer between nodes, appended to the transfer's own key
+    private static final String DEBIT_SUFFIX = ":debit";
+    private static final String CREDIT_SUFFIX = ":credit";
+    private static final String REFUND_SUFFIX = ":refund";
+    private static final String SETTLED_SUFFIX = ":settled";
+    private static final int MAX_SAGA_KEY_LENGTH = MAX_IDEMPOTENCY_KEY_LENGTH - SETTLED_SUFFIX.length();
+    // Attempts at a cross-node credit within the request before it is left to the retry thread
+    private static final int CREDIT_ATTEMPTS = 3;
+    private static final long SAGA_RETRY_INTERVAL_MILLIS = 1000;
+    // Power of two; settling a saga holds one of these so no two threads settle it at once
+    private static final int SAGA_LOCKS = 64;
+    // Set on a listing request from another node, which wants this node's accounts only
+    private static final String SHARD_LOCAL = "X-Banking-Shard-Local";
+    // Replication stream: the replica sends [magic][cluster token][last sequence it holds, or -1 to be
+    // seeded]; the primary answers with messages tagged by one of these types
+    private static final int REPLICATION_MAGIC = 0x42525031; // "BRP1"
+    private static final byte REPLICATION_FILE = 1;
+    private static final byte REPLICATION_FILES_END = 2;
+    private static final byte REPLICATION_RECORDS = 3;
+    private static final byte REPLICATION_HEARTBEAT = 4;
+    private static final byte REPLICATION_REFUSED = 5;
+    // Longest a primary waits for frames before telling an idle replica it is still current
+    private static final long REPLICATION_HEARTBEAT_MILLIS = 100;
+    private static final int REPLICATION_HANDSHAKE_MILLIS = 2000;
+    private static final long REPLICATION_RETRY_MILLIS = 1000;
+
+    private final ObjectMapper objectMapper;
+    // Leaves flushing to the generator's buffer instead of flushing after every streamed account
+    private final ObjectWriter accountWriter;
+    private final ReentrantLock createLock = new ReentrantLock();
+    private final Stripe[] stripes = new Stripe[LOCK_STRIPES];
+    private final AccountJsonCache accountCache = new AccountJsonCache(ACCOUNT_CACHE_SLOTS);
+    private final TransactionLog transactionLog;
+    private final TransactionLedger ledger;
+    private final LedgerWriter ledgerWriter = new LedgerWriter();
+    private final IdempotencyCache idempotencyCache;
+    private final Cluster cluster;
+    // Cross-node transfers whose debit is made but whose credit has not been confirmed, by transfer key; snapshots
+    // keep these apart from the idempotency cache, which may evict the debit's key before the saga is settled
+    private final ConcurrentHashMap<String, IdempotencyCache.Entry> pendingSagas = new ConcurrentHashMap<>();
+    // Sagas a request is still settling itself, which the retry thread leaves alone until it hands them over
+    private final Set<String> settlingSagas = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock[] sagaLocks = new ReentrantLock[SAGA_LOCKS];
+    private final ScheduledExecutorService sagaExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "saga-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Applier applier = new Applier();
+    // Set while this node is a replica of another: writes are refused and reads are only served while fresh
+    private volatile boolean readOnly;
+    private final ReplicaLink replicaLink;
+    private final ReplicationServer replicationServer;
+    // Snapshots are written off the request path, one at a time
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "account-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean snapshotRunning = new AtomicBoolean();
+    private volatile long snapshotSeq;
+
+    // Meters are registered once up front; the hot path only records a nanoTime delta or bumps an adder
+    private final Timer createTimer;
+    private final Timer getTimer;
+    private final Timer historyTimer;
+    private final Timer transferTimer;
+    private final Timer batchTimer;
+    private final Timer saveTimer;
+    private final Timer loadTimer;
+    // One counter per TransferStatus, indexed by ordinal so counting needs no tag lookup
+    private final Counter[] transferOutcomes = new Counter[TransferStatus.values().length];
+    private final Counter lookupMisses;
+    private final Counter accountCacheMisses;
+    private final Counter idempotentReplays;
+    private final Counter snapshotFailures;
+
+    public OnlineBankingApplication(ObjectMapper objectMapper,
+                                    MeterRegistry meterRegistry,
+                                    @Value("${banking.dataDir:.}") String dataDir,
+                                    @Value("${banking.offHeap:false}") boolean offHeap,
+                                    @Value("${banking.durability:FSYNC}") TransactionLog.Durability durability,
+                                    @Value("${banking.log.maxPendingRecords:65536}") int maxPendingRecords,
+                                    @Value("${banking.idempotency.maxKeys:1000000}") int maxIdempotencyKeys,
+                                    @Value("${banking.idempotency.ttl:24h}") Duration idempotencyTtl,
+                                    @Value("${banking.ledger.partition:1h}") Duration ledgerPartition,
+                                    @Value("${banking.cluster.nodes:}") String clusterNodes,
+                                    @Value("${banking.cluster.self:}") String clusterSelf,
+                                    @Value("${banking.cluster.token:}") String clusterToken,
+                                    @Value("${banking.replication.listen:}") String replicationListen,
+                                    @Value("${banking.replication.primary:}") String replicationPrimary,
+                                    @Value("${banking.replication.maxStaleness:5s}") Duration maxStaleness) {
+        this.snapshotFile = Paths.get(dataDir, FILE_NAME);
+        this.legacySnapshotFile = Paths.get(dataDir, LEGACY_FILE_NAME);
+        this.logFile = Paths.get(dataDir, LOG_FILE_NAME);
+        this.accountStore = new AccountTable(offHeap);
+        this.idempotencyCache = new IdempotencyCache(maxIdempotencyKeys, idempotencyTtl);
+        this.cluster = new Cluster(clusterNodes, clusterSelf, clusterToken);
+        this.objectMapper = objectMapper;
+        this.accountWriter = objectMapper.writerFor(Account.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        for (int i = 0; i < sagaLocks.length; i++) {
+            sagaLocks[i] = new ReentrantLock();
+        }
+        this.createTimer = timer(meterRegistry, "banking.account.create", "Time to create and log an account");
+        this.getTimer = timer(meterRegistry, "banking.account.get", "Time to look up an account by id");
+        this.historyTimer = timer(meterRegistry, "banking.account.history", "Time to read an account's ledger history or past balance");
+        this.transferTimer = timer(meterRegistry, "banking.transfer", "Time to apply and commit a single transfer");
+        this.batchTimer = timer(meterRegistry, "banking.transfer.batch", "Time to apply and commit a batch of transfers");
+        this.saveTimer = timer(meterRegistry, "banking.snapshot.save", "Time to write an account snapshot");
+        this.loadTimer = timer(meterRegistry, "banking.snapshot.load", "Time to load the account snapshot at startup");
+        for (TransferStatus status : TransferStatus.values()) {
+            transferOutcomes[status.ordinal()] = Counter.builder("banking.transfers")
+                    .description("Transfers attempted, by outcome")
+                    .tag("outcome", status.name().toLowerCase(Locale.ROOT))
+                    .register(meterRegistry);
+        }
+        this.lookupMisses = Counter.builder("banking.account.lookup.misses")
+                .description("Account lookups for ids that do not exist")
+                .register(meterRegistry);
+        this.accountCacheMisses = Counter.builder("banking.account.cache.misses")
+                .description("Account lookups that had to serialize the account instead of reusing a cached response")
+                .register(meterRegistry);
+        this.idempotentReplays = Counter.builder("banking.transfer.replays")
+                .description("Retried transfers answered from the idempotency cache")
+                .register(meterRegistry);
+        this.snapshotFailures = Counter.builder("banking.snapshot.failures")
+                .description("Snapshots abandoned because of an I/O error")
+                .register(meterRegistry);
 
-    public OnlineBankingApplication() {
+        // Replicas authenticate with the cluster token, which nobody presents successfully while it is empty
+        if ((!replicationListen.isBlank() || !replicationPrimary.isBlank()) && clusterToken.isEmpty()) {
+            throw new IllegalArgumentException("banking.cluster.token must be set to use replication");
+        }
+        this.readOnly = !replicationPrimary.isBlank();
+        this.replicaLink = readOnly ? new ReplicaLink(socketAddress(replicationPrimary), clusterToken, maxStaleness) : null;
+        // A seeded ledger may run ahead of the snapshot; opening it below cuts back what the stream will deliver again
+        if (replicaLink != null && !Files.exists(snapshotFile) && !Files.exists(legacySnapshotFile) && !Files.exists(logFile)) {
+            try {
+                replicaLink.seed(Paths.get(dataDir));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to seed replica from primary " + replicationPrimary, e);
+            }
+        }
+
+        long loadStart = System.nanoTime();
         loadAccountsFromFile();
+        loadTimer.record(System.nanoTime() - loadStart, TimeUnit.NANOSECONDS);
+        long logSeq;
+        try {
+            logSeq = TransactionLog.recoverableSeq(logFile, snapshotSeq);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open transaction log " + logFile, e);
+        }
+        Path ledgerDir = Paths.get(dataDir, LEDGER_DIR_NAME);
+        try {
+            ledger = TransactionLedger.open(ledgerDir, ledgerPartition, snapshotSeq, logSeq);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open transaction ledger " + ledgerDir, e);
+        }
+        try {
+            transactionLog = TransactionLog.open(logFile, snapshotSeq, durability, maxPendingRecords, applier);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open transaction log " + logFile, e);
+        }
+        ledger.endRecovery(transactionLog);
+        if (cluster.clustered()) checkOwnership();
+        // Rewriting the CSV snapshot in the binary format makes it safe to remove
+        if (Files.exists(legacySnapshotFile) && writeSnapshot()) {
+            try {
+                Files.deleteIfExists(legacySnapshotFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        ledgerWriter.start();
+        try {
+            replicationServer = replicationListen.isBlank() ? null : new ReplicationServer(socketAddress(replicationListen));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to listen for replicas on " + replicationListen, e);
+        }
+        if (replicaLink != null) replicaLink.start();
+
+        Gauge.builder("banking.accounts", accountStore, AccountTable::size)
+                .description("Accounts held in the store")
+                .register(meterRegistry);
+        Gauge.builder("banking.log.pending", transactionLog, TransactionLog::pendingRecords)
+                .description("Log records appended but not yet written to the file")
+                .register(meterRegistry);
+        Gauge.builder("banking.ledger.queue", ledgerWriter, LedgerWriter::queued)
+                .description("Batches waiting for the ledger writer")
+                .register(meterRegistry);
+        Gauge.builder("banking.idempotency.keys", idempotencyCache, IdempotencyCache::size)
+                .description("Idempotency keys remembered for retried transfers")
+                .register(meterRegistry);
+        if (replicaLink != null) {
+            Gauge.builder("banking.replication.lag", replicaLink, ReplicaLink::lagMillis)
+                    .description("Milliseconds since this replica last knew it had every record the primary had made durable")
+                    .baseUnit("milliseconds")
+                    .register(meterRegistry);
+        }
+        if (replicationServer != null) {
+            Gauge.builder("banking.replication.replicas", replicationServer, ReplicationServer::connected)
+                    .description("Replicas streaming this node's log")
+                    .register(meterRegistry);
+        }
+    }
+
+    private static InetSocketAddress socketAddress(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Expected host:port but got " + hostAndPort);
+        return new InetSocketAddress(hostAndPort.substring(0, colon).strip(), Integer.parseInt(hostAndPort.substring(colon + 1).strip()));
+    }
+
+    // Started once the node is fully constructed, since the retry thread calls back into it
+    @PostConstruct
+    void resumeSagas() {
+        if (cluster.clustered() && !readOnly) startSagas();
+    }
+
+    private void startSagas() {
+        findPendingSagas();
+        sagaExecutor.scheduleWithFixedDelay(this::retryPendingSagas,
+                SAGA_RETRY_INTERVAL_MILLIS, SAGA_RETRY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static Timer timer(MeterRegistry registry, String name, String description) {
+        return Timer.builder(name)
+                .description(description)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    // Routes lookups of accounts held by other nodes before they reach this node's handlers
+    @Bean
+    FilterRegistrationBean<ShardRouter> shardRouter() {
+        FilterRegistrationBean<ShardRouter> registration = new FilterRegistrationBean<>(new ShardRouter(cluster));
+        registration.addUrlPatterns("/api/accounts/*");
+        return registration;
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        sagaExecutor.shutdownNow();
+        if (replicaLink != null) replicaLink.stop();
+        if (replicationServer != null) replicationServer.close();
+        ledgerWriter.stop();
+        snapshotExecutor.shutdown();
+        try {
+            snapshotExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        transactionLog.close();
+        ledger.close();
     }
 
     // Create Account
     @PostMapping("/accounts")
     public Account createAccount(@RequestBody Account account) {
-        long id = idGenerator.incrementAndGet();
-        account.setId(id);
-        accountStore.put(id, account);
-        saveAccountsToFile();
-        return account;
+        checkWritable();
+        long start = System.nanoTime();
+        try {
+            return insertAccount(account);
+        } finally {
+            createTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Account insertAccount(Account account) {
+        String name = account.getName() == null ? "" : account.getName();
+        // Checked before anything is inserted: the log could not hold a longer name
+        if (name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Account name must be at most " + MAX_NAME_BYTES + " bytes.");
+        }
+        long balanceCents;
+        try {
+            balanceCents = account.getBalance() == null ? 0 : toCents(account.getBalance());
+        } catch (ArithmeticException e) {
+            balanceCents = INVALID_CENTS;
+        }
+        // A sub-cent or negative opening balance is refused, as a transfer of one would be
+        if (balanceCents < 0) throw new ResponseStatusException(HttpStatus.BAD_REQUEST, TransferStatus.INVALID_AMOUNT.message);
+        long id;
+        long seq;
+        // Creates are serialized so ids reach the table, and the log, in ascending order
+        createLock.lock();
+        try {
+            id = nextAccountId();
+            // Held until the record is logged so no transfer on this id can be logged before its creation
+            Stripe lock = stripeFor(id);
+            lock.lock();
+            try {
+                accountStore.insert(id, name, balanceCents);
+                long now = System.currentTimeMillis();
+                seq = transactionLog.appendCreate(id, name, balanceCents, now);
+                ledger.append(seq, now, 0, id, balanceCents, 0, balanceCents);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            createLock.unlock();
+        }
+        commit(seq);
+        return new Account(id, name, fromCents(balanceCents));
+    }
+
+    // Each node only hands out ids the ring assigns to it, so ids never clash across nodes
+    private long nextAccountId() {
+        long id;
+        do {
+            id = idGenerator.incrementAndGet();
+        } while (!cluster.owns(id));
+        return id;
     }
 
     // Get Account by ID
+    public Account getAccount(Long id) {
+        checkReadable();
+        long start = System.nanoTime();
+        try {
+            int row = accountStore.rowOf(id);
+            if (row < 0) {
+                lookupMisses.increment();
+                return null;
+            }
+            return accountStore.toAccount(row);
+        } finally {
+            getTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Get Account by ID over HTTP: hot accounts are answered with their cached serialized form
     @GetMapping("/accounts/{id}")
-    public Account getAccount(@PathVariable Long id) {
-        return accountStore.get(id);
+    public ResponseEntity<byte[]> getAccountJson(@PathVariable Long id) {
+        checkReadable();
+        long start = System.nanoTime();
+        try {
+            int row = accountStore.rowOf(id);
+            if (row < 0) {
+                lookupMisses.increment();
+                return ResponseEntity.ok().build();
+            }
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(accountJson(row));
+        } finally {
+            getTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private byte[] accountJson(int row) {
+        long id = accountStore.id(row);
+        long balanceCents = accountStore.balance(row);
+        byte[] json = accountCache.get(id, balanceCents);
+        if (json == null) {
+            accountCacheMisses.increment();
+            try {
+                json = accountWriter.writeValueAsBytes(new Account(id, accountStore.name(row), fromCents(balanceCents)));
+            } catch (JsonProcessingException e) {
+                throw new UncheckedIOException(e);
+            }
+            accountCache.put(id, balanceCents, json);
+        }
+        return json;
     }
 
-    // List All Accounts
+    /**
+     * List Accounts: one page in id order, starting after the given id cursor. This node's
+     * part of the page is read as of a single instant. In a cluster every other node is asked
+     * for its own first page after the cursor, and the merged page is the lowest ids of all of them.
+     */
     @GetMapping("/accounts")
-    public Collection<Account> listAccounts() {
-        return accountStore.values();
+    public List<Account> listAccounts(@RequestParam(required = false) Long after,
+                                      @RequestParam(defaultValue = "" + DEFAULT_PAGE_SIZE) int limit,
+                                      @RequestHeader(value = SHARD_LOCAL, defaultValue = "false") boolean shardLocal) {
+        checkReadable();
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + MAX_PAGE_SIZE + ".");
+        }
+        List<CompletableFuture<HttpResponse<byte[]>>> remote = new ArrayList<>();
+        if (!shardLocal && cluster.clustered()) {
+            String query = "/api/accounts?limit=" + limit + (after == null ? "" : "&after=" + after);
+            for (int node : cluster.peers()) {
+                remote.add(cluster.sendAsync(cluster.request(node, query).header(SHARD_LOCAL, "true").GET().build()));
+            }
+        }
+        int size = accountStore.size();
+        int row = after == null ? 0 : accountStore.firstRowAfter(after);
+        List<Account> page = readAccounts(row, Math.max(0, Math.min(limit, size - row)));
+        if (remote.isEmpty()) return page;
+
+        page = new ArrayList<>(page);
+        for (CompletableFuture<HttpResponse<byte[]>> response : remote) {
+            page.addAll(readPeerAccounts(response));
+        }
+        page.sort(Comparator.comparing(Account::getId));
+        return page.size() > limit ? new ArrayList<>(page.subList(0, limit)) : page;
+    }
+
+    public List<Account> listAccounts(Long after, int limit) {
+        return listAccounts(after, limit, false);
     }
 
-    // Transfer Funds
+    private List<Account> readPeerAccounts(CompletableFuture<HttpResponse<byte[]>> pending) {
+        try {
+            HttpResponse<byte[]> response = pending.join();
+            if (response.statusCode() != 200) {
+                throw new ResponseStatusException(HttpStatus.BAD_GATEWAY, "Node " + response.uri().getAuthority() + " answered " + response.statusCode() + ".");
+            }
+            return Arrays.asList(objectMapper.readValue(response.body(), Account[].class));
+        } catch (CompletionException | IOException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "A node holding accounts is unreachable.", e);
+        }
+    }
+
+    // Stream Accounts as NDJSON, one object per line; each chunk of rows is read as of a single instant.
+    // In a cluster only this node's accounts are streamed.
+    @GetMapping(value = "/accounts/stream", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> streamAccounts(@RequestParam(required = false) Long after) {
+        checkReadable();
+        StreamingResponseBody body = out -> {
+            int size = accountStore.size();
+            int row = after == null ? 0 : accountStore.firstRowAfter(after);
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                generator.setRootValueSeparator(null);
+                for (; row < size; row += STREAM_CHUNK_ROWS) {
+                    for (Account account : readAccounts(row, Math.min(STREAM_CHUNK_ROWS, size - row))) {
+                        accountWriter.writeValue(generator, account);
+                        generator.writeRaw('\n');
+                    }
+                }
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
+    }
+
+    // Account History: ledger entries touching one account in [from, to), oldest first
+    @GetMapping("/accounts/{id}/transactions")
+    public List<Transaction> listTransactions(@PathVariable Long id,
+                                              @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+                                              @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to,
+                                              @RequestParam(defaultValue = "" + DEFAULT_PAGE_SIZE) int limit) {
+        checkReadable();
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + MAX_PAGE_SIZE + ".");
+        }
+        long start = System.nanoTime();
+        try {
+            if (accountStore.rowOf(id) < 0) throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Account not found.");
+            List<TransactionLedger.Entry> entries = ledger.history(id,
+                    from == null ? Long.MIN_VALUE : from.toEpochMilli(), to == null ? Long.MAX_VALUE : to.toEpochMilli(), limit);
+            List<Transaction> page = new ArrayList<>(entries.size());
+            for (TransactionLedger.Entry entry : entries) {
+                page.add(new Transaction(entry, id));
+            }
+            return page;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read transaction ledger", e);
+        } finally {
+            historyTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Past Balance: the account as it stood at the given moment, read from a single ledger entry
+    @GetMapping("/accounts/{id}/balance")
+    public Account getBalanceAt(@PathVariable Long id,
+                                @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant at) {
+        checkReadable();
+        long start = System.nanoTime();
+        try {
+            int row = accountStore.rowOf(id);
+            if (row < 0) throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Account not found.");
+            Account account = accountStore.toAccount(row);
+            // Accounts migrated from before the ledger have no entries until their first transfer
+            OptionalLong balance = ledger.balanceAt(id, at.toEpochMilli());
+            if (balance.isPresent()) account.setBalance(fromCents(balance.getAsLong()));
+            return account;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read transaction ledger", e);
+        } finally {
+            historyTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Transfer Funds; with an Idempotency-Key, a retried request returns the first one's result.
+     * In a cluster the node holding the source account runs the transfer, so a request for an
+     * account held elsewhere is forwarded there; if the destination account is on yet another
+     * node, the transfer becomes a saga (see {@link #crossNodeTransfer}).
+     */
     @PostMapping("/transfer")
-    public String transfer(@RequestParam Long fromId, @RequestParam Long toId, @RequestParam double amount) {
-        Account from = accountStore.get(fromId);
-        Account to = accountStore.get(toId);
+    public String transfer(@RequestParam Long fromId, @RequestParam Long toId, @RequestParam BigDecimal amount,
+                           @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey,
+                           @RequestHeader(value = ShardRouter.FORWARDED, required = false) String forwardedBy) {
+        checkWritable();
+        long start = System.nanoTime();
+        try {
+            if (cluster.clustered() && fromId != null && toId != null && amount != null) {
+                if (!cluster.owns(fromId)) {
+                    // Nodes disagreeing about the ring must not pass a request back and forth
+                    if (forwardedBy != null) return TransferStatus.ACCOUNT_NOT_FOUND.message;
+                    return forwardTransfer(fromId, toId, amount, idempotencyKey);
+                }
+                if (!cluster.owns(toId)) return crossNodeTransfer(fromId, toId, amount, idempotencyKey).message;
+            }
+            if (idempotencyKey != null) return idempotentTransfer(fromId, toId, amount, idempotencyKey);
+            TransferStatus status = applyTransfer(fromId, toId, amount, null, Leg.BOTH);
+            // Syncing up to the latest record also covers this transfer's own record
+            if (status == TransferStatus.SUCCESS) commit(transactionLog.lastSeq());
+            return status.message;
+        } finally {
+            transferTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public String transfer(Long fromId, Long toId, BigDecimal amount, String idempotencyKey) {
+        return transfer(fromId, toId, amount, idempotencyKey, null);
+    }
 
-        if (from == null || to == null) return "Account not found.";
-        if (from.getBalance() < amount) return "Insufficient funds.";
+    public String transfer(Long fromId, Long toId, BigDecimal amount) {
+        return transfer(fromId, toId, amount, null, null);
+    }
+
+    private String idempotentTransfer(Long fromId, Long toId, BigDecimal amount, String key) {
+        checkKey(key, MAX_IDEMPOTENCY_KEY_LENGTH);
+        return transferOnce(keyedEntry(key, fromId, toId, amount), fromId, toId, amount, Leg.BOTH).message;
+    }
+
+    private static void checkKey(String key, int maxLength) {
+        if (key.isEmpty() || key.length() > maxLength) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    IDEMPOTENCY_KEY + " must be 1 to " + maxLength + " characters.");
+        }
+    }
+
+    private static IdempotencyCache.Entry keyedEntry(String key, Long fromId, Long toId, BigDecimal amount) {
+        long amountCents;
+        try {
+            amountCents = amount == null ? INVALID_CENTS : toCents(amount);
+        } catch (ArithmeticException e) {
+            amountCents = INVALID_CENTS;
+        }
+        return new IdempotencyCache.Entry(key, fromId == null ? 0 : fromId,
+                toId == null ? 0 : toId, amountCents, System.currentTimeMillis());
+    }
 
-        from.setBalance(from.getBalance() - amount);
-        to.setBalance(to.getBalance() + amount);
-        saveAccountsToFile();
-        return "Transfer successful.";
+    // Makes the keyed transfer at most once, or returns the outcome of the request that already made it
+    private TransferStatus transferOnce(IdempotencyCache.Entry entry, Long fromId, Long toId, BigDecimal amount, Leg leg) {
+        IdempotencyCache.Entry outcome = applyOnce(entry, fromId, toId, amount, leg);
+        TransferStatus status = outcome.result.join();
+        // A replayed original may still be waiting for its record to reach the disk
+        if (status == TransferStatus.SUCCESS) commit(outcome.seq);
+        return status;
     }
 
-    // Save accounts to file
-    private void saveAccountsToFile() {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(FILE_NAME))) {
-            for (Account acc : accountStore.values()) {
-                writer.println(acc.getId() + "," + acc.getName() + "," + acc.getBalance());
+    // The part of transferOnce before the commit: returns the completed entry holding the outcome, this one or the original's
+    private IdempotencyCache.Entry applyOnce(IdempotencyCache.Entry entry, Long fromId, Long toId, BigDecimal amount, Leg leg) {
+        while (true) {
+            IdempotencyCache.Entry original = idempotencyCache.claim(entry);
+            if (original == null) break;
+            if (!original.sameTransfer(entry)) {
+                throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY,
+                        IDEMPOTENCY_KEY + " was already used for a different transfer.");
+            }
+            try {
+                original.result.join();
+            } catch (CompletionException e) {
+                // The first request failed without an outcome and gave the key up; this one takes it over
+                continue;
             }
+            idempotentReplays.increment();
+            return original;
+        }
+
+        TransferStatus status;
+        try {
+            status = applyTransfer(fromId, toId, amount, entry, leg);
+        } catch (RuntimeException e) {
+            idempotencyCache.release(entry);
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+        // A success was recorded under the account locks; anything else is recorded here
+        if (status != TransferStatus.SUCCESS) entry.result.complete(status);
+        return entry;
+    }
+
+    private String forwardTransfer(Long fromId, Long toId, BigDecimal amount, String key) {
+        int node = cluster.owner(fromId);
+        HttpRequest.Builder request = cluster.request(node, "/api/transfer?" + transferQuery(fromId, toId, amount))
+                .POST(HttpRequest.BodyPublishers.noBody());
+        if (key != null) request.header(IDEMPOTENCY_KEY, key);
+        HttpResponse<byte[]> response;
+        try {
+            response = cluster.send(request.build());
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "The node holding account " + fromId + " is unreachable.", e);
         }
+        String body = new String(response.body(), StandardCharsets.UTF_8);
+        if (response.statusCode() != 200) throw new ResponseStatusException(HttpStatusCode.valueOf(response.statusCode()), body);
+        return body;
     }
 
-    // Load accounts from file
-    private void loadAccountsFromFile() {
-        File file = new File(FILE_NAME);
-        if (!file.exists()) return;
+    private static String transferQuery(long fromId, long toId, BigDecimal amount) {
+        return "fromId=" + fromId + "&toId=" + toId + "&amount=" + URLEncoder.encode(amount.toPlainString(), StandardCharsets.UTF_8);
+    }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length == 3) {
-                    Long id = Long.parseLong(parts[0]);
-                    String name = parts[1];
-                    double balance = Double.parseDouble(parts[2]);
-                    Account acc = new Account(id, name, balance);
-                    accountStore.put(id, acc);
-                    idGenerator.set(Math.max(idGenerator.get(), id));
+    /**
+     * Moves money from an account on this node to one on another node as a saga of local
+     * steps, each made at most once under an idempotency key derived from the transfer's
+     * own key (a random one if the client sent none):
+     * <ol>
+     *   <li>debit: the source account is debited and the step is logged and synced here;</li>
+     *   <li>credit: the destination's node is asked to credit its account under its own key,
+     *       so asking again after a timeout or a restart cannot credit it twice;</li>
+     *   <li>refund: if that node refuses the credit for good, the debit is compensated by
+     *       crediting the source account back.</li>
+     * </ol>
+     * A credit that cannot be confirmed now leaves the transfer pending, and the retry thread
+     * keeps asking until it is settled one way or the other. A retried request with the
+     * same key replays the debit and then settles the saga like the retry thread would.
+     */
+    private TransferStatus crossNodeTransfer(Long fromId, Long toId, BigDecimal amount, String key) {
+        if (key != null) checkKey(key, MAX_SAGA_KEY_LENGTH);
+        String saga = key != null ? key : UUID.randomUUID().toString();
+        IdempotencyCache.Entry debit = keyedEntry(saga + DEBIT_SUFFIX, fromId, toId, amount);
+        settlingSagas.add(saga);
+        try {
+            TransferStatus status = transferOnce(debit, fromId, toId, amount, Leg.DEBIT);
+            if (status != TransferStatus.SUCCESS) return status;
+            return settle(saga, debit);
+        } finally {
+            settlingSagas.remove(saga);
+        }
+    }
+
+    // Completes a saga whose debit is durable; returns PENDING if the other node could not be reached
+    private TransferStatus settle(String saga, IdempotencyCache.Entry debit) {
+        return settle(saga, debit, null);
+    }
+
+    // As above, with the credit's outcome if the other node already answered it in a batch
+    private TransferStatus settle(String saga, IdempotencyCache.Entry debit, TransferStatus answered) {
+        ReentrantLock lock = sagaLocks[saga.hashCode() & (SAGA_LOCKS - 1)];
+        lock.lock();
+        try {
+            if (idempotencyCache.find(saga + SETTLED_SUFFIX) != null) {
+                pendingSagas.remove(saga);
+                return TransferStatus.SUCCESS;
+            }
+            if (idempotencyCache.find(saga + REFUND_SUFFIX) != null) {
+                pendingSagas.remove(saga);
+                return TransferStatus.ACCOUNT_NOT_FOUND;
+            }
+            TransferStatus credit = answered;
+            if (credit == null) {
+                try {
+                    credit = creditPeer(debit.fromId, debit.toId, debit.amountCents, saga + CREDIT_SUFFIX);
+                } catch (IOException e) {
+                    // Still registered from its debit, so the retry thread asks again
+                    return TransferStatus.PENDING;
+                }
+            }
+            if (credit == TransferStatus.SUCCESS) {
+                // Only snapshots keep this marker; after a crash the credit is asked for again and replayed
+                idempotencyCache.restore(new IdempotencyCache.Entry(saga + SETTLED_SUFFIX, debit.fromId, debit.toId,
+                        debit.amountCents, debit.createdAtMillis), 0);
+            } else {
+                BigDecimal amount = fromCents(debit.amountCents);
+                IdempotencyCache.Entry refund = keyedEntry(saga + REFUND_SUFFIX, debit.toId, debit.fromId, amount);
+                TransferStatus refunded = transferOnce(refund, debit.toId, debit.fromId, amount, Leg.CREDIT);
+                if (refunded != TransferStatus.SUCCESS) {
+                    throw new IllegalStateException("Unable to refund transfer " + saga + ": " + refunded);
+                }
+            }
+            pendingSagas.remove(saga);
+            return credit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private TransferStatus creditPeer(long fromId, long toId, long amountCents, String key) throws IOException {
+        int node = cluster.owner(toId);
+        HttpRequest request = cluster.request(node, "/api/internal/credit?" + transferQuery(fromId, toId, fromCents(amountCents)))
+                .header(IDEMPOTENCY_KEY, key)
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        IOException failure = null;
+        for (int attempt = 0; attempt < CREDIT_ATTEMPTS; attempt++) {
+            try {
+                if (attempt > 0) Thread.sleep(50L << attempt);
+                HttpResponse<byte[]> response = cluster.send(request);
+                String body = new String(response.body(), StandardCharsets.UTF_8);
+                if (response.statusCode() == 200) return TransferStatus.valueOf(body);
+                failure = new IOException("Node " + cluster.node(node) + " answered " + response.statusCode() + ": " + body);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while crediting " + key);
+            } catch (IllegalArgumentException e) {
+                failure = new IOException("Unexpected answer from node " + cluster.node(node), e);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * The credit step of another node's cross-node transfer: credits an account held here,
+     * without touching the source account, which that node has already debited. Only
+     * callers presenting the cluster token are accepted, and the key makes a repeated
+     * request a replay.
+     */
+    @PostMapping("/internal/credit")
+    public String credit(@RequestParam Long fromId, @RequestParam Long toId, @RequestParam BigDecimal amount,
+                         @RequestHeader(IDEMPOTENCY_KEY) String idempotencyKey,
+                         @RequestHeader(value = Cluster.TOKEN, required = false) String token) {
+        if (!cluster.clustered() || !cluster.trusts(token)) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Only other nodes of the cluster may credit accounts.");
+        }
+        checkWritable();
+        if (cluster.owns(fromId) || !cluster.owns(toId)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "A credit must move money from another node's account to one held here.");
+        }
+        checkKey(idempotencyKey, MAX_IDEMPOTENCY_KEY_LENGTH);
+        long start = System.nanoTime();
+        try {
+            return transferOnce(keyedEntry(idempotencyKey, fromId, toId, amount), fromId, toId, amount, Leg.CREDIT).name();
+        } finally {
+            transferTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Credit steps of several of another node's cross-node transfers, each made as
+     * {@link #credit} makes one and all synced together. Answers one status name per
+     * credit, in order.
+     */
+    @PostMapping("/internal/credits")
+    public List<String> credits(@RequestBody List<CreditRequest> credits,
+                                @RequestHeader(value = Cluster.TOKEN, required = false) String token) {
+        if (!cluster.clustered() || !cluster.trusts(token)) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Only other nodes of the cluster may credit accounts.");
+        }
+        checkWritable();
+        if (credits.size() > MAX_BATCH_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "At most " + MAX_BATCH_SIZE + " credits per batch.");
+        }
+        for (CreditRequest c : credits) {
+            if (c == null || c.getFromId() == null || c.getToId() == null || c.getIdempotencyKey() == null
+                    || cluster.owns(c.getFromId()) || !cluster.owns(c.getToId())) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "A credit must move money from another node's account to one held here.");
+            }
+            checkKey(c.getIdempotencyKey(), MAX_IDEMPOTENCY_KEY_LENGTH);
+        }
+        long start = System.nanoTime();
+        try {
+            List<String> results = new ArrayList<>(credits.size());
+            long lastSeq = -1;
+            for (CreditRequest c : credits) {
+                IdempotencyCache.Entry outcome = applyOnce(keyedEntry(c.getIdempotencyKey(), c.getFromId(), c.getToId(), c.getAmount()),
+                        c.getFromId(), c.getToId(), c.getAmount(), Leg.CREDIT);
+                TransferStatus status = outcome.result.join();
+                if (status == TransferStatus.SUCCESS) lastSeq = Math.max(lastSeq, outcome.seq);
+                results.add(status.name());
+            }
+            if (lastSeq >= 0) commit(lastSeq);
+            return results;
+        } finally {
+            batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Turns this replica into a primary: it stops following the old primary and takes writes
+     * on top of the records it holds. Replication is asynchronous, so writes the old primary
+     * acknowledged but had not shipped yet are not here. Making sure the old primary takes no
+     * more writes is up to the operator; it can rejoin as a replica of this node with an empty
+     * data directory.
+     */
+    @PostMapping("/replication/promote")
+    public synchronized String promote(@RequestHeader(value = Cluster.TOKEN, required = false) String token) {
+        if (!cluster.trusts(token)) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Promoting a replica requires the cluster token.");
+        }
+        if (!readOnly) throw new ResponseStatusException(HttpStatus.CONFLICT, "This node is already a primary.");
+        replicaLink.stop();
+        readOnly = false;
+        if (cluster.clustered()) startSagas();
+        return "Promoted to primary at record " + transactionLog.lastSeq() + ".";
+    }
+
+    // A replica takes no writes of its own
+    private void checkWritable() {
+        if (readOnly) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "This node is a read-only replica; send writes to the primary.");
+        }
+    }
+
+    // A replica serves reads only while it is known to be within the allowed staleness of its primary
+    private void checkReadable() {
+        if (readOnly && !replicaLink.fresh()) {
+            String refusal = replicaLink.refusal();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, refusal != null
+                    ? "This replica cannot follow its primary: " + refusal
+                    : "This replica is too far behind its primary; read from the primary or retry later.");
+        }
+    }
+
+    // Refuses to serve accounts the ring assigns elsewhere; moving accounts between nodes is not supported
+    private void checkOwnership() {
+        for (int row = 0, size = accountStore.size(); row < size; row++) {
+            long id = accountStore.id(row);
+            if (!cluster.owns(id)) {
+                throw new IllegalStateException("Account " + id + " belongs to node " + cluster.node(cluster.owner(id))
+                        + "; this node's data directory does not match the cluster's node list.");
+            }
+        }
+    }
+
+    // Debits remembered by the idempotency cache whose saga was never marked settled or refunded: on a
+    // promoted replica, which does not track sagas while following, and for snapshots from before they were kept
+    private void findPendingSagas() {
+        for (IdempotencyCache.Entry entry : idempotencyCache.successful()) {
+            if (!isSagaDebit(entry.key, entry.toId)) continue;
+            String saga = sagaOf(entry.key);
+            if (idempotencyCache.find(saga + SETTLED_SUFFIX) == null && idempotencyCache.find(saga + REFUND_SUFFIX) == null) {
+                pendingSagas.put(saga, entry);
+            }
+        }
+    }
+
+    // A debit logged by a saga rather than a client's own transfer, whose key could end the same way
+    private boolean isSagaDebit(String key, long toId) {
+        return key.endsWith(DEBIT_SUFFIX) && cluster.clustered() && !cluster.owns(toId);
+    }
+
+    private static String sagaOf(String debitKey) {
+        return debitKey.substring(0, debitKey.length() - DEBIT_SUFFIX.length());
+    }
+
+    private void retryPendingSagas() {
+        for (Map.Entry<String, IdempotencyCache.Entry> saga : pendingSagas.entrySet()) {
+            if (settlingSagas.contains(saga.getKey())) continue;
+            try {
+                settle(saga.getKey(), saga.getValue());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Batch Transfer: applied in order by the ledger writer, one result per transfer. In a
+     * cluster, transfers from accounts held elsewhere go to their node in one batch per node,
+     * and transfers to accounts held elsewhere become sagas whose debits are synced together
+     * and whose credits go out in one request per node. Those requests are made all at once
+     * once the rest of the batch is committed, and a node that cannot be reached only fails
+     * its own transfers: each says so in its result, so a client retries just those.
+     */
+    @PostMapping("/transfers/batch")
+    public List<String> transferBatch(@RequestBody List<TransferRequest> transfers,
+                                      @RequestHeader(value = ShardRouter.FORWARDED, required = false) String forwardedBy) {
+        checkWritable();
+        if (transfers.size() > MAX_BATCH_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "At most " + MAX_BATCH_SIZE + " transfers per batch.");
+        }
+        String[] results = new String[transfers.size()];
+        List<TransferRequest> local = transfers;
+        List<Integer> localIndexes = null;
+        // Indexes of the transfers to forward, by the node holding their source account
+        Map<Integer, List<Integer>> forwarded = new HashMap<>();
+        List<Integer> outgoing = new ArrayList<>();
+        if (cluster.clustered()) {
+            local = new ArrayList<>(transfers.size());
+            localIndexes = new ArrayList<>(transfers.size());
+            for (int i = 0; i < transfers.size(); i++) {
+                TransferRequest t = transfers.get(i);
+                if (t == null || t.getFromId() == null || t.getToId() == null || cluster.owns(t.getFromId()) && cluster.owns(t.getToId())) {
+                    local.add(t);
+                    localIndexes.add(i);
+                } else if (cluster.owns(t.getFromId())) {
+                    outgoing.add(i);
+                } else if (forwardedBy != null) {
+                    // Nodes disagreeing about the ring must not pass a batch back and forth
+                    results[i] = TransferStatus.ACCOUNT_NOT_FOUND.message;
+                } else {
+                    forwarded.computeIfAbsent(cluster.owner(t.getFromId()), node -> new ArrayList<>()).add(i);
+                }
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            TransferStatus[] statuses = ledgerWriter.submit(local).join();
+            for (int i = 0; i < statuses.length; i++) {
+                results[localIndexes == null ? i : localIndexes.get(i)] = statuses[i].message;
+            }
+            if (!forwarded.isEmpty() || !outgoing.isEmpty()) crossNodeBatch(transfers, forwarded, outgoing, results);
+        } finally {
+            batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        return Arrays.asList(results);
+    }
+
+    public List<String> transferBatch(List<TransferRequest> transfers) {
+        return transferBatch(transfers, null);
+    }
+
+    // The part of a batch involving other nodes: one request per node, all in flight together
+    private void crossNodeBatch(List<TransferRequest> transfers, Map<Integer, List<Integer>> forwarded,
+                                List<Integer> outgoing, String[] results) {
+        Map<Integer, CompletableFuture<HttpResponse<byte[]>>> forwards = new HashMap<>();
+        for (Map.Entry<Integer, List<Integer>> group : forwarded.entrySet()) {
+            List<TransferRequest> batch = new ArrayList<>(group.getValue().size());
+            for (int i : group.getValue()) batch.add(transfers.get(i));
+            forwards.put(group.getKey(), post(group.getKey(), "/api/transfers/batch", batch));
+        }
+
+        // Every debit is logged before one sync, so the credits all go out once the debits are durable
+        String[] sagas = new String[outgoing.size()];
+        IdempotencyCache.Entry[] debits = new IdempotencyCache.Entry[outgoing.size()];
+        Map<Integer, List<Integer>> creditsByNode = new HashMap<>();
+        try {
+            for (int k = 0; k < debits.length; k++) {
+                TransferRequest t = transfers.get(outgoing.get(k));
+                sagas[k] = UUID.randomUUID().toString();
+                settlingSagas.add(sagas[k]);
+                IdempotencyCache.Entry debit = keyedEntry(sagas[k] + DEBIT_SUFFIX, t.getFromId(), t.getToId(), t.getAmount());
+                TransferStatus status = applyOnce(debit, t.getFromId(), t.getToId(), t.getAmount(), Leg.DEBIT).result.join();
+                if (status == TransferStatus.SUCCESS) {
+                    debits[k] = debit;
+                    creditsByNode.computeIfAbsent(cluster.owner(debit.toId), node -> new ArrayList<>()).add(k);
+                } else {
+                    results[outgoing.get(k)] = status.message;
+                }
+            }
+            Map<Integer, CompletableFuture<HttpResponse<byte[]>>> credits = new HashMap<>();
+            if (!creditsByNode.isEmpty()) {
+                commit(transactionLog.lastSeq());
+                for (Map.Entry<Integer, List<Integer>> group : creditsByNode.entrySet()) {
+                    List<CreditRequest> batch = new ArrayList<>(group.getValue().size());
+                    for (int k : group.getValue()) {
+                        IdempotencyCache.Entry debit = debits[k];
+                        batch.add(new CreditRequest(debit.fromId, debit.toId, fromCents(debit.amountCents), sagas[k] + CREDIT_SUFFIX));
+                    }
+                    credits.put(group.getKey(), post(group.getKey(), "/api/internal/credits", batch));
+                }
+            }
+
+            for (Map.Entry<Integer, List<Integer>> group : forwarded.entrySet()) {
+                List<Integer> indexes = group.getValue();
+                String[] answers;
+                try {
+                    answers = answers(group.getKey(), forwards.get(group.getKey()), indexes.size());
+                } catch (IOException e) {
+                    // The node may have made some of them before failing to answer
+                    String failure = "Transfer not confirmed: " + e.getMessage();
+                    for (int i : indexes) results[i] = failure;
+                    continue;
+                }
+                for (int j = 0; j < answers.length; j++) results[indexes.get(j)] = answers[j];
+            }
+            for (Map.Entry<Integer, List<Integer>> group : creditsByNode.entrySet()) {
+                List<Integer> indexes = group.getValue();
+                String[] answers;
+                try {
+                    answers = answers(group.getKey(), credits.get(group.getKey()), indexes.size());
+                } catch (IOException e) {
+                    // Left to the retry thread, which asks again under the same credit keys
+                    answers = null;
                 }
+                for (int j = 0; j < indexes.size(); j++) {
+                    int k = indexes.get(j);
+                    TransferStatus credit;
+                    try {
+                        credit = answers == null ? null : TransferStatus.valueOf(answers[j]);
+                    } catch (IllegalArgumentException e) {
+                        credit = null;
+                    }
+                    results[outgoing.get(k)] = (credit == null ? TransferStatus.PENDING : settle(sagas[k], debits[k], credit)).message;
+                }
+            }
+        } finally {
+            for (String saga : sagas) {
+                if (saga != null) settlingSagas.remove(saga);
             }
+        }
+    }
+
+    private CompletableFuture<HttpResponse<byte[]>> post(int node, String path, Object body) {
+        HttpRequest request;
+        try {
+            request = cluster.request(node, path)
+                    .header("Content-Type", MediaType.APPLICATION_JSON_VALUE)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(body)))
+                    .build();
         } catch (IOException e) {
-            e.printStackTrace();
+            return CompletableFuture.failedFuture(e);
         }
+        return cluster.sendAsync(request);
     }
 
-    // Inner class: Account model
-    static class Account {
-        private Long id;
-        private String name;
-        private double balance;
+    // One answer per item sent in a batch to another node
+    private String[] answers(int node, CompletableFuture<HttpResponse<byte[]>> call, int expected) throws IOException {
+        HttpResponse<byte[]> response;
+        try {
+            response = call.join();
+        } catch (CompletionException e) {
+            throw new IOException("node " + cluster.node(node) + " could not be reached.", e.getCause());
+        }
+        if (response.statusCode() != 200) {
+            throw new IOException("node " + cluster.node(node) + " answered " + response.statusCode() + ": "
+                    + new String(response.body(), StandardCharsets.UTF_8));
+        }
+        String[] answers = objectMapper.readValue(response.body(), String[].class);
+        if (answers.length != expected) {
+            throw new IOException("node " + cluster.node(node) + " answered " + answers.length + " results for " + expected + " items.");
+        }
+        return answers;
+    }
 
-        public Account() {}
-        public Account(Long id, String name, double balance) {
-            this.id = id;
-            this.name = name;
-            this.balance = balance;
+    /**
+     * Applies and logs one transfer; the caller is responsible for committing the log. A
+     * successful transfer made with an idempotency key is logged with the key, and its entry
+     * is completed before the account locks are released, so a snapshot either holds both
+     * the balances and the key or neither.
+     */
+    private TransferStatus applyTransfer(Long fromId, Long toId, BigDecimal amount, IdempotencyCache.Entry keyed, Leg leg) {
+        TransferStatus status = tryTransfer(fromId, toId, amount, keyed, leg);
+        transferOutcomes[status.ordinal()].increment();
+        return status;
+    }
+
+    private TransferStatus tryTransfer(Long fromId, Long toId, BigDecimal amount, IdempotencyCache.Entry keyed, Leg leg) {
+        if (amount == null) return TransferStatus.INVALID_AMOUNT;
+        long amountCents;
+        try {
+            amountCents = toCents(amount);
+        } catch (ArithmeticException e) {
+            return TransferStatus.INVALID_AMOUNT;
         }
+        if (amountCents <= 0) return TransferStatus.INVALID_AMOUNT;
+        if (fromId == null || toId == null) return TransferStatus.ACCOUNT_NOT_FOUND;
 
-        public Long getId() { return id; }
-        public void setId(Long id) { this.id = id; }
-        public String getName() { return name; }
-        public void setName(String name) { this.name = name; }
-        public double getBalance() { return balance; }
-        public void setBalance(double balance) { this.balance = balance; }
+        int from = accountStore.rowOf(fromId);
+        int to = accountStore.rowOf(toId);
+
+        if ((from < 0 && leg != Leg.CREDIT) || (to < 0 && leg != Leg.DEBIT)) return TransferStatus.ACCOUNT_NOT_FOUND;
+
+        // Stripes are always taken in index order, so two opposite transfers cannot deadlock
+        int a = stripeIndex(fromId);
+        int b = stripeIndex(toId);
+        Stripe first = stripes[Math.min(a, b)];
+        Stripe second = stripes[Math.max(a, b)];
+        first.lock();
+        try {
+            if (a != b) second.lock();
+            try {
+                // A leg of a transfer between nodes changes only the account held here
+                long fromBalance = leg == Leg.CREDIT ? 0 : accountStore.balance(from);
+                if (leg != Leg.CREDIT && fromBalance < amountCents) return TransferStatus.INSUFFICIENT_FUNDS;
+
+                // Both versions are odd while the pair of balances is changing, so no reader keeps half a transfer
+                first.beginWrite();
+                if (a != b) second.beginWrite();
+                long fromAfter = 0;
+                long toAfter = 0;
+                if (leg != Leg.CREDIT) {
+                    fromAfter = fromBalance - amountCents;
+                    accountStore.setBalance(from, fromAfter);
+                }
+                if (leg != Leg.DEBIT) {
+                    toAfter = accountStore.balance(to) + amountCents;
+                    accountStore.setBalance(to, toAfter);
+                }
+                if (a != b) second.endWrite();
+                first.endWrite();
+                if (keyed == null) {
+                    long now = System.currentTimeMillis();
+                    long seq = transactionLog.appendTransfer(fromId, toId, amountCents, now);
+                    ledger.append(seq, now, fromId, toId, amountCents, fromAfter, toAfter);
+                } else {
+                    keyed.seq = transactionLog.appendKeyedTransfer(fromId, toId, amountCents, keyed.key, keyed.createdAtMillis);
+                    ledger.append(keyed.seq, keyed.createdAtMillis, fromId, toId, amountCents, fromAfter, toAfter);
+                    // Registered under the locks, so a snapshot holds every saga whose debit it covers
+                    if (leg == Leg.DEBIT) pendingSagas.put(sagaOf(keyed.key), keyed);
+                    keyed.result.complete(TransferStatus.SUCCESS);
+                }
+            } finally {
+                if (a != b) second.unlock();
+            }
+        } finally {
+            first.unlock();
+        }
+        return TransferStatus.SUCCESS;
+    }
+
+    // Money crosses the REST boundary as BigDecimal and is stored as long minor units (cents)
+    static long toCents(BigDecimal amount) {
+        return amount.movePointRight(2).longValueExact();
+    }
+
+    static BigDecimal fromCents(long cents) {
+        return BigDecimal.valueOf(cents, 2);
+    }
+
+    private static int stripeIndex(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (LOCK_STRIPES - 1);
+    }
+
+    private Stripe stripeFor(long id) {
+        return stripes[stripeIndex(id)];
+    }
+
+    // Materializes count rows from firstRow with balances that all held at one instant
+    private List<Account> readAccounts(int firstRow, int count) {
+        long[] balances = new long[count];
+        readBalances(firstRow, balances);
+        List<Account> accounts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int row = firstRow + i;
+            accounts.add(new Account(accountStore.id(row), accountStore.name(row), fromCents(balances[i])));
+        }
+        return accounts;
+    }
+
+    /**
+     * Reads balances.length consecutive balances as of a single instant without blocking
+     * writers: each balance is read between two reads of its stripe's version, and the pass
+     * is kept only if no stripe it touched was mid-write or has moved on since. Under heavy
+     * writes the last resort locks just the stripes the rows hash to.
+     */
+    private void readBalances(int firstRow, long[] balances) {
+        int count = balances.length;
+        int[] stripeOf = new int[count];
+        long[] versions = new long[count];
+        for (int i = 0; i < count; i++) {
+            stripeOf[i] = stripeIndex(accountStore.id(firstRow + i));
+        }
+        for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+            if (tryReadBalances(firstRow, balances, stripeOf, versions)) return;
+            Thread.onSpinWait();
+        }
+        boolean[] touched = new boolean[LOCK_STRIPES];
+        for (int stripe : stripeOf) touched[stripe] = true;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            if (touched[i]) stripes[i].lock();
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                balances[i] = accountStore.balance(firstRow + i);
+            }
+        } finally {
+            for (int i = LOCK_STRIPES - 1; i >= 0; i--) {
+                if (touched[i]) stripes[i].unlock();
+            }
+        }
+    }
+
+    private boolean tryReadBalances(int firstRow, long[] balances, int[] stripeOf, long[] versions) {
+        for (int i = 0; i < balances.length; i++) {
+            long version = stripes[stripeOf[i]].version;
+            if ((version & 1) != 0) return false;
+            versions[i] = version;
+            balances[i] = accountStore.balance(firstRow + i);
+        }
+        for (int i = 0; i < balances.length; i++) {
+            if (stripes[stripeOf[i]].version != versions[i]) return false;
+        }
+        return true;
+    }
+
+    // Wait for a logged mutation per the configured durability, scheduling a snapshot once the log tail grows long enough
+    private void commit(long seq) {
+        try {
+            transactionLog.sync(seq);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to sync transaction log", e);
+        }
+        if (seq - snapshotSeq >= SNAPSHOT_INTERVAL && snapshotRunning.compareAndSet(false, true)) {
+            try {
+                snapshotExecutor.execute(() -> {
+                    try {
+                        saveAccountsToFile();
+                    } finally {
+                        snapshotRunning.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                snapshotRunning.set(false);
+            }
+        }
+    }
+
+    // Save a snapshot of all accounts to file and drop the log segments it covers
+    void saveAccountsToFile() {
+        long start = System.nanoTime();
+        try {
+            if (!writeSnapshot()) snapshotFailures.increment();
+        } finally {
+            saveTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Returns false if the snapshot was abandoned, leaving the previous snapshot and log in place
+    private boolean writeSnapshot() {
+        // Holding every stripe gives a consistent cut: no mutation is half-applied or unlogged
+        int size;
+        long[] balances;
+        List<IdempotencyCache.Entry> keys;
+        List<IdempotencyCache.Entry> sagas;
+        long seq;
+        for (Stripe stripe : stripes) stripe.lock();
+        try {
+            size = accountStore.size();
+            balances = new long[size];
+            for (int row = 0; row < size; row++) {
+                balances[row] = accountStore.balance(row);
+            }
+            keys = idempotencyCache.successful();
+            sagas = new ArrayList<>(pendingSagas.values());
+            seq = transactionLog.rotate();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) stripes[i].unlock();
+        }
+
+        Path tmp = snapshotFile.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            Snapshot.write(tmp, seq, accountStore, balances, size, keys, sagas);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        try {
+            // Once the snapshot is in place the log no longer replays these mutations, so the ledger must hold them
+            ledger.sync();
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            snapshotSeq = seq;
+            // Segments a replica has not been sent yet are kept until a later snapshot
+            transactionLog.dropSegmentsUpTo(replicationServer == null ? seq : Math.min(seq, replicationServer.retainAfter()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    // Load accounts from the binary snapshot, falling back to a CSV snapshot from before the binary format
+    private void loadAccountsFromFile() {
+        if (!Files.exists(snapshotFile)) {
+            loadLegacyAccounts();
+            return;
+        }
+        try {
+            snapshotSeq = Snapshot.read(snapshotFile, accountStore, idempotencyCache,
+                    debit -> pendingSagas.put(sagaOf(debit.key), debit));
+        } catch (IOException e) {
+            // The log segments it covered are gone, so starting without it would silently lose accounts
+            throw new UncheckedIOException("Unable to load account snapshot " + snapshotFile, e);
+        }
+        int size = accountStore.size();
+        if (size > 0) idGenerator.set(accountStore.id(size - 1));
+    }
+
+    private void loadLegacyAccounts() {
+        File file = legacySnapshotFile.toFile();
+        if (!file.exists()) return;
+
+        try {
+            // Files written since the table existed are in id order and stream straight into it;
+            // older files were written in map order and are sorted in memory first
+            long[] lastId = {Long.MIN_VALUE};
+            boolean ascending = readLegacyRows(file, parts -> {
+                long id = Long.parseLong(parts[0]);
+                if (id <= lastId[0]) return false;
+                lastId[0] = id;
+                return true;
+            });
+            if (ascending) {
+                readLegacyRows(file, parts -> {
+                    insertLegacyRow(parts);
+                    return true;
+                });
+            } else {
+                List<String[]> rows = new ArrayList<>();
+                readLegacyRows(file, rows::add);
+                rows.sort(Comparator.comparingLong(parts -> Long.parseLong(parts[0])));
+                rows.forEach(this::insertLegacyRow);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Feeds [id, name, balance] rows to the visitor until it returns false; returns whether every row was visited
+    private boolean readLegacyRows(File file, Predicate<String[]> visitor) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(SEQ_HEADER)) {
+                    snapshotSeq = Long.parseLong(line.substring(SEQ_HEADER.length()));
+                    continue;
+                }
+                // Names were written unescaped, so the id and balance are taken from either end of the line
+                int first = line.indexOf(',');
+                int last = line.lastIndexOf(',');
+                if (first > 0 && last > first
+                        && !visitor.test(new String[] {line.substring(0, first), line.substring(first + 1, last), line.substring(last + 1)})) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void insertLegacyRow(String[] parts) {
+        long id = Long.parseLong(parts[0]);
+        // Older files hold double balances, so round them onto whole cents
+        long balanceCents = toCents(new BigDecimal(parts[2]).setScale(2, RoundingMode.HALF_EVEN));
+        accountStore.insert(id, parts[1], balanceCents);
+        idGenerator.set(Math.max(idGenerator.get(), id));
+    }
+
+    /**
+     * Static membership of a sharded deployment, from {@code banking.cluster.nodes} (base URLs
+     * of every node, the same list on each) and {@code banking.cluster.self} (this node's entry).
+     *
+     * Account ids are placed on a consistent-hash ring with many virtual points per node, so
+     * each node owns a spread of slices of the id space and every node computes the same owner
+     * for an id without asking anyone. A node only creates accounts whose ids it owns. With
+     * no node list the application runs alone and owns every id.
+     *
+     * Calls between nodes carry {@code banking.cluster.token}, which a cluster must set: an
+     * empty token is trusted by no one, so an unconfigured node cannot be credited by anybody.
+     */
+    static final class Cluster {
+        static final String TOKEN = "X-Banking-Cluster-Token";
+        private static final int VIRTUAL_NODES = 160;
+        private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(2);
+        private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(5);
+
+        private final List<String> nodes;
+        private final int self;
+        private final byte[] token;
+        // Ring points in ascending order, and the node owning the arc that ends at each
+        private final long[] points;
+        private final int[] owners;
+        private final HttpClient http;
+
+        Cluster(String nodeList, String self, String token) {
+            List<String> nodes = new ArrayList<>();
+            for (String node : nodeList.split(",")) {
+                String url = node.strip();
+                while (url.endsWith("/")) url = url.substring(0, url.length() - 1);
+                if (!url.isEmpty() && !nodes.contains(url)) nodes.add(url);
+            }
+            String selfUrl = self.strip();
+            while (selfUrl.endsWith("/")) selfUrl = selfUrl.substring(0, selfUrl.length() - 1);
+            this.nodes = List.copyOf(nodes);
+            this.self = nodes.isEmpty() ? 0 : nodes.indexOf(selfUrl);
+            if (this.self < 0) {
+                throw new IllegalArgumentException("banking.cluster.self (" + self + ") is not one of banking.cluster.nodes " + nodes);
+            }
+            this.token = token.getBytes(StandardCharsets.UTF_8);
+            if (clustered() && this.token.length == 0) {
+                throw new IllegalArgumentException("banking.cluster.token must be set when banking.cluster.nodes lists more than one node");
+            }
+
+            long[][] ring = new long[nodes.size() * VIRTUAL_NODES][];
+            for (int node = 0; node < nodes.size(); node++) {
+                for (int v = 0; v < VIRTUAL_NODES; v++) {
+                    ring[node * VIRTUAL_NODES + v] = new long[] {hash(nodes.get(node) + "#" + v), node};
+                }
+            }
+            Arrays.sort(ring, Comparator.comparingLong(point -> point[0]));
+            this.points = new long[ring.length];
+            this.owners = new int[ring.length];
+            for (int i = 0; i < ring.length; i++) {
+                points[i] = ring[i][0];
+                owners[i] = (int) ring[i][1];
+            }
+            this.http = clustered() ? HttpClient.newBuilder().connectTimeout(CONNECT_TIMEOUT).build() : null;
+        }
+
+        boolean clustered() {
+            return nodes.size() > 1;
+        }
+
+        boolean owns(long id) {
+            return owner(id) == self;
+        }
+
+        // The node whose arc of the ring the id's hash falls on
+        int owner(long id) {
+            if (!clustered()) return self;
+            long h = mix(id);
+            int low = 0;
+            int high = points.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (points[mid] < h) low = mid + 1;
+                else high = mid;
+            }
+            return owners[low == points.length ? 0 : low];
+        }
+
+        String node(int index) {
+            return nodes.get(index);
+        }
+
+        // Every node but this one
+        List<Integer> peers() {
+            List<Integer> peers = new ArrayList<>(nodes.size() - 1);
+            for (int node = 0; node < nodes.size(); node++) {
+                if (node != self) peers.add(node);
+            }
+            return peers;
+        }
+
+        boolean trusts(String presented) {
+            return token.length > 0 && presented != null
+                    && MessageDigest.isEqual(token, presented.getBytes(StandardCharsets.UTF_8));
+        }
+
+        HttpRequest.Builder request(int node, String pathAndQuery) {
+            return HttpRequest.newBuilder(URI.create(nodes.get(node) + pathAndQuery))
+                    .timeout(REQUEST_TIMEOUT)
+                    .header(ShardRouter.FORWARDED, nodes.get(self))
+                    .header(TOKEN, new String(token, StandardCharsets.UTF_8));
+        }
+
+        HttpResponse<byte[]> send(HttpRequest request) throws IOException {
+            try {
+                return http.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while calling " + request.uri());
+            }
+        }
+
+        CompletableFuture<HttpResponse<byte[]>> sendAsync(HttpRequest request) {
+            return http.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+        }
+
+        // 64-bit FNV-1a, finished with the same mixing as the ids, so node names spread over the ring
+        private static long hash(String value) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+                h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+            }
+            return mix(h);
+        }
+
+        // MurmurHash3's 64-bit finalizer; consecutive ids land far apart on the ring
+        private static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb185ec3f5a4fL;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    /**
+     * Routing layer for per-account lookups: a request for an account the ring assigns to
+     * another node is proxied to that node and its answer returned as is, so clients may
+     * send every request to any node. Requests already forwarded by a node are served
+     * locally, whatever the ring says, so misconfigured nodes cannot bounce one forever.
+     */
+    static final class ShardRouter implements Filter {
+        static final String FORWARDED = "X-Banking-Forwarded";
+        private static final Pattern ACCOUNT_PATH = Pattern.compile("/api/accounts/(\\d{1,18})(/transactions|/balance)?");
+
+        private final Cluster cluster;
+
+        ShardRouter(Cluster cluster) {
+            this.cluster = cluster;
+        }
+
+        @Override
+        public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
+            HttpServletRequest request = (HttpServletRequest) req;
+            HttpServletResponse response = (HttpServletResponse) res;
+            if (!cluster.clustered() || !"GET".equals(request.getMethod()) || request.getHeader(FORWARDED) != null) {
+                chain.doFilter(req, res);
+                return;
+            }
+            String path = request.getRequestURI().substring(request.getContextPath().length());
+            Matcher matcher = ACCOUNT_PATH.matcher(path);
+            if (!matcher.matches() || cluster.owns(Long.parseLong(matcher.group(1)))) {
+                chain.doFilter(req, res);
+                return;
+            }
+            int node = cluster.owner(Long.parseLong(matcher.group(1)));
+            String query = request.getQueryString();
+            HttpResponse<byte[]> answer;
+            try {
+                answer = cluster.send(cluster.request(node, path + (query == null ? "" : "?" + query)).GET().build());
+            } catch (IOException e) {
+                response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(), "Node " + cluster.node(node) + " is unreachable.");
+                return;
+            }
+            response.setStatus(answer.statusCode());
+            answer.headers().firstValue("Content-Type").ifPresent(response::setContentType);
+            response.setContentLength(answer.body().length);
+            response.getOutputStream().write(answer.body());
+        }
+    }
+
+    /**
+     * Applies logged mutations to the accounts: this node's own log as it is replayed on
+     * startup, and on a replica each frame shipped from the primary. A shipped frame is
+     * appended to the replica's log while the stripes of its accounts are held, just as a
+     * live mutation logs itself, so a snapshot never covers a record that is not applied
+     * or misses one that is.
+     */
+    private final class Applier implements TransactionLog.Handler {
+        // The primary's frame being applied, or null while replaying this node's own log
+        private ByteBuffer shipped;
+
+        // Applies a checked frame that directly follows the last record in the log
+        long applyShipped(ByteBuffer frame) {
+            shipped = frame;
+            try {
+                return TransactionLog.replayFrame(frame, this);
+            } finally {
+                shipped = null;
+            }
+        }
+
+        private void logShipped() {
+            if (shipped != null) transactionLog.appendFrames(shipped.duplicate());
+        }
+
+        @Override
+        public void accountCreated(long seq, long timestampMillis, long id, String name, long balanceCents) {
+            Stripe lock = stripeFor(id);
+            lock.lock();
+            try {
+                accountStore.insert(id, name, balanceCents);
+                logShipped();
+                idGenerator.set(Math.max(idGenerator.get(), id));
+                // Mutations the ledger lost in a crash are appended to it again as they are replayed
+                if (!ledger.recorded(seq)) ledger.append(seq, timestampMillis, 0, id, balanceCents, 0, balanceCents);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void transferred(long seq, long timestampMillis, long fromId, long toId, long amountCents) {
+            // One leg of a transfer between nodes finds only one of its accounts here
+            int from = accountStore.rowOf(fromId);
+            int to = accountStore.rowOf(toId);
+            int a = stripeIndex(fromId);
+            int b = stripeIndex(toId);
+            Stripe first = stripes[Math.min(a, b)];
+            Stripe second = stripes[Math.max(a, b)];
+            first.lock();
+            if (a != b) second.lock();
+            try {
+                first.beginWrite();
+                if (a != b) second.beginWrite();
+                long fromBalance = 0;
+                long toBalance = 0;
+                if (from >= 0) {
+                    fromBalance = accountStore.balance(from) - amountCents;
+                    accountStore.setBalance(from, fromBalance);
+                }
+                if (to >= 0) {
+                    toBalance = accountStore.balance(to) + amountCents;
+                    accountStore.setBalance(to, toBalance);
+                }
+                if (a != b) second.endWrite();
+                first.endWrite();
+                logShipped();
+                if (!ledger.recorded(seq)) ledger.append(seq, timestampMillis, fromId, toId, amountCents, fromBalance, toBalance);
+            } finally {
+                if (a != b) second.unlock();
+                first.unlock();
+            }
+        }
+
+        @Override
+        public void keyedTransfer(long seq, long fromId, long toId, long amountCents, String key, long createdAtMillis) {
+            transferred(seq, createdAtMillis, fromId, toId, amountCents);
+            IdempotencyCache.Entry entry = new IdempotencyCache.Entry(key, fromId, toId, amountCents, createdAtMillis);
+            idempotencyCache.restore(entry, seq);
+            // A primary picks its sagas back up from its own log; settling them is not logged, so a replica leaves it
+            // to the cache once promoted rather than collecting every saga the primary ever made
+            if (readOnly) return;
+            if (isSagaDebit(key, toId)) {
+                pendingSagas.put(sagaOf(key), entry);
+            } else if (key.endsWith(REFUND_SUFFIX)) {
+                pendingSagas.remove(key.substring(0, key.length() - REFUND_SUFFIX.length()));
+            }
+        }
+    }
+
+    /**
+     * Ships this node's log to replicas over plain TCP, on the address in
+     * {@code banking.replication.listen} (host:port). A replica connects, presents the
+     * cluster token and the last sequence number it holds, or -1 to be seeded; seeding sends
+     * the current snapshot and the ledger segments first. Each replica then has a thread of
+     * its own, which reads durable frames with a {@link TransactionLog.LogReader}, writes them
+     * out unchanged, and adds a heartbeat carrying the primary's durable sequence number
+     * whenever it has caught up. Snapshots keep the log segments a connected replica has not
+     * been sent yet. The stream is neither encrypted nor compressed, so it belongs on a
+     * private network.
+     */
+    private final class ReplicationServer implements Closeable {
+        private final ServerSocket server = new ServerSocket();
+        private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+
+        ReplicationServer(InetSocketAddress address) throws IOException {
+            server.setReuseAddress(true);
+            server.bind(address);
+            Thread acceptor = new Thread(this::acceptLoop, "replication-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private void acceptLoop() {
+            while (!server.isClosed()) {
+                try {
+                    new Session(server.accept()).start();
+                } catch (IOException e) {
+                    if (!server.isClosed()) e.printStackTrace();
+                }
+            }
+        }
+
+        int connected() {
+            return sessions.size();
+        }
+
+        // Every record after this one is still needed by a connected replica
+        long retainAfter() {
+            long retain = Long.MAX_VALUE;
+            for (Session session : sessions) retain = Math.min(retain, session.nextSeq - 1);
+            return retain;
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            for (Session session : sessions) session.socket.close();
+        }
+
+        private final class Session {
+            private final Socket socket;
+            // Zero, which keeps every segment, until the replica's starting point is known
+            private volatile long nextSeq;
+
+            Session(Socket socket) {
+                this.socket = socket;
+            }
+
+            void start() {
+                // Registered before the snapshot is chosen, so no segment it depends on can be dropped meanwhile
+                sessions.add(this);
+                Thread thread = new Thread(this::run, "replication-" + socket.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            private void run() {
+                try (socket) {
+                    socket.setSoTimeout(REPLICATION_HANDSHAKE_MILLIS);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                    if (in.readInt() != REPLICATION_MAGIC) return;
+                    boolean trusted = cluster.trusts(in.readUTF());
+                    long lastSeq = in.readLong();
+                    socket.setSoTimeout(0);
+                    if (!trusted) {
+                        refuse(out, "The replica did not present this node's cluster token.");
+                        return;
+                    }
+                    if (lastSeq < 0) lastSeq = seed(out);
+                    nextSeq = lastSeq + 1;
+                    try (TransactionLog.LogReader reader = transactionLog.reader(lastSeq + 1)) {
+                        while (!socket.isClosed()) {
+                            ByteBuffer frames = reader.next(TimeUnit.MILLISECONDS.toNanos(REPLICATION_HEARTBEAT_MILLIS));
+                            if (frames.hasRemaining()) {
+                                out.writeByte(REPLICATION_RECORDS);
+                                out.writeInt(frames.remaining());
+                                out.write(frames.array(), frames.arrayOffset() + frames.position(), frames.remaining());
+                            }
+                            nextSeq = reader.nextSeq();
+                            if (reader.caughtUp()) {
+                                out.writeByte(REPLICATION_HEARTBEAT);
+                                out.writeLong(reader.durableThrough());
+                            }
+                            out.flush();
+                        }
+                    } catch (TransactionLog.MissingRecordsException e) {
+                        refuse(out, e.getMessage());
+                    }
+                } catch (IOException e) {
+                    // The replica went away, or this node is shutting down; a replica reconnects by itself
+                } finally {
+                    sessions.remove(this);
+                }
+            }
+
+            private void refuse(DataOutputStream out, String reason) throws IOException {
+                out.writeByte(REPLICATION_REFUSED);
+                out.writeUTF(reason);
+                out.flush();
+            }
+
+            // Sends the snapshot and the ledger a new replica starts from; returns the snapshot's sequence number
+            private long seed(DataOutputStream out) throws IOException {
+                long seq = 0;
+                // The snapshot file is only ever replaced whole, so an open channel keeps one consistent snapshot
+                try (FileChannel snapshot = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+                    seq = Snapshot.seqOf(snapshot);
+                    nextSeq = seq + 1;
+                    sendFile(out, FILE_NAME, snapshot);
+                } catch (NoSuchFileException e) {
+                    // Nothing has been snapshotted yet, so the log still starts at the first record
+                }
+                // The ledger was forced before that snapshot was written, so it holds every entry up to it
+                List<Path> segments = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(snapshotFile.resolveSibling(LEDGER_DIR_NAME))) {
+                    for (Path segment : stream) segments.add(segment);
+                }
+                for (Path segment : segments) {
+                    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                        sendFile(out, LEDGER_DIR_NAME + "/" + segment.getFileName(), channel);
+                    }
+                }
+                out.writeByte(REPLICATION_FILES_END);
+                return seq;
+            }
+
+            // Sends the file as it is now; anything appended to it meanwhile is left out
+            private void sendFile(DataOutputStream out, String name, FileChannel channel) throws IOException {
+                long size = channel.size();
+                out.writeByte(REPLICATION_FILE);
+                out.writeUTF(name);
+                out.writeLong(size);
+                ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+                for (long position = 0; position < size; ) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+                    int read = channel.read(buffer, position);
+                    if (read < 0) throw new EOFException("File shrank while being sent: " + name);
+                    out.write(buffer.array(), 0, read);
+                    position += read;
+                }
+            }
+        }
+    }
+
+    /**
+     * A replica's connection to the primary at {@code banking.replication.primary}
+     * (host:port), which keeps this node read-only until it is promoted. {@link #seed(Path)}
+     * fills an empty data directory with the primary's snapshot and ledger before the
+     * application loads it; afterwards a thread follows the primary's log, checks each frame
+     * and applies it with the {@link Applier}, so the replica's log holds the same records
+     * under the same sequence numbers. A heartbeat tells the replica when it held every
+     * record the primary had made durable, and reads are refused once that is longer ago
+     * than {@code banking.replication.maxStaleness}. A dropped connection is retried,
+     * resuming after the last record held here.
+     */
+    private final class ReplicaLink {
+        private final InetSocketAddress primary;
+        private final String token;
+        private final long maxStalenessMillis;
+        private final Thread thread = new Thread(this::run, "replication-replica");
+        private volatile boolean running = true;
+        private volatile Socket socket;
+        // The seeding connection, which the thread carries on streaming from
+        private DataInputStream seeded;
+        // When the replica last held everything the primary had made durable; zero until the first heartbeat
+        private volatile long freshAtMillis;
+        private volatile String refusal;
+
+        ReplicaLink(InetSocketAddress primary, String token, Duration maxStaleness) {
+            this.primary = primary;
+            this.token = token;
+            this.maxStalenessMillis = maxStaleness.toMillis();
+            thread.setDaemon(true);
+        }
+
+        // Copies the primary's snapshot and ledger into the data directory, which holds no accounts yet
+        void seed(Path dataDir) throws IOException {
+            Path root = dataDir.toAbsolutePath().normalize();
+            DataInputStream in = connect(-1);
+            Map<Path, Path> received = new LinkedHashMap<>();
+            byte[] buffer = new byte[1 << 16];
+            try {
+                for (byte type = in.readByte(); type != REPLICATION_FILES_END; type = in.readByte()) {
+                    if (type == REPLICATION_REFUSED) throw new IOException("The primary refused to seed this replica: " + in.readUTF());
+                    if (type != REPLICATION_FILE) throw new IOException("Unexpected replication message " + type);
+                    String name = in.readUTF();
+                    Path file = root.resolve(name).normalize();
+                    if (!file.startsWith(root) || file.equals(root)) throw new IOException("The primary sent a file outside the data directory: " + name);
+                    Files.createDirectories(file.getParent());
+                    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                    try (OutputStream out = Files.newOutputStream(tmp)) {
+                        for (long remaining = in.readLong(); remaining > 0; ) {
+                            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                            if (read < 0) throw new EOFException("The primary closed the connection while sending " + name);
+                            out.write(buffer, 0, read);
+                            remaining -= read;
+                        }
+                    }
+                    received.put(tmp, file);
+                }
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            // The snapshot came first and is moved into place last, so an interrupted seed is simply redone
+            List<Map.Entry<Path, Path>> files = new ArrayList<>(received.entrySet());
+            Collections.reverse(files);
+            for (Map.Entry<Path, Path> file : files) {
+                Files.move(file.getKey(), file.getValue(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            seeded = in;
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        boolean fresh() {
+            long at = freshAtMillis;
+            return at != 0 && System.currentTimeMillis() - at <= maxStalenessMillis;
+        }
+
+        // Not a number before the first heartbeat, and once promotion has stopped the link
+        double lagMillis() {
+            long at = freshAtMillis;
+            return at == 0 || !running ? Double.NaN : System.currentTimeMillis() - at;
+        }
+
+        String refusal() {
+            return refusal;
+        }
+
+        private DataInputStream connect(long lastSeq) throws IOException {
+            Socket socket = new Socket();
+            this.socket = socket;
+            try {
+                socket.connect(primary, REPLICATION_HANDSHAKE_MILLIS);
+                // Heartbeats arrive every few hundred milliseconds at most, so a silent primary is a lost one
+                socket.setSoTimeout((int) Math.max(maxStalenessMillis, REPLICATION_HANDSHAKE_MILLIS));
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeInt(REPLICATION_MAGIC);
+                out.writeUTF(token);
+                out.writeLong(lastSeq);
+                out.flush();
+                return new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        private void run() {
+            DataInputStream in = seeded;
+            seeded = null;
+            boolean following = true;
+            while (running) {
+                try {
+                    if (in == null) in = connect(transactionLog.lastSeq());
+                    following = true;
+                    follow(in);
+                } catch (IOException | RuntimeException e) {
+                    // Reported once per outage, not on every failed reconnection
+                    if (running && following) e.printStackTrace();
+                    following = false;
+                } finally {
+                    in = null;
+                    closeSocket();
+                }
+                if (refusal != null) return;
+                synchronized (this) {
+                    if (running) {
+                        try {
+                            wait(REPLICATION_RETRY_MILLIS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void follow(DataInputStream in) throws IOException {
+            while (running) {
+                byte type = in.readByte();
+                if (type == REPLICATION_RECORDS) {
+                    int length = in.readInt();
+                    ByteBuffer frames = ByteBuffer.wrap(in.readNBytes(length));
+                    if (frames.remaining() != length) throw new EOFException("The primary closed the connection mid-message");
+                    long last = transactionLog.lastSeq();
+                    while (frames.hasRemaining()) {
+                        last = applier.applyShipped(TransactionLog.nextFrame(frames, last + 1));
+                    }
+                    commit(last);
+                } else if (type == REPLICATION_HEARTBEAT) {
+                    if (transactionLog.lastSeq() >= in.readLong()) freshAtMillis = System.currentTimeMillis();
+                } else if (type == REPLICATION_REFUSED) {
+                    // Permanent: this replica cannot continue from what it holds and needs an empty data directory
+                    refusal = in.readUTF();
+                    throw new IOException("The primary refused replication: " + refusal);
+                } else {
+                    throw new IOException("Unexpected replication message " + type);
+                }
+            }
+        }
+
+        private void closeSocket() {
+            Socket current = socket;
+            if (current == null) return;
+            try {
+                current.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void stop() {
+            synchronized (this) {
+                running = false;
+                notifyAll();
+            }
+            closeSocket();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Lock stripe doubling as a sequence lock for readers. Writers hold the lock and make
+     * the version odd while they change balances, even again once they are done; readers
+     * never take the lock on the fast path and retry if the version was odd or changed.
+     * The balance stores and loads in {@link AccountTable} are release/acquire, which
+     * keeps them between the two version writes and the two version reads.
+     */
+    private static final class Stripe extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+
+        volatile long version;
+
+        // Only called with the lock held, so the increments do not race
+        void beginWrite() {
+            version = version + 1;
+        }
+
+        void endWrite() {
+            version = version + 1;
+        }
+    }
+
+    /**
+     * Serialized responses for recently read accounts, in a direct-mapped array indexed by a
+     * hash of the id. An entry is only served while the account still has the balance it
+     * was serialized with, and names never change, so a transfer invalidates it without
+     * having to touch the cache. Entries are immutable and published racily: a reader sees
+     * either a whole entry or none, and a lost update only costs a re-serialization.
+     */
+    static final class AccountJsonCache {
+        private static final class Entry {
+            final long id;
+            final long balanceCents;
+            final byte[] json;
+
+            Entry(long id, long balanceCents, byte[] json) {
+                this.id = id;
+                this.balanceCents = balanceCents;
+                this.json = json;
+            }
+        }
+
+        private final Entry[] slots;
+
+        AccountJsonCache(int slots) {
+            this.slots = new Entry[slots];
+        }
+
+        // Returns the cached response for the account at this balance, or null
+        byte[] get(long id, long balanceCents) {
+            Entry entry = slots[slot(id)];
+            return entry != null && entry.id == id && entry.balanceCents == balanceCents ? entry.json : null;
+        }
+
+        void put(long id, long balanceCents, byte[] json) {
+            slots[slot(id)] = new Entry(id, balanceCents, json);
+        }
+
+        private int slot(long id) {
+            long h = id * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 40) & (slots.length - 1);
+        }
+    }
+
+    // Inner class: Account model, materialized only at the REST boundary
+    static class Account {
+        private Long id;
+        private String name;
+        private BigDecimal balance;
+
+        public Account() {}
+        public Account(Long id, String name, BigDecimal balance) {
+            this.id = id;
+            this.name = name;
+            this.balance = balance;
+        }
+
+        public Long getId() { return id; }
+        public void setId(Long id) { this.id = id; }
+        public String getName() { return name; }
+        public void setName(String name) { this.name = name; }
+        public BigDecimal getBalance() { return balance; }
+        public void setBalance(BigDecimal balance) { this.balance = balance; }
+    }
+
+    // Inner class: one ledger entry as seen from one of its accounts; fromId is null for an opening balance
+    static class Transaction {
+        private final long id;
+        private final Instant timestamp;
+        private final Long fromId;
+        private final long toId;
+        private final BigDecimal amount;
+        private final BigDecimal balanceAfter;
+
+        Transaction(TransactionLedger.Entry entry, long accountId) {
+            this.id = entry.seq;
+            this.timestamp = Instant.ofEpochMilli(entry.timestampMillis);
+            this.fromId = entry.fromId == 0 ? null : entry.fromId;
+            this.toId = entry.toId;
+            this.amount = fromCents(entry.amountCents);
+            this.balanceAfter = fromCents(entry.balanceAfter(accountId));
+        }
+
+        public long getId() { return id; }
+        public Instant getTimestamp() { return timestamp; }
+        public Long getFromId() { return fromId; }
+        public long getToId() { return toId; }
+        public BigDecimal getAmount() { return amount; }
+        public BigDecimal getBalanceAfter() { return balanceAfter; }
+    }
+
+    enum TransferStatus {
+        SUCCESS("Transfer successful."),
+        ACCOUNT_NOT_FOUND("Account not found."),
+        INSUFFICIENT_FUNDS("Insufficient funds."),
+        INVALID_AMOUNT("Invalid amount."),
+        // The source account was debited, but the destination's node has not yet confirmed the credit
+        PENDING("Transfer pending: the destination account will be credited, or the amount refunded.");
+
+        final String message;
+
+        TransferStatus(String message) {
+            this.message = message;
+        }
+    }
+
+    // Which accounts of a transfer are changed here: both, or the one held here when the other is on another node
+    enum Leg { BOTH, DEBIT, CREDIT }
+
+    // Inner class: one item of a batch transfer request
+    static class TransferRequest {
+        private Long fromId;
+        private Long toId;
+        private BigDecimal amount;
+
+        public TransferRequest() {}
+        public TransferRequest(Long fromId, Long toId, BigDecimal amount) {
+            this.fromId = fromId;
+            this.toId = toId;
+            this.amount = amount;
+        }
+
+        public Long getFromId() { return fromId; }
+        public void setFromId(Long fromId) { this.fromId = fromId; }
+        public Long getToId() { return toId; }
+        public void setToId(Long toId) { this.toId = toId; }
+        public BigDecimal getAmount() { return amount; }
+        public void setAmount(BigDecimal amount) { this.amount = amount; }
+    }
+
+    // One credit of a batch sent to another node's /internal/credits, under the saga's credit key
+    static class CreditRequest extends TransferRequest {
+        private String idempotencyKey;
+
+        public CreditRequest() {}
+        public CreditRequest(Long fromId, Long toId, BigDecimal amount, String idempotencyKey) {
+            super(fromId, toId, amount);
+            this.idempotencyKey = idempotencyKey;
+        }
+
+        public String getIdempotencyKey() { return idempotencyKey; }
+        public void setIdempotencyKey(String idempotencyKey) { this.idempotencyKey = idempotencyKey; }
+    }
+
+    /**
+     * Single-writer sequencer for batch transfers.
+     *
+     * Request threads hand whole batches to a bounded queue and one thread applies them
+     * in arrival order. Everything drained in one pass is made durable with a single log
+     * sync before any of those batches is acknowledged, so the fsync cost is shared by
+     * every transfer in the group. The writer still takes the per-account stripes because
+     * it runs alongside the single-transfer endpoint; with one writer those locks are
+     * uncontended and cost a CAS each.
+     */
+    private final class LedgerWriter implements Runnable {
+        private final BlockingQueue<PendingBatch> queue = new ArrayBlockingQueue<>(LEDGER_QUEUE_CAPACITY);
+        private final Thread thread = new Thread(this, "ledger-writer");
+        private volatile boolean running = true;
+
+        void start() {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() {
+            running = false;
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int queued() {
+            return queue.size();
+        }
+
+        CompletableFuture<TransferStatus[]> submit(List<TransferRequest> transfers) {
+            PendingBatch batch = new PendingBatch(transfers);
+            if (!running) {
+                batch.result.completeExceptionally(new IllegalStateException("Ledger writer is stopped."));
+                return batch.result;
+            }
+            try {
+                queue.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                batch.result.completeExceptionally(e);
+            }
+            return batch.result;
+        }
+
+        @Override
+        public void run() {
+            List<PendingBatch> drained = new ArrayList<>();
+            while (running || !queue.isEmpty()) {
+                try {
+                    PendingBatch first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    drained.add(first);
+                    queue.drainTo(drained);
+                    // A batch that fails only fails itself; whatever it and the others applied is still committed
+                    for (PendingBatch batch : drained) {
+                        try {
+                            apply(batch);
+                        } catch (RuntimeException e) {
+                            batch.failure = e;
+                        }
+                    }
+                    RuntimeException commitFailure = null;
+                    try {
+                        commit(transactionLog.lastSeq());
+                    } catch (RuntimeException e) {
+                        commitFailure = e;
+                    }
+                    for (PendingBatch batch : drained) {
+                        RuntimeException failure = batch.failure != null ? batch.failure : commitFailure;
+                        if (failure != null) {
+                            batch.result.completeExceptionally(failure);
+                        } else {
+                            batch.result.complete(batch.statuses);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    running = false;
+                } finally {
+                    drained.clear();
+                }
+            }
+        }
+
+        private void apply(PendingBatch batch) {
+            List<TransferRequest> transfers = batch.transfers;
+            TransferStatus[] statuses = new TransferStatus[transfers.size()];
+            for (int i = 0; i < statuses.length; i++) {
+                TransferRequest t = transfers.get(i);
+                statuses[i] = t == null
+                        ? TransferStatus.INVALID_AMOUNT
+                        : applyTransfer(t.getFromId(), t.getToId(), t.getAmount(), null, Leg.BOTH);
+            }
+            batch.statuses = statuses;
+        }
+    }
+
+    private static final class PendingBatch {
+        final List<TransferRequest> transfers;
+        final CompletableFuture<TransferStatus[]> result = new CompletableFuture<>();
+        TransferStatus[] statuses;
+        // Set if applying the batch threw; transfers it applied before that are committed all the same
+        RuntimeException failure;
+
+        PendingBatch(List<TransferRequest> transfers) {
+            this.transfers = transfers;
+        }
+    }
+
+    /**
+     * Outcomes of transfers made with an Idempotency-Key, so a client retrying after a
+     * timeout gets the original result instead of a second debit. A lookup is one hash
+     * probe. The first request with a key claims it before touching any account; a retry
+     * that arrives meanwhile waits for that request's outcome. Keys are dropped in the
+     * order they were claimed, which is also expiry order, once they expire or the cache
+     * is full; a key still in flight is never dropped.
+     *
+     * Successful keyed transfers are logged with their key and written into snapshots, so
+     * those keys survive a restart. Failed ones are only remembered in memory: repeating a
+     * failed transfer after a restart moves money at most once.
+     */
+    static final class IdempotencyCache {
+        static final class Entry {
+            final String key;
+            final long fromId;
+            final long toId;
+            final long amountCents;
+            final long createdAtMillis;
+            final CompletableFuture<TransferStatus> result = new CompletableFuture<>();
+            // Log sequence of a successful transfer, set before the result completes
+            volatile long seq;
+
+            Entry(String key, long fromId, long toId, long amountCents, long createdAtMillis) {
+                this.key = key;
+                this.fromId = fromId;
+                this.toId = toId;
+                this.amountCents = amountCents;
+                this.createdAtMillis = createdAtMillis;
+            }
+
+            boolean sameTransfer(Entry other) {
+                return fromId == other.fromId && toId == other.toId && amountCents == other.amountCents;
+            }
+
+            boolean succeeded() {
+                return result.getNow(null) == TransferStatus.SUCCESS;
+            }
+        }
+
+        private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+        private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final int capacity;
+        private final long ttlMillis;
+
+        IdempotencyCache(int capacity, Duration ttl) {
+            this.capacity = capacity;
+            this.ttlMillis = ttl.toMillis();
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        // Registers the entry as in flight and returns null, or returns the live entry already holding its key
+        Entry claim(Entry entry) {
+            while (true) {
+                Entry existing = entries.putIfAbsent(entry.key, entry);
+                if (existing == null) break;
+                if (!expired(existing, entry.createdAtMillis)) return existing;
+                if (entries.replace(entry.key, existing, entry)) break;
+            }
+            enqueue(entry);
+            return null;
+        }
+
+        // The successful, unexpired entry holding the key, or null
+        Entry find(String key) {
+            Entry entry = entries.get(key);
+            return entry != null && entry.succeeded() && !expired(entry, System.currentTimeMillis()) ? entry : null;
+        }
+
+        // Forgets an entry whose transfer threw, so the key can be used again
+        void release(Entry entry) {
+            entries.remove(entry.key, entry);
+        }
+
+        // Re-registers a successful transfer found in a snapshot or the log
+        void restore(Entry entry, long seq) {
+            if (expired(entry, System.currentTimeMillis())) return;
+            entry.seq = seq;
+            entry.result.complete(TransferStatus.SUCCESS);
+            entries.put(entry.key, entry);
+            enqueue(entry);
+        }
+
+        // Live keys of successful transfers, oldest first; callers hold every stripe so none is half-recorded
+        List<Entry> successful() {
+            long now = System.currentTimeMillis();
+            List<Entry> successful = new ArrayList<>();
+            for (Entry entry : order) {
+                if (entry.succeeded() && !expired(entry, now) && entries.get(entry.key) == entry) successful.add(entry);
+            }
+            return successful;
+        }
+
+        private boolean expired(Entry entry, long now) {
+            return now - entry.createdAtMillis >= ttlMillis;
+        }
+
+        private void enqueue(Entry entry) {
+            order.add(entry);
+            queued.incrementAndGet();
+            long now = entry.createdAtMillis;
+            while (true) {
+                Entry oldest = order.peek();
+                if (oldest == null || !oldest.result.isDone()) return;
+                if (queued.get() <= capacity && !expired(oldest, now)) return;
+                if (order.remove(oldest)) {
+                    queued.decrementAndGet();
+                    entries.remove(oldest.key, oldest);
+                }
+            }
+        }
+    }
+
+    /**
+     * Account storage keyed by primitive long ids, with balances held as long cents.
+     *
+     * Rows are dense, in ascending id order, and live in fixed-size pages that never move
+     * once allocated: each page packs [id][balance] pairs into a ByteBuffer, either on the
+     * heap or, with {@code banking.offHeap=true}, in direct memory outside the GC-managed
+     * heap. Names sit in a parallel String page. An open-addressing index maps ids to rows; it is
+     * read optimistically and only rebuilt under the write lock on insert. Balance
+     * updates are not synchronized here, callers guard each id with its stripe lock.
+     */
+    static class AccountTable {
+        private static final int PAGE_SHIFT = 16;
+        static final int PAGE_ROWS = 1 << PAGE_SHIFT;
+        private static final int ROW_BYTES = 16;
+        private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+        // Open-addressing hash index; rows[i] holds row + 1 so that zero marks an empty slot
+        private static final class Index {
+            final long[] keys;
+            final int[] rows;
+
+            Index(int capacity) {
+                keys = new long[capacity];
+                rows = new int[capacity];
+            }
+        }
+
+        private final boolean offHeap;
+        private final StampedLock lock = new StampedLock();
+        private volatile ByteBuffer[] rowPages = new ByteBuffer[0];
+        private volatile String[][] namePages = new String[0][];
+        private volatile Index index = new Index(1024);
+        private volatile int size;
+
+        AccountTable(boolean offHeap) {
+            this.offHeap = offHeap;
+        }
+
+        int size() {
+            return size;
+        }
+
+        // Returns the row holding the given id, or -1 if there is none
+        int rowOf(long id) {
+            long stamp = lock.tryOptimisticRead();
+            int row = probe(index, id);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    row = probe(index, id);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return row;
+        }
+
+        private static int probe(Index index, long id) {
+            int mask = index.keys.length - 1;
+            for (int slot = mix(id) & mask; ; slot = (slot + 1) & mask) {
+                int row = index.rows[slot];
+                if (row == 0) return -1;
+                if (index.keys[slot] == id) return row - 1;
+            }
+        }
+
+        private static int mix(long id) {
+            long h = id * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        int insert(long id, String name, long balanceCents) {
+            long stamp = lock.writeLock();
+            try {
+                int row = size;
+                if (row > 0 && id <= id(row - 1)) {
+                    throw new IllegalArgumentException("Account ids must be inserted in ascending order: " + id);
+                }
+                if ((row >>> PAGE_SHIFT) == rowPages.length) addPage();
+                ByteBuffer page = rowPages[row >>> PAGE_SHIFT];
+                int offset = (row & (PAGE_ROWS - 1)) * ROW_BYTES;
+                page.putLong(offset, id);
+                LONGS.setRelease(page, offset + 8, balanceCents);
+                namePages[row >>> PAGE_SHIFT][row & (PAGE_ROWS - 1)] = name;
+                if ((row + 1) * 2 > index.keys.length) index = rehash(index.keys.length * 2, row);
+                place(index, id, row);
+                size = row + 1;
+                return row;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // Fills rows [firstRow, firstRow + rows) of one page during a bulk load
+        interface PageLoader {
+            void load(int page, int firstRow, int rows) throws IOException;
+        }
+
+        /**
+         * Bulk-loads an empty table: every page is allocated up front and filled in parallel
+         * through {@link #putRow}, then the index is built once at its final capacity instead
+         * of being rehashed as rows arrive one by one.
+         */
+        void load(int rowCount, PageLoader loader) throws IOException {
+            long stamp = lock.writeLock();
+            try {
+                if (size != 0) throw new IllegalStateException("Bulk load needs an empty table");
+                int pages = (rowCount + PAGE_ROWS - 1) >>> PAGE_SHIFT;
+                while (rowPages.length < pages) addPage();
+                try {
+                    IntStream.range(0, pages).parallel().forEach(page -> {
+                        int firstRow = page << PAGE_SHIFT;
+                        try {
+                            loader.load(page, firstRow, Math.min(PAGE_ROWS, rowCount - firstRow));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                for (int row = 1; row < rowCount; row++) {
+                    if (id(row) <= id(row - 1)) throw new IOException("Account ids are not ascending at row " + row);
+                }
+                int capacity = 1024;
+                while (capacity < rowCount * 2) capacity <<= 1;
+                index = rehash(capacity, rowCount);
+                size = rowCount;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // Only for page loaders: each writes the rows of its own page while load() holds the write lock
+        void putRow(int row, long id, String name, long balanceCents) {
+            ByteBuffer page = rowPages[row >>> PAGE_SHIFT];
+            int offset = (row & (PAGE_ROWS - 1)) * ROW_BYTES;
+            page.putLong(offset, id);
+            page.putLong(offset + 8, balanceCents);
+            namePages[row >>> PAGE_SHIFT][row & (PAGE_ROWS - 1)] = name;
+        }
+
+        private void addPage() {
+            int pages = rowPages.length;
+            ByteBuffer page = offHeap
+                    ? ByteBuffer.allocateDirect(PAGE_ROWS * ROW_BYTES)
+                    : ByteBuffer.allocate(PAGE_ROWS * ROW_BYTES);
+            ByteBuffer[] newRowPages = Arrays.copyOf(rowPages, pages + 1);
+            newRowPages[pages] = page.order(ByteOrder.nativeOrder());
+            String[][] newNamePages = Arrays.copyOf(namePages, pages + 1);
+            newNamePages[pages] = new String[PAGE_ROWS];
+            namePages = newNamePages;
+            rowPages = newRowPages;
+        }
+
+        private Index rehash(int capacity, int rowCount) {
+            Index grown = new Index(capacity);
+            for (int row = 0; row < rowCount; row++) {
+                place(grown, id(row), row);
+            }
+            return grown;
+        }
+
+        private static void place(Index index, long id, int row) {
+            int mask = index.keys.length - 1;
+            int slot = mix(id) & mask;
+            while (index.rows[slot] != 0) slot = (slot + 1) & mask;
+            index.keys[slot] = id;
+            index.rows[slot] = row + 1;
+        }
+
+        // Rows are in ascending id order, so a cursor resolves by binary search
+        int firstRowAfter(long id) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (id(mid) <= id) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        long id(int row) {
+            return rowPages[row >>> PAGE_SHIFT].getLong((row & (PAGE_ROWS - 1)) * ROW_BYTES);
+        }
+
+        String name(int row) {
+            return namePages[row >>> PAGE_SHIFT][row & (PAGE_ROWS - 1)];
+        }
+
+        long balance(int row) {
+            return (long) LONGS.getAcquire(rowPages[row >>> PAGE_SHIFT], (row & (PAGE_ROWS - 1)) * ROW_BYTES + 8);
+        }
+
+        void setBalance(int row, long balanceCents) {
+            LONGS.setRelease(rowPages[row >>> PAGE_SHIFT], (row & (PAGE_ROWS - 1)) * ROW_BYTES + 8, balanceCents);
+        }
+
+        Account toAccount(int row) {
+            return new Account(id(row), name(row), fromCents(balance(row)));
+        }
+    }
+
+    /**
+     * Binary account snapshot.
+     *
+     * A fixed header (magic, version, log sequence, row count, rows per chunk, chunk count,
+     * the offset, length and CRC32 of the idempotency key section, and the length and CRC32
+     * of the saga section) is followed by a chunk
+     * index of [offset][length][crc32] entries, one CRC32 covering both, and then the chunks.
+     * A chunk holds one table page of [id][balanceCents][nameLength][name as UTF-8] rows, so
+     * on load each chunk is memory-mapped, checked and decoded in parallel straight into its
+     * own page. Names are length-prefixed, so commas and any other character round-trip.
+     * The key section after the chunks holds [count] and then one [createdAtMillis][fromId]
+     * [toId][amountCents][keyLength][key as UTF-8] entry per successful keyed transfer. The
+     * saga section directly after it holds the debits of unsettled sagas in the same layout.
+     * Version 1 snapshots, without the key section, and version 2 snapshots, without the saga
+     * section, are still read.
+     */
+    static final class Snapshot {
+        private static final int MAGIC = 0x42534E31; // "BSN1"
+        private static final int VERSION = 3;
+        private static final int V1_HEADER_SIZE = 32;
+        private static final int V2_HEADER_SIZE = 48;
+        private static final int HEADER_SIZE = 56;
+        private static final int INDEX_ENTRY_SIZE = 16;
+        private static final int ROW_HEADER_SIZE = 20;
+
+        private Snapshot() {}
+
+        static void write(Path file, long seq, AccountTable table, long[] balances, int size,
+                          List<IdempotencyCache.Entry> keys, List<IdempotencyCache.Entry> sagas) throws IOException {
+            int chunkRows = AccountTable.PAGE_ROWS;
+            int chunks = (size + chunkRows - 1) / chunkRows;
+            ByteBuffer index = ByteBuffer.allocate(chunks * INDEX_ENTRY_SIZE);
+            ByteBuffer chunk = ByteBuffer.allocate(chunkRows * 32);
+            CRC32 crc = new CRC32();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long offset = HEADER_SIZE + (long) index.capacity();
+                channel.position(offset);
+                for (int first = 0; first < size; first += chunkRows) {
+                    chunk.clear();
+                    for (int row = first, end = Math.min(size, first + chunkRows); row < end; row++) {
+                        byte[] name = table.name(row).getBytes(StandardCharsets.UTF_8);
+                        if (chunk.remaining() < ROW_HEADER_SIZE + name.length) {
+                            chunk = grow(chunk, ROW_HEADER_SIZE + name.length);
+                        }
+                        chunk.putLong(table.id(row)).putLong(balances[row]).putInt(name.length).put(name);
+                    }
+                    chunk.flip();
+                    crc.reset();
+                    crc.update(chunk.array(), 0, chunk.limit());
+                    index.putLong(offset).putInt(chunk.limit()).putInt((int) crc.getValue());
+                    offset += chunk.limit();
+                    while (chunk.hasRemaining()) channel.write(chunk);
+                }
+
+                chunk = entries(chunk, keys);
+                crc.reset();
+                crc.update(chunk.array(), 0, chunk.limit());
+                int keysLength = chunk.limit();
+                int keysCrc = (int) crc.getValue();
+                while (chunk.hasRemaining()) channel.write(chunk);
+
+                // Sagas follow the keys directly, in the same layout
+                chunk = entries(chunk, sagas);
+                crc.reset();
+                crc.update(chunk.array(), 0, chunk.limit());
+                int sagasLength = chunk.limit();
+                int sagasCrc = (int) crc.getValue();
+                while (chunk.hasRemaining()) channel.write(chunk);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                        .putInt(MAGIC).putInt(VERSION).putLong(seq).putInt(size).putInt(chunkRows).putInt(chunks)
+                        .putLong(offset).putInt(keysLength).putInt(keysCrc).putInt(sagasLength).putInt(sagasCrc);
+                crc.reset();
+                crc.update(header.array(), 0, header.position());
+                crc.update(index.array());
+                header.putInt((int) crc.getValue()).flip();
+                index.flip();
+                long position = 0;
+                while (header.hasRemaining()) position += channel.write(header, position);
+                while (index.hasRemaining()) position += channel.write(index, position);
+                channel.force(true);
+            }
+        }
+
+        // Encodes [count] then [created][from][to][amount][key length][key] per entry into the cleared buffer, flipped
+        private static ByteBuffer entries(ByteBuffer chunk, List<IdempotencyCache.Entry> entries) {
+            chunk.clear();
+            chunk.putInt(entries.size());
+            for (IdempotencyCache.Entry entry : entries) {
+                byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+                if (chunk.remaining() < 34 + key.length) chunk = grow(chunk, 34 + key.length);
+                chunk.putLong(entry.createdAtMillis).putLong(entry.fromId).putLong(entry.toId).putLong(entry.amountCents)
+                        .putShort((short) key.length).put(key);
+            }
+            return chunk.flip();
+        }
+
+        private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+            buffer.flip();
+            return grown.put(buffer);
+        }
+
+        // The log sequence number a snapshot covers, read from its header
+        static long seqOf(FileChannel channel) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC) throw new IOException("Not an account snapshot");
+            return header.getLong(8);
+        }
+
+        // Loads the snapshot into an empty table and cache, and returns the log sequence it covers
+        static long read(Path file, AccountTable table, IdempotencyCache keys,
+                         Consumer<IdempotencyCache.Entry> sagas) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer prefix = ByteBuffer.allocate(8);
+                readFully(channel, prefix, 0);
+                if (prefix.getInt() != MAGIC) throw new IOException("Not an account snapshot: " + file);
+                int version = prefix.getInt();
+                if (version < 1 || version > VERSION) throw new IOException("Unsupported snapshot version " + version + ": " + file);
+                int headerSize = version == 1 ? V1_HEADER_SIZE : version == 2 ? V2_HEADER_SIZE : HEADER_SIZE;
+                ByteBuffer header = ByteBuffer.allocate(headerSize);
+                readFully(channel, header, 0);
+                header.position(8);
+                long seq = header.getLong();
+                int rows = header.getInt();
+                int chunkRows = header.getInt();
+                int chunks = header.getInt();
+                long keysOffset = version == 1 ? 0 : header.getLong();
+                int keysLength = version == 1 ? 0 : header.getInt();
+                int keysCrc = version == 1 ? 0 : header.getInt();
+                int sagasLength = version < 3 ? 0 : header.getInt();
+                int sagasCrc = version < 3 ? 0 : header.getInt();
+                int checksum = header.getInt();
+                if (chunkRows != AccountTable.PAGE_ROWS || rows < 0 || chunks != (rows + chunkRows - 1) / chunkRows) {
+                    throw new IOException("Malformed snapshot header: " + file);
+                }
+
+                ByteBuffer index = ByteBuffer.allocate(chunks * INDEX_ENTRY_SIZE);
+                readFully(channel, index, headerSize);
+                CRC32 crc = new CRC32();
+                crc.update(header.array(), 0, headerSize - 4);
+                crc.update(index.array());
+                if ((int) crc.getValue() != checksum) throw new IOException("Snapshot header checksum mismatch: " + file);
+
+                // Chunks are mapped one at a time, so no single mapping exceeds a page of rows
+                table.load(rows, (page, firstRow, count) -> {
+                    int entry = page * INDEX_ENTRY_SIZE;
+                    MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, index.getLong(entry), index.getInt(entry + 8));
+                    CRC32 chunkCrc = new CRC32();
+                    chunkCrc.update(chunk.duplicate());
+                    if ((int) chunkCrc.getValue() != index.getInt(entry + 12)) {
+                        throw new IOException("Snapshot chunk " + page + " checksum mismatch: " + file);
+                    }
+                    byte[] name = new byte[64];
+                    for (int row = firstRow, end = firstRow + count; row < end; row++) {
+                        long id = chunk.getLong();
+                        long balanceCents = chunk.getLong();
+                        int nameLength = chunk.getInt();
+                        if (nameLength > name.length) name = new byte[Math.max(nameLength, name.length * 2)];
+                        chunk.get(name, 0, nameLength);
+                        table.putRow(row, id, new String(name, 0, nameLength, StandardCharsets.UTF_8), balanceCents);
+                    }
+                    if (chunk.hasRemaining()) throw new IOException("Snapshot chunk " + page + " has trailing bytes: " + file);
+                });
+                if (version != 1) {
+                    readEntries(channel, file, "key", keysOffset, keysLength, keysCrc, entry -> keys.restore(entry, seq));
+                }
+                if (version >= 3) readEntries(channel, file, "saga", keysOffset + keysLength, sagasLength, sagasCrc, sagas);
+                return seq;
+            }
+        }
+
+        private static void readEntries(FileChannel channel, Path file, String section, long offset, int length, int checksum,
+                                        Consumer<IdempotencyCache.Entry> entries) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            readFully(channel, buffer, offset);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array());
+            if ((int) crc.getValue() != checksum) throw new IOException("Snapshot " + section + " section checksum mismatch: " + file);
+            byte[] key = new byte[64];
+            for (int i = buffer.getInt(); i > 0; i--) {
+                long createdAtMillis = buffer.getLong();
+                long fromId = buffer.getLong();
+                long toId = buffer.getLong();
+                long amountCents = buffer.getLong();
+                int keyLength = buffer.getShort() & 0xFFFF;
+                if (keyLength > key.length) key = new byte[Math.max(keyLength, key.length * 2)];
+                buffer.get(key, 0, keyLength);
+                String text = new String(key, 0, keyLength, StandardCharsets.UTF_8);
+                entries.accept(new IdempotencyCache.Entry(text, fromId, toId, amountCents, createdAtMillis));
+            }
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) throw new EOFException("Truncated snapshot");
+                position += read;
+            }
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Append-only write-ahead log of account mutations.
+     *
+     * Each record is framed as [length][crc32][payload] where the payload starts with a
+     * type byte and the record's sequence number. Records are framed into an in-memory
+     * buffer under their callers' own ordering. A dedicated flusher thread writes the
+     * buffer out and forces it, so everything appended meanwhile shares one
+     * {@link FileChannel#force(boolean)} (group commit) and no request thread performs
+     * file I/O. {@link #sync(long)} waits for that flush or not, depending on the
+     * configured {@link Durability}, and appends block once too many records are
+     * waiting for it. A snapshot rotates the active file
+     * to a segment named after its last sequence number, and segments are deleted once a
+     * durable snapshot covers them. On open, records newer than the snapshot are replayed
+     * and a torn or corrupt tail is truncated away.
+     */
+    static class TransactionLog implements Closeable {
+        private static final int MAGIC = 0x42574C31; // "BWL1"
+        private static final int HEADER_SIZE = 4;
+        private static final int FRAME_SIZE = 8;
+        // Written before records carried a timestamp; still replayed, with a timestamp of zero
+        private static final byte CREATE = 1;
+        private static final byte TRANSFER = 2;
+        // A transfer made with an Idempotency-Key, which is logged with it; its creation time is its timestamp
+        private static final byte KEYED_TRANSFER = 3;
+        private static final byte TIMED_CREATE = 4;
+        private static final byte TIMED_TRANSFER = 5;
+
+        interface Handler {
+            void accountCreated(long seq, long timestampMillis, long id, String name, long balanceCents);
+            void transferred(long seq, long timestampMillis, long fromId, long toId, long amountCents);
+            void keyedTransfer(long seq, long fromId, long toId, long amountCents, String key, long createdAtMillis);
+        }
+
+        enum Durability {
+            // Acknowledge a mutation only once its record has been forced to disk
+            FSYNC,
+            // Acknowledge as soon as the record is buffered; the flusher forces it shortly after
+            ASYNC
+        }
+
+        private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+        private final Path path;
+        private final Durability durability;
+        private final int maxPendingRecords;
+        // Guards the write buffer and sequence numbers; never held across a force
+        private final ReentrantLock appendLock = new ReentrantLock();
+        private final Condition pending = appendLock.newCondition();
+        private final Condition flushed = appendLock.newCondition();
+        private final Condition notFull = appendLock.newCondition();
+        // Held while the channel is forced or swapped; taken before appendLock
+        private final ReentrantLock forceLock = new ReentrantLock();
+        private final Thread flusher = new Thread(this::flushLoop, "transaction-log-flusher");
+        private final CRC32 crc = new CRC32();
+        // Records are framed straight into this buffer and reach the channel in large writes
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(1 << 20);
+        private int recordStart;
+        private FileChannel channel;
+        private boolean closed;
+        private IOException failure;
+        private volatile long lastSeq;
+        private volatile long durableSeq;
+        // Bumped by every rotation; with durablePosition, tells readers how much of the active file is forced
+        private long generation;
+        private long durablePosition;
+        // The active file holds only records after this one
+        private long rotatedThrough;
+
+        private TransactionLog(Path path, FileChannel channel, long lastSeq, long rotatedThrough, Durability durability,
+                               int maxPendingRecords) throws IOException {
+            this.path = path;
+            this.channel = channel;
+            this.lastSeq = lastSeq;
+            this.rotatedThrough = rotatedThrough;
+            this.durableSeq = lastSeq;
+            this.durablePosition = channel.position();
+            this.durability = durability;
+            this.maxPendingRecords = maxPendingRecords;
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+
+        static TransactionLog open(Path path, long snapshotSeq, Durability durability, int maxPendingRecords,
+                                   Handler handler) throws IOException {
+            long lastSeq = snapshotSeq;
+            // A snapshot rotates the log, so the active file starts after it or after the newest segment
+            long rotatedThrough = snapshotSeq;
+            String prefix = path.getFileName() + ".";
+            for (Path segment : segments(path)) {
+                try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    lastSeq = Math.max(lastSeq, recover(channel, segment, snapshotSeq, handler));
+                }
+                rotatedThrough = Math.max(rotatedThrough, segmentSeq(segment, prefix));
+            }
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                lastSeq = Math.max(lastSeq, recover(channel, path, snapshotSeq, handler));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return new TransactionLog(path, channel, lastSeq, rotatedThrough, durability, maxPendingRecords);
+        }
+
+        /**
+         * The sequence number of the last record {@link #open} would recover, found without
+         * replaying anything, so the ledger can drop entries for records the log has lost.
+         * Cuts torn tails off the files as open() would.
+         */
+        static long recoverableSeq(Path path, long snapshotSeq) throws IOException {
+            long lastSeq = snapshotSeq;
+            List<Path> files = new ArrayList<>(segments(path));
+            if (Files.exists(path)) files.add(path);
+            for (Path file : files) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    // Records up to Long.MAX_VALUE count as already applied, so no handler is called
+                    lastSeq = Math.max(lastSeq, recover(channel, file, Long.MAX_VALUE, null));
+                }
+            }
+            return lastSeq;
+        }
+
+        // Rotated segments of the log, oldest first
+        private static List<Path> segments(Path path) throws IOException {
+            Path dir = path.toAbsolutePath().getParent();
+            String prefix = path.getFileName() + ".";
+            List<Path> segments = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix + "*")) {
+                for (Path segment : stream) {
+                    if (segmentSeq(segment, prefix) >= 0) segments.add(segment);
+                }
+            }
+            segments.sort(Comparator.comparingLong(segment -> segmentSeq(segment, prefix)));
+            return segments;
+        }
+
+        private static long segmentSeq(Path segment, String prefix) {
+            try {
+                return Long.parseLong(segment.getFileName().toString().substring(prefix.length()));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // Replays one file and truncates it after its last valid record; returns the highest sequence seen
+        private static long recover(FileChannel channel, Path file, long snapshotSeq, Handler handler) throws IOException {
+            long lastSeq = 0;
+            if (channel.size() < HEADER_SIZE) {
+                channel.truncate(0);
+                channel.write(ByteBuffer.allocate(HEADER_SIZE).putInt(0, MAGIC), 0);
+                channel.force(true);
+            } else {
+                ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+                while (buf.hasRemaining() && channel.read(buf, buf.position()) >= 0) { }
+                buf.flip();
+                if (buf.getInt() != MAGIC) {
+                    throw new IOException("Not a transaction log: " + file);
+                }
+                long validEnd = HEADER_SIZE;
+                CRC32 check = new CRC32();
+                while (buf.remaining() >= FRAME_SIZE) {
+                    int length = buf.getInt();
+                    int expected = buf.getInt();
+                    if (length <= 0 || length > buf.remaining()) break;
+                    check.reset();
+                    check.update(buf.slice(buf.position(), length));
+                    if ((int) check.getValue() != expected) break;
+                    lastSeq = replay(buf.slice(buf.position(), length), snapshotSeq, handler);
+                    buf.position(buf.position() + length);
+                    validEnd = buf.position();
+                }
+                if (validEnd < channel.size()) {
+                    channel.truncate(validEnd);
+                    channel.force(true);
+                }
+            }
+            channel.position(channel.size());
+            return lastSeq;
+        }
+
+        private static long replay(ByteBuffer record, long snapshotSeq, Handler handler) {
+            byte type = record.get();
+            long seq = record.getLong();
+            if (seq <= snapshotSeq) return seq;
+            if (type == CREATE || type == TIMED_CREATE) {
+                long id = record.getLong();
+                long balanceCents = record.getLong();
+                long timestampMillis = type == TIMED_CREATE ? record.getLong() : 0;
+                byte[] name = new byte[record.getShort() & 0xFFFF];
+                record.get(name);
+                handler.accountCreated(seq, timestampMillis, id, new String(name, StandardCharsets.UTF_8), balanceCents);
+            } else if (type == TRANSFER || type == TIMED_TRANSFER) {
+                long fromId = record.getLong();
+                long toId = record.getLong();
+                long amountCents = record.getLong();
+                handler.transferred(seq, type == TIMED_TRANSFER ? record.getLong() : 0, fromId, toId, amountCents);
+            } else if (type == KEYED_TRANSFER) {
+                long fromId = record.getLong();
+                long toId = record.getLong();
+                long amountCents = record.getLong();
+                long createdAtMillis = record.getLong();
+                byte[] key = new byte[record.getShort() & 0xFFFF];
+                record.get(key);
+                handler.keyedTransfer(seq, fromId, toId, amountCents, new String(key, StandardCharsets.UTF_8), createdAtMillis);
+            }
+            return seq;
+        }
+
+        // Takes the next frame off a buffer shipped from a primary, checking its length, checksum and sequence number
+        static ByteBuffer nextFrame(ByteBuffer frames, long expectedSeq) throws IOException {
+            if (frames.remaining() < FRAME_SIZE + 1 + 8) throw new IOException("Truncated log frame");
+            int length = frames.getInt(frames.position());
+            if (length < 1 + 8 || length > frames.remaining() - FRAME_SIZE) throw new IOException("Malformed log frame");
+            ByteBuffer frame = frames.slice(frames.position(), FRAME_SIZE + length);
+            CRC32 check = new CRC32();
+            check.update(frame.slice(FRAME_SIZE, length));
+            if ((int) check.getValue() != frame.getInt(4)) throw new IOException("Log frame checksum mismatch");
+            long seq = frame.getLong(FRAME_SIZE + 1);
+            if (seq != expectedSeq) throw new IOException("Expected record " + expectedSeq + " but received " + seq);
+            frames.position(frames.position() + frame.limit());
+            return frame;
+        }
+
+        // Replays one frame taken by nextFrame(); returns its sequence number
+        static long replayFrame(ByteBuffer frame, Handler handler) {
+            return replay(frame.slice(FRAME_SIZE, frame.limit() - FRAME_SIZE), 0, handler);
+        }
+
+        long appendCreate(long id, String name, long balanceCents, long timestampMillis) {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            if (nameBytes.length > MAX_NAME_BYTES) throw new IllegalArgumentException("Account name too long.");
+            appendLock.lock();
+            try {
+                long seq = beginRecord(TIMED_CREATE, 8 + 8 + 8 + 2 + nameBytes.length);
+                writeBuffer.putLong(id).putLong(balanceCents).putLong(timestampMillis)
+                        .putShort((short) nameBytes.length).put(nameBytes);
+                return endRecord(seq);
+            } finally {
+                appendLock.unlock();
+            }
+        }
+
+        long appendTransfer(long fromId, long toId, long amountCents, long timestampMillis) {
+            appendLock.lock();
+            try {
+                long seq = beginRecord(TIMED_TRANSFER, 8 + 8 + 8 + 8);
+                writeBuffer.putLong(fromId).putLong(toId).putLong(amountCents).putLong(timestampMillis);
+                return endRecord(seq);
+            } finally {
+                appendLock.unlock();
+            }
+        }
+
+        long appendKeyedTransfer(long fromId, long toId, long amountCents, String key, long createdAtMillis) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            if (keyBytes.length > 0xFFFF) throw new IllegalArgumentException("Idempotency key too long.");
+            appendLock.lock();
+            try {
+                long seq = beginRecord(KEYED_TRANSFER, 8 + 8 + 8 + 8 + 2 + keyBytes.length);
+                writeBuffer.putLong(fromId).putLong(toId).putLong(amountCents).putLong(createdAtMillis)
+                        .putShort((short) keyBytes.length).put(keyBytes);
+                return endRecord(seq);
+            } finally {
+                appendLock.unlock();
+            }
+        }
+
+        /**
+         * Appends frames shipped from a primary exactly as the primary logged them, so this
+         * log keeps the primary's sequence numbers. The first frame must directly follow
+         * the last record here. Returns the sequence number of the last frame.
+         */
+        long appendFrames(ByteBuffer frames) {
+            appendLock.lock();
+            try {
+                while (frames.hasRemaining()) {
+                    int frameSize = FRAME_SIZE + frames.getInt(frames.position());
+                    long seq = frames.getLong(frames.position() + FRAME_SIZE + 1);
+                    if (seq != lastSeq + 1) {
+                        throw new IllegalStateException("Expected record " + (lastSeq + 1) + " but received " + seq);
+                    }
+                    reserve(frameSize);
+                    writeBuffer.put(frames.slice(frames.position(), frameSize));
+                    frames.position(frames.position() + frameSize);
+                    lastSeq = seq;
+                }
+                return lastSeq;
+            } finally {
+                appendLock.unlock();
+            }
+        }
+
+        // Reserves the frame in the write buffer and writes the type and next sequence number
+        private long beginRecord(byte type, int bodySize) {
+            reserve(FRAME_SIZE + 1 + 8 + bodySize);
+            recordStart = writeBuffer.position();
+            long seq = lastSeq + 1;
+            writeBuffer.position(recordStart + FRAME_SIZE);
+            writeBuffer.put(type).putLong(seq);
+            return seq;
+        }
+
+        // Makes room for a frame of the given size; callers hold appendLock
+        private void reserve(int frameSize) {
+            // Backpressure: appenders wait while the flusher is too far behind
+            while (lastSeq - durableSeq >= maxPendingRecords && failure == null) {
+                pending.signal();
+                notFull.awaitUninterruptibly();
+            }
+            if (failure != null) throw new UncheckedIOException("Transaction log is unusable", failure);
+            if (writeBuffer.remaining() < frameSize) flushBuffer();
+        }
+
+        // Fills in the frame's length and checksum once the body has been written
+        private long endRecord(long seq) {
+            int length = writeBuffer.position() - recordStart - FRAME_SIZE;
+            crc.reset();
+            crc.update(writeBuffer.slice(recordStart + FRAME_SIZE, length));
+            writeBuffer.putInt(recordStart, length).putInt(recordStart + 4, (int) crc.getValue());
+            lastSeq = seq;
+            return seq;
+        }
+
+        // Writes buffered records to the channel; callers hold appendLock
+        private void flushBuffer() {
+            writeBuffer.flip();
+            try {
+                while (writeBuffer.hasRemaining()) channel.write(writeBuffer);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to append to transaction log", e);
+            } finally {
+                writeBuffer.clear();
+            }
+        }
+
+        /**
+         * Hands the record with the given sequence number to the flusher. With FSYNC
+         * durability this blocks until the record is on disk; with ASYNC it returns at once.
+         */
+        void sync(long seq) throws IOException {
+            if (durableSeq >= seq) return;
+            appendLock.lock();
+            try {
+                pending.signal();
+                if (durability == Durability.ASYNC) return;
+                while (durableSeq < seq) {
+                    if (failure != null) throw new IOException("Unable to sync transaction log", failure);
+                    flushed.awaitUninterruptibly();
+                }
+            } finally {
+                appendLock.unlock();
+            }
+        }
+
+        // Waits until the record has been forced to disk, whatever the configured durability
+        void awaitDurable(long seq) throws IOException {
+            if (durableSeq >= seq) return;
+            appendLock.lock();
+            try {
+                pending.signal();
+                while (durableSeq < seq) {
+                    if (failure != null) throw new IOException("Unable to sync transaction log", failure);
+                    flushed.awaitUninterruptibly();
+                }
+            } finally {
+                appendLock.unlock();
+            }
+        }
+
+        long durableSeq() {
+            return durableSeq;
+        }
+
+        // Body of the flusher thread: writes out and forces everything appended so far, then wakes waiters
+        private void flushLoop() {
+            while (true) {
+                appendLock.lock();
+                try {
+                    while (!closed && lastSeq == durableSeq) {
+                        try {
+                            pending.awaitNanos(FLUSH_INTERVAL_NANOS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (lastSeq == durableSeq) return;
+                } finally {
+                    appendLock.unlock();
+                }
+
+                forceLock.lock();
+                try {
+                    long target;
+                    long position;
+                    appendLock.lock();
+                    try {
+                        flushBuffer();
+                        target = lastSeq;
+                        position = channel.position();
+                    } finally {
+                        appendLock.unlock();
+                    }
+                    channel.force(false);
+                    // Still under forceLock, so no rotation can slip in between the force and the new position
+                    markDurable(target, position);
+                } catch (IOException | UncheckedIOException e) {
+                    fail(e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause() : (IOException) e);
+                    return;
+                } finally {
+                    forceLock.unlock();
+                }
+            }
+        }
+
+        private void markDurable(long seq, long position) {
+            appendLock.lock();
+            try {
+                if (seq > durableSeq) durableSeq = seq;
+                durablePosition = position;
+                flushed.signalAll();
+                notFull.signalAll();
+            } finally {
+                appendLock.unlock();
+            }
+        }
+
+        private void fail(IOException e) {
+            e.printStackTrace();
+            appendLock.lock();
+            try {
+                failure = e;
+                flushed.signalAll();
+                notFull.signalAll();
+            } finally {
+                appendLock.unlock();
+            }
+        }
+
+        long lastSeq() {
+            return lastSeq;
+        }
+
+        // Records appended but not yet forced to disk
+        long pendingRecords() {
+            return lastSeq - durableSeq;
+        }
+
+        // Raised when a reader needs records this log no longer, or does not yet, hold
+        static final class MissingRecordsException extends IOException {
+            private static final long serialVersionUID = 1L;
+
+            MissingRecordsException(String message) {
+                super(message);
+            }
+        }
+
+        // Opens a reader of the durable records from nextSeq on
+        LogReader reader(long nextSeq) throws IOException {
+            if (nextSeq > lastSeq + 1) {
+                throw new MissingRecordsException("Records up to " + (nextSeq - 1) + " are not in this log, which ends at " + lastSeq + ".");
+            }
+            return new LogReader(nextSeq);
+        }
+
+        /**
+         * Reads records in sequence order from a starting sequence number, for shipping to
+         * a replica. It reads the files themselves, segment by segment and then the active
+         * file, which it follows through rotations; of the active file it only reads as far
+         * as the flusher has forced, so a replica never receives a record the primary could
+         * still lose. Frames are returned exactly as they are in the file.
+         */
+        final class LogReader implements Closeable {
+            private static final int READ_BUFFER_SIZE = 1 << 18;
+
+            private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            private long nextSeq;
+            private FileChannel file;
+            // Name of the open segment, or -1 for the active file
+            private long fileSeq;
+            private long fileGeneration;
+            private long position;
+            private boolean caughtUp;
+            private long durableThrough;
+
+            private LogReader(long nextSeq) throws IOException {
+                this.nextSeq = nextSeq;
+                open(nextSeq);
+            }
+
+            long nextSeq() {
+                return nextSeq;
+            }
+
+            // True if the last call to next() reached the end of what was durable, which was durableThrough()
+            boolean caughtUp() {
+                return caughtUp;
+            }
+
+            long durableThrough() {
+                return durableThrough;
+            }
+
+            // Returns the next durable frames, waiting up to the timeout for some; empty if none arrived
+            ByteBuffer next(long timeoutNanos) throws IOException {
+                while (true) {
+                    boolean finished;
+                    long bound = -1;
+                    appendLock.lock();
+                    try {
+                        finished = fileSeq >= 0 || fileGeneration != generation;
+                        if (!finished && position >= durablePosition) {
+                            try {
+                                flushed.awaitNanos(timeoutNanos);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new InterruptedIOException("Interrupted while waiting for log records");
+                            }
+                            finished = fileGeneration != generation;
+                        }
+                        if (!finished) {
+                            bound = durablePosition;
+                            durableThrough = durableSeq;
+                        }
+                    } finally {
+                        appendLock.unlock();
+                    }
+                    // A segment, or an active file since rotated away, is complete up to its size
+                    if (finished) bound = file.size();
+                    if (position < bound) {
+                        ByteBuffer frames = read(bound);
+                        caughtUp = !finished && position == bound;
+                        if (frames.hasRemaining() || caughtUp) return frames;
+                    } else if (finished) {
+                        open(Math.max(nextSeq, fileSeq + 1));
+                    } else {
+                        caughtUp = true;
+                        return ByteBuffer.allocate(0);
+                    }
+                }
+            }
+
+            // Reads whole frames up to the bound, keeping those from nextSeq on
+            private ByteBuffer read(long bound) throws IOException {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), bound - position));
+                while (buffer.hasRemaining() && file.read(buffer, position + buffer.position()) >= 0) { }
+                buffer.flip();
+                ByteBuffer frames = ByteBuffer.allocate(buffer.limit());
+                while (buffer.remaining() >= FRAME_SIZE) {
+                    int frameSize = FRAME_SIZE + buffer.getInt(buffer.position());
+                    if (frameSize <= FRAME_SIZE || frameSize > buffer.remaining()) break;
+                    long seq = buffer.getLong(buffer.position() + FRAME_SIZE + 1);
+                    if (seq > nextSeq) {
+                        throw new MissingRecordsException("Records from " + nextSeq + " to " + (seq - 1) + " are no longer in this log.");
+                    }
+                    if (seq == nextSeq) {
+                        frames.put(buffer.slice(buffer.position(), frameSize));
+                        nextSeq++;
+                    }
+                    buffer.position(buffer.position() + frameSize);
+                }
+                if (buffer.position() == 0) throw new IOException("Unreadable log record at offset " + position);
+                position += buffer.position();
+                return frames.flip();
+            }
+
+            // Opens the oldest segment named at or after lowerBound, or else the active file
+            private void open(long lowerBound) throws IOException {
+                if (file != null) file.close();
+                file = null;
+                forceLock.lock();
+                try {
+                    String prefix = path.getFileName() + ".";
+                    for (Path segment : segments(path)) {
+                        long seq = segmentSeq(segment, prefix);
+                        if (seq >= lowerBound) {
+                            file = FileChannel.open(segment, StandardOpenOption.READ);
+                            fileSeq = seq;
+                            break;
+                        }
+                    }
+                    if (file == null) {
+                        if (nextSeq <= rotatedThrough) {
+                            throw new MissingRecordsException("Records from " + nextSeq + " to " + rotatedThrough + " are no longer in this log.");
+                        }
+                        file = FileChannel.open(path, StandardOpenOption.READ);
+                        fileSeq = -1;
+                        fileGeneration = generation;
+                    }
+                } finally {
+                    forceLock.unlock();
+                }
+                position = HEADER_SIZE;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (file != null) file.close();
+            }
+        }
+
+        /**
+         * Makes the active file durable, renames it to a segment named after its last
+         * sequence number and starts a fresh active file. Returns that sequence number.
+         */
+        long rotate() throws IOException {
+            forceLock.lock();
+            try {
+                long seq;
+                appendLock.lock();
+                try {
+                    flushBuffer();
+                    seq = lastSeq;
+                    channel.force(true);
+                    channel.close();
+                    Files.move(path, path.resolveSibling(path.getFileName() + "." + seq), StandardCopyOption.ATOMIC_MOVE);
+                    channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    channel.write(ByteBuffer.allocate(HEADER_SIZE).putInt(0, MAGIC));
+                    channel.force(true);
+                    generation++;
+                    rotatedThrough = seq;
+                } finally {
+                    appendLock.unlock();
+                }
+                markDurable(seq, HEADER_SIZE);
+                return seq;
+            } finally {
+                forceLock.unlock();
+            }
+        }
+
+        // Deletes rotated segments whose records are all covered by a durable snapshot
+        void dropSegmentsUpTo(long seq) throws IOException {
+            String prefix = path.getFileName() + ".";
+            for (Path segment : segments(path)) {
+                if (segmentSeq(segment, prefix) <= seq) Files.deleteIfExists(segment);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            appendLock.lock();
+            try {
+                closed = true;
+                pending.signal();
+            } finally {
+                appendLock.unlock();
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            forceLock.lock();
+            try {
+                appendLock.lock();
+                try {
+                    flushBuffer();
+                } finally {
+                    appendLock.unlock();
+                }
+                channel.force(true);
+                channel.close();
+            } finally {
+                forceLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Append-only history of every account creation and transfer, kept after the write-ahead
+     * log has been cut back by snapshots.
+     *
+     * Entries are fixed 64-byte records [seq][timestampMillis][fromId][toId][amountCents]
+     * [fromBalanceAfter][toBalanceAfter][crc32][unused], where seq is the mutation's log
+     * sequence and a fromId of 0 marks an account's opening balance. Timestamps never
+     * decrease from one entry to the next, and each time partition (an hour by default) has
+     * its own segment file named after the partition's start, so old history can be archived
+     * a file at a time.
+     *
+     * Entries are numbered in append order. In memory the ledger keeps each account's entry
+     * numbers, plus a checkpoint of every {@value #CHECKPOINT_INTERVAL}th entry's timestamp: a
+     * time range becomes a range of entry numbers with a binary search over the checkpoints
+     * and a few reads within one interval, and is then cut out of the account's list. Each
+     * entry carries both balances after it, so the balance at any moment is read from one
+     * entry instead of by replaying history. The entry numbers are never evicted: they cost
+     * 8 bytes of heap per account an entry touches, about 16 bytes per transfer or 1.6 GB per
+     * 100 million, and are rebuilt on open from every segment in the directory, so archiving
+     * old segments is what bounds them.
+     *
+     * The write-ahead log stays the source of truth. Entries are buffered and only written
+     * once the log holds their mutations durably, so the ledger never runs ahead of what the
+     * log can recover; queries read entries still in the buffer from memory. On open, entries
+     * past the end of the recoverable log are cut off as well, and whatever the ledger lacks
+     * is appended again as the log is replayed. The ledger is forced before a snapshot lets
+     * the log segments it covers be deleted. Appends take one lock; queries hold it only to
+     * find entry numbers and read the entries afterwards, so a long history read does not
+     * hold up transfers.
+     *
+     * A new partition seals the active segment without waiting for the log. A sealer thread
+     * waits, outside the lock, for the log to hold the sealed segment's last entries, then
+     * writes them and forces and closes the segment. Entries of later partitions stay
+     * buffered until then, so a crash can only cost a segment its tail and leave the ones
+     * after it empty, never leave a gap before entries that were written.
+     */
+    static final class TransactionLedger implements Closeable {
+        private static final int MAGIC = 0x424C4731; // "BLG1"
+        private static final int HEADER_SIZE = 16;
+        private static final int ENTRY_SIZE = 64;
+        private static final int CHECKPOINT_INTERVAL = 1024;
+        private static final int BUFFER_ENTRIES = 1024;
+        private static final String SEGMENT_PREFIX = "ledger-";
+        private static final String SEGMENT_SUFFIX = ".seg";
+
+        static final class Entry {
+            final long seq;
+            final long timestampMillis;
+            final long fromId;
+            final long toId;
+            final long amountCents;
+            final long fromBalanceAfter;
+            final long toBalanceAfter;
+
+            Entry(long seq, long timestampMillis, long fromId, long toId, long amountCents,
+                  long fromBalanceAfter, long toBalanceAfter) {
+                this.seq = seq;
+                this.timestampMillis = timestampMillis;
+                this.fromId = fromId;
+                this.toId = toId;
+                this.amountCents = amountCents;
+                this.fromBalanceAfter = fromBalanceAfter;
+                this.toBalanceAfter = toBalanceAfter;
+            }
+
+            // A transfer from an account to itself leaves the balance recorded on its credit side
+            long balanceAfter(long accountId) {
+                return accountId == toId ? toBalanceAfter : fromBalanceAfter;
+            }
+
+            long balanceBefore(long accountId) {
+                if (accountId != toId) return fromBalanceAfter + amountCents;
+                return fromId == toId ? toBalanceAfter : toBalanceAfter - amountCents;
+            }
+        }
+
+        private static final class Segment {
+            final Path path;
+            final long partitionStart;
+            final long firstEntry;
+            // Opened on the first query that reads from this segment
+            private FileChannel reader;
+
+            Segment(Path path, long partitionStart, long firstEntry) {
+                this.path = path;
+                this.partitionStart = partitionStart;
+                this.firstEntry = firstEntry;
+            }
+
+            synchronized FileChannel reader() throws IOException {
+                if (reader == null) reader = FileChannel.open(path, StandardOpenOption.READ);
+                return reader;
+            }
+
+            synchronized void closeReader() throws IOException {
+                if (reader != null) reader.close();
+            }
+        }
+
+        // A segment closed to new partitions whose last entries may still be buffered
+        private static final class Sealed {
+            final FileChannel channel;
+            // Number of the first entry past this segment
+            final long end;
+
+            Sealed(FileChannel channel, long end) {
+                this.channel = channel;
+                this.end = end;
+            }
+        }
+
+        // A growable list of longs in non-decreasing order
+        private static final class LongList {
+            long[] values = new long[4];
+            int size;
+
+            void add(long value) {
+                if (size == values.length) values = Arrays.copyOf(values, size * 2);
+                values[size++] = value;
+            }
+
+            // Index of the first value not less than the given one
+            int lowerBound(long value) {
+                int low = 0;
+                int high = size;
+                while (low < high) {
+                    int middle = (low + high) >>> 1;
+                    if (values[middle] < value) {
+                        low = middle + 1;
+                    } else {
+                        high = middle;
+                    }
+                }
+                return low;
+            }
+        }
+
+        private final Path dir;
+        private final long partitionMillis;
+        private final ReentrantLock lock = new ReentrantLock();
+        // Held across sync, which forces and closes finished sealed segments outside the lock
+        private final ReentrantLock syncLock = new ReentrantLock();
+        private final ExecutorService sealer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "ledger-sealer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final CRC32 crc = new CRC32();
+        // Grows while the log is slow to make entries durable; the log's backpressure bounds it
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_ENTRIES * ENTRY_SIZE);
+        private final Map<Long, LongList> byAccount = new HashMap<>();
+        private final LongList checkpoints = new LongList();
+        // Replaced rather than changed, so queries can use it without the lock
+        private volatile Segment[] segments = new Segment[0];
+        private FileChannel channel;
+        // Sealed segments not yet forced and closed, oldest first; entries are written to the first of them
+        private final ArrayDeque<Sealed> sealed = new ArrayDeque<>();
+        private long entryCount;
+        // Entries below this number have been written to their segment file
+        private volatile long writtenCount;
+        private long lastTimestamp;
+        // While the log is replayed: entries newer than the snapshot that the ledger already has
+        private Set<Long> recovered;
+        private long recoveredThrough;
+        // Set on open when an entry was found for a record the log does not hold
+        private boolean cut;
+        // Null while the log is replayed, when every entry appended comes from a record already on disk
+        private volatile TransactionLog log;
+
+        private TransactionLedger(Path dir, long partitionMillis) {
+            this.dir = dir;
+            this.partitionMillis = partitionMillis;
+        }
+
+        /**
+         * Opens the ledger in a directory, rebuilding its index from the segments and cutting off
+         * a torn tail, or the tail from the first entry past {@code logSeq}, the last record the
+         * log can recover. Until {@link #endRecovery()}, {@link #recorded(long)} tells the log
+         * replay which of the mutations after {@code snapshotSeq} are already in the ledger.
+         */
+        static TransactionLedger open(Path dir, Duration partition, long snapshotSeq, long logSeq) throws IOException {
+            Files.createDirectories(dir);
+            TransactionLedger ledger = new TransactionLedger(dir, partition.toMillis());
+            ledger.recovered = new HashSet<>();
+            ledger.recoveredThrough = snapshotSeq;
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                for (Path file : stream) files.add(file);
+            }
+            files.sort(Comparator.comparingLong(TransactionLedger::partitionOf));
+            List<Segment> segments = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                Path file = files.get(i);
+                // Entries appended after the cut are replayed from the log again, if it has them
+                if (ledger.cut) {
+                    Files.delete(file);
+                    continue;
+                }
+                // Created by a roll that crashed before its header was durable; it holds no entries
+                if (Files.size(file) < HEADER_SIZE) {
+                    Files.delete(file);
+                    continue;
+                }
+                Segment segment = new Segment(file, partitionOf(file), ledger.entryCount);
+                long validEnd = ledger.scan(segment, logSeq);
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    if (validEnd < channel.size()) {
+                        // Writing stops at a torn tail, so only empty segments may follow one
+                        if (!ledger.cut && holdsEntries(files.subList(i + 1, files.size()))) {
+                            throw new IOException("Corrupt ledger segment " + file);
+                        }
+                        channel.truncate(validEnd);
+                        channel.force(true);
+                    }
+                }
+                // Rolled to while its entries were buffered behind a sealed segment; the log replays them
+                if (validEnd == HEADER_SIZE) {
+                    Files.delete(file);
+                    continue;
+                }
+                segments.add(segment);
+            }
+            ledger.segments = segments.toArray(new Segment[0]);
+            ledger.writtenCount = ledger.entryCount;
+            if (!segments.isEmpty()) {
+                Segment last = segments.get(segments.size() - 1);
+                ledger.channel = FileChannel.open(last.path, StandardOpenOption.WRITE);
+                ledger.channel.position(ledger.channel.size());
+            }
+            return ledger;
+        }
+
+        private static boolean holdsEntries(List<Path> files) throws IOException {
+            for (Path file : files) {
+                if (Files.size(file) > HEADER_SIZE) return true;
+            }
+            return false;
+        }
+
+        private static long partitionOf(Path file) {
+            String name = file.getFileName().toString();
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+
+        // Indexes a segment's intact entries up to the first past logSeq and returns the offset just past them
+        private long scan(Segment segment, long logSeq) throws IOException {
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (map.getInt(0) != MAGIC) throw new IOException("Not a ledger segment: " + segment.path);
+                long offset = HEADER_SIZE;
+                CRC32 check = new CRC32();
+                for (; offset + ENTRY_SIZE <= size; offset += ENTRY_SIZE) {
+                    ByteBuffer record = map.slice((int) offset, ENTRY_SIZE);
+                    check.reset();
+                    check.update(record.slice(0, 56));
+                    if ((int) check.getValue() != record.getInt(56)) break;
+                    Entry entry = decode(record);
+                    // Written before its record was durable by an older version, and the record was then lost
+                    if (entry.seq > logSeq) {
+                        cut = true;
+                        break;
+                    }
+                    index(entry);
+                    if (entry.seq > recoveredThrough) recovered.add(entry.seq);
+                }
+                return offset;
+            }
+        }
+
+        private void index(Entry entry) {
+            long number = entryCount++;
+            if (number % CHECKPOINT_INTERVAL == 0) checkpoints.add(entry.timestampMillis);
+            lastTimestamp = entry.timestampMillis;
+            if (entry.fromId != 0) byAccount.computeIfAbsent(entry.fromId, id -> new LongList()).add(number);
+            if (entry.toId != entry.fromId) byAccount.computeIfAbsent(entry.toId, id -> new LongList()).add(number);
+        }
+
+        private static Entry decode(ByteBuffer record) {
+            return new Entry(record.getLong(0), record.getLong(8), record.getLong(16), record.getLong(24),
+                    record.getLong(32), record.getLong(40), record.getLong(48));
+        }
+
+        // True if a mutation replayed from the log is already in the ledger
+        boolean recorded(long seq) {
+            return seq <= recoveredThrough || (recovered != null && recovered.contains(seq));
+        }
+
+        // Ends the replay: from now on entries are written only once the log holds their mutations durably
+        void endRecovery(TransactionLog log) {
+            recovered = null;
+            this.log = log;
+        }
+
+        /**
+         * Appends one entry; callers hold the stripes of both accounts, so each account's
+         * entries are in the order its balance changed. A timestamp earlier than the last
+         * entry's is moved up to it.
+         */
+        void append(long seq, long timestampMillis, long fromId, long toId, long amountCents,
+                    long fromBalanceAfter, long toBalanceAfter) {
+            lock.lock();
+            try {
+                long timestamp = Math.max(timestampMillis, lastTimestamp);
+                long partition = timestamp - Math.floorMod(timestamp, partitionMillis);
+                Segment[] current = segments;
+                if (current.length == 0 || current[current.length - 1].partitionStart != partition) roll(partition);
+                if (!buffer.hasRemaining()) flushBuffer();
+                if (!buffer.hasRemaining()) {
+                    buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+                }
+                int start = buffer.position();
+                buffer.putLong(seq).putLong(timestamp).putLong(fromId).putLong(toId).putLong(amountCents)
+                        .putLong(fromBalanceAfter).putLong(toBalanceAfter);
+                crc.reset();
+                crc.update(buffer.array(), start, 56);
+                buffer.putInt((int) crc.getValue()).putInt(0);
+                index(new Entry(seq, timestamp, fromId, toId, amountCents, fromBalanceAfter, toBalanceAfter));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to append to ledger", e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Seals the active segment and starts the one for a new partition; callers hold the
+         * lock. The sealer finishes the sealed segment once the log holds its entries.
+         */
+        private void roll(long partition) throws IOException {
+            if (channel != null) {
+                // Every buffered entry belongs to this or an earlier sealed segment
+                long newest = 0;
+                for (int offset = 0; offset < buffer.position(); offset += ENTRY_SIZE) {
+                    newest = Math.max(newest, buffer.getLong(offset));
+                }
+                sealed.addLast(new Sealed(channel, entryCount));
+                TransactionLog current = log;
+                long through = newest;
+                sealer.execute(() -> finishSealed(current, through));
+            }
+            Path path = dir.resolve(String.format("%s%013d%s", SEGMENT_PREFIX, partition, SEGMENT_SUFFIX));
+            channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            channel.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(0).putLong(partition).flip());
+            channel.force(true);
+            Segment[] current = segments;
+            Segment[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = new Segment(path, partition, entryCount);
+            segments = grown;
+        }
+
+        /**
+         * Writes buffered entries to the oldest unfinished segment, up to the first whose
+         * mutation the log does not yet hold durably or the end of a sealed segment; the rest
+         * stay buffered. Entries are buffered in the order they were appended, which is not
+         * quite sequence order, hence the first rather than all of them. Callers hold the lock.
+         */
+        private void flushBuffer() throws IOException {
+            TransactionLog current = log;
+            long durable = current == null ? Long.MAX_VALUE : current.durableSeq();
+            Sealed head = sealed.peekFirst();
+            int limit = head == null ? buffer.position() : (int) (head.end - writtenCount) * ENTRY_SIZE;
+            int end = 0;
+            while (end < limit && buffer.getLong(end) <= durable) end += ENTRY_SIZE;
+            if (end == 0) return;
+            FileChannel target = head == null ? channel : head.channel;
+            ByteBuffer written = buffer.duplicate().flip().limit(end);
+            while (written.hasRemaining()) target.write(written);
+            buffer.flip().position(end);
+            buffer.compact();
+            writtenCount += end / ENTRY_SIZE;
+        }
+
+        // Makes every entry whose mutation the log holds durably durable in the ledger too
+        void sync() throws IOException {
+            syncLock.lock();
+            try {
+                while (true) {
+                    Sealed head;
+                    lock.lock();
+                    try {
+                        if (channel == null) return;
+                        flushBuffer();
+                        head = sealed.peekFirst();
+                        if (head == null) {
+                            channel.force(false);
+                            return;
+                        }
+                        // The log does not hold its last entries yet; the sealer comes back for them
+                        if (writtenCount < head.end) return;
+                    } finally {
+                        lock.unlock();
+                    }
+                    // Nothing writes to a finished segment, and later entries wait for it, so force it unlocked
+                    head.channel.force(true);
+                    head.channel.close();
+                    lock.lock();
+                    try {
+                        sealed.removeFirst();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } finally {
+                syncLock.unlock();
+            }
+        }
+
+        // Run by the sealer: waits for the log to hold a sealed segment's entries, then writes and forces them
+        private void finishSealed(TransactionLog current, long newest) {
+            try {
+                if (current != null) current.awaitDurable(newest);
+                sync();
+            } catch (IOException e) {
+                // The entries stay buffered for the next sync or close, and the log still has them
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Up to {@code limit} entries touching an account with timestamps in [fromMillis,
+         * toMillis), oldest first.
+         */
+        List<Entry> history(long accountId, long fromMillis, long toMillis, int limit) throws IOException {
+            long first = firstEntryAtOrAfter(fromMillis);
+            long end = firstEntryAtOrAfter(toMillis);
+            long[] numbers;
+            lock.lock();
+            try {
+                LongList list = byAccount.get(accountId);
+                if (list == null) return Collections.emptyList();
+                int from = list.lowerBound(first);
+                int to = Math.min(list.lowerBound(end), from + limit);
+                numbers = Arrays.copyOfRange(list.values, from, Math.max(from, to));
+            } finally {
+                lock.unlock();
+            }
+            Segment[] current = segments;
+            List<Entry> entries = new ArrayList<>(numbers.length);
+            ByteBuffer record = ByteBuffer.allocate(ENTRY_SIZE);
+            for (long number : numbers) entries.add(read(current, number, record));
+            return entries;
+        }
+
+        /**
+         * An account's balance at the end of the given millisecond, from the last entry at or
+         * before it, or from the first entry if the account has none that early. Empty if the
+         * account has no entries at all.
+         */
+        OptionalLong balanceAt(long accountId, long atMillis) throws IOException {
+            long end = atMillis == Long.MAX_VALUE ? Long.MAX_VALUE : firstEntryAtOrAfter(atMillis + 1);
+            long number;
+            boolean before;
+            lock.lock();
+            try {
+                LongList list = byAccount.get(accountId);
+                if (list == null || list.size == 0) return OptionalLong.empty();
+                int at = list.lowerBound(end);
+                before = at == 0;
+                number = list.values[before ? 0 : at - 1];
+            } finally {
+                lock.unlock();
+            }
+            Entry entry = read(segments, number, ByteBuffer.allocate(ENTRY_SIZE));
+            return OptionalLong.of(before ? entry.balanceBefore(accountId) : entry.balanceAfter(accountId));
+        }
+
+        // The number of the first entry with a timestamp of at least the given one, or the entry count if none
+        private long firstEntryAtOrAfter(long timestampMillis) throws IOException {
+            long low;
+            long high;
+            lock.lock();
+            try {
+                int block = checkpoints.lowerBound(timestampMillis);
+                if (block == 0) return 0;
+                // Entries before checkpoint block - 1 are all too early; the answer is in that interval or just after it
+                low = (long) (block - 1) * CHECKPOINT_INTERVAL + 1;
+                high = Math.min((long) block * CHECKPOINT_INTERVAL, entryCount);
+            } finally {
+                lock.unlock();
+            }
+            Segment[] current = segments;
+            ByteBuffer record = ByteBuffer.allocate(ENTRY_SIZE);
+            while (low < high) {
+                long middle = (low + high) >>> 1;
+                if (read(current, middle, record).timestampMillis < timestampMillis) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private Entry read(Segment[] current, long number, ByteBuffer record) throws IOException {
+            if (number >= writtenCount) {
+                lock.lock();
+                try {
+                    // Still buffered: the entry may not be written before the log holds its mutation durably
+                    if (number >= writtenCount) return decode(buffer.slice((int) (number - writtenCount) * ENTRY_SIZE, ENTRY_SIZE));
+                } finally {
+                    lock.unlock();
+                }
+            }
+            int low = 0;
+            int high = current.length - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (current[middle].firstEntry <= number) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            Segment segment = current[low];
+            FileChannel reader = segment.reader();
+            record.clear();
+            long position = HEADER_SIZE + (number - segment.firstEntry) * ENTRY_SIZE;
+            while (record.hasRemaining()) {
+                if (reader.read(record, position + record.position()) < 0) throw new EOFException("Truncated ledger segment " + segment.path);
+            }
+            return decode(record);
+        }
+
+        @Override
+        public void close() throws IOException {
+            sealer.shutdown();
+            try {
+                sealer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sync();
+            lock.lock();
+            try {
+                if (channel != null) {
+                    // Left only if the log failed before holding their last entries
+                    for (Sealed segment : sealed) segment.channel.close();
+                    channel.force(true);
+                    channel.close();
+                }
+                for (Segment segment : segments) segment.closeReader();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Crash-recovery check, run with {@code --recovery-test [cuts]}. It builds a data directory
+     * from a known run of creates, transfers and keyed transfers, with a snapshot part way
+     * through. Then, once per cut, it copies the directory, truncates the log at a random
+     * byte offset as a crash in the middle of a write would, and reopens the copy. The
+     * accounts must come back exactly as they stood after the last record that survived,
+     * with the ledger agreeing. Retried keys of surviving transfers must be replays. The log
+     * must take new records that survive another restart.
+     */
+    static final class RecoveryTest {
+        private static final int ACCOUNTS = 20;
+        private static final int TRANSFERS = 2000;
+
+        // A keyed transfer as it was made, to retry after recovery
+        private record Keyed(String key, long seq, long fromId, long toId, long cents) {}
+
+        static boolean run(int cuts) throws IOException {
+            Path base = Files.createTempDirectory("bank-recovery");
+            try {
+                Random random = new Random(42);
+                long[] ids = new long[ACCOUNTS];
+                long[] balances = new long[ACCOUNTS];
+                // Balances after every logged mutation, by its sequence number
+                Map<Long, long[]> states = new HashMap<>();
+                List<Keyed> keyed = new ArrayList<>();
+                OnlineBankingApplication app = open(base);
+                states.put(app.transactionLog.lastSeq(), balances.clone());
+                for (int i = 0; i < ACCOUNTS; i++) {
+                    balances[i] = 10_000 + random.nextInt(10_000);
+                    ids[i] = app.createAccount(new Account(null, "Account " + i, fromCents(balances[i]))).getId();
+                    states.put(app.transactionLog.lastSeq(), balances.clone());
+                }
+                for (int n = 0; n < TRANSFERS; n++) {
+                    if (n == TRANSFERS / 2) app.saveAccountsToFile();
+                    int from = random.nextInt(ACCOUNTS);
+                    int to = random.nextInt(ACCOUNTS);
+                    long cents = 1 + random.nextInt(5_000);
+                    String key = n % 5 == 0 ? "transfer-" + n : null;
+                    String result = app.transfer(ids[from], ids[to], fromCents(cents), key);
+                    if (!result.equals(TransferStatus.SUCCESS.message)) continue;
+                    balances[from] -= cents;
+                    balances[to] += cents;
+                    long seq = app.transactionLog.lastSeq();
+                    states.put(seq, balances.clone());
+                    if (key != null) keyed.add(new Keyed(key, seq, ids[from], ids[to], cents));
+                }
+                app.close();
+
+                long size = Files.size(base.resolve(LOG_FILE_NAME));
+                int failures = 0;
+                long start = System.nanoTime();
+                for (int cut = 0; cut < cuts; cut++) {
+                    // Always try an empty log and an intact one as well as random offsets
+                    long offset = cut == 0 ? 0 : cut == 1 ? size : random.nextLong(size);
+                    String problem = check(base, offset, ids, states, keyed);
+                    if (problem != null) {
+                        failures++;
+                        System.out.printf("  log cut at byte %,d of %,d: %s%n", offset, size, problem);
+                    }
+                }
+                System.out.printf("%,d cuts of a %,d-byte log in %.2f s: %s%n", cuts, size, (System.nanoTime() - start) / 1e9,
+                        failures == 0 ? "OK" : failures + " FAILED");
+                return failures == 0;
+            } finally {
+                deleteRecursively(base);
+            }
+        }
+
+        // Returns what went wrong recovering a copy of base whose log is cut at offset, or null
+        private static String check(Path base, long offset, long[] ids, Map<Long, long[]> states, List<Keyed> keyed) throws IOException {
+            Path dir = Files.createTempDirectory("bank-recovery-cut");
+            try {
+                try (Stream<Path> files = Files.walk(base)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        if (!file.equals(base)) Files.copy(file, dir.resolve(base.relativize(file).toString()));
+                    }
+                }
+                try (FileChannel channel = FileChannel.open(dir.resolve(LOG_FILE_NAME), StandardOpenOption.WRITE)) {
+                    channel.truncate(offset);
+                }
+                long[] expected;
+                OnlineBankingApplication app = open(dir);
+                try {
+                    long seq = app.transactionLog.lastSeq();
+                    expected = states.get(seq);
+                    if (expected == null) return "recovered to record " + seq + ", which no mutation made";
+                    String problem = compare(app, ids, expected, "recovered to record " + seq);
+                    if (problem != null) return problem;
+                    for (Keyed k : keyed) {
+                        if (k.seq > seq) break;
+                        app.transfer(k.fromId, k.toId, fromCents(k.cents), k.key);
+                    }
+                    problem = compare(app, ids, expected, "after retrying the keys it holds");
+                    if (problem != null) return problem;
+                    expected = expected.clone();
+                    int richest = 0;
+                    for (int i = 1; i < ids.length; i++) {
+                        if (expected[i] > expected[richest]) richest = i;
+                    }
+                    int other = (richest + 1) % ids.length;
+                    String result = app.transfer(ids[richest], ids[other], fromCents(1));
+                    if (!result.equals(TransferStatus.SUCCESS.message)) return "a transfer after recovery answered " + result;
+                    expected[richest]--;
+                    expected[other]++;
+                } finally {
+                    app.close();
+                }
+                app = open(dir);
+                try {
+                    return compare(app, ids, expected, "reopened after a new transfer");
+                } finally {
+                    app.close();
+                }
+            } finally {
+                deleteRecursively(dir);
+            }
+        }
+
+        private static String compare(OnlineBankingApplication app, long[] ids, long[] expected, String when) throws IOException {
+            // Every account is created before the snapshot, so none may be missing
+            for (int i = 0; i < ids.length; i++) {
+                Account account = app.getAccount(ids[i]);
+                if (account == null) return when + ", account " + ids[i] + " is missing";
+                long balance = toCents(account.getBalance());
+                OptionalLong ledgered = app.ledger.balanceAt(ids[i], Long.MAX_VALUE);
+                if (balance != expected[i] || ledgered.isEmpty() || ledgered.getAsLong() != balance) {
+                    return when + ", account " + ids[i] + " holds " + balance + " cents, its ledger "
+                            + (ledgered.isPresent() ? ledgered.getAsLong() : "nothing") + ", expected " + expected[i];
+                }
+            }
+            return null;
+        }
+
+        private static OnlineBankingApplication open(Path dir) {
+            return new OnlineBankingApplication(new ObjectMapper(), new SimpleMeterRegistry(), dir.toString(), false,
+                    TransactionLog.Durability.ASYNC, 65536, 1_000_000, Duration.ofHours(24), Duration.ofHours(1),
+                    "", "", "", "", "", Duration.ofSeconds(5));
+        }
+
+        private static void deleteRecursively(Path dir) throws IOException {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Concurrency check for striped transfers, run with {@code --stress [threads] [transfers]}.
+     * Workers make random transfers, with a batch now and then. They share a few accounts, so
+     * they keep colliding on stripes, and some transfers are refused for insufficient funds.
+     * Each worker tallies what its successful transfers moved. Meanwhile an auditor keeps
+     * taking consistent reads of every balance, and their total must never change. At the
+     * end every balance must equal its opening balance plus the tallies, both before and
+     * after a restart replays the log.
+     */
+    static final class StressTest {
+        private static final int ACCOUNTS = 64;
+        private static final long OPENING_CENTS = 10_000;
+        // One operation in this many is a batch of this many transfers
+        private static final int BATCH_EVERY = 16;
+
+        static boolean run(int threads, long transfers) throws IOException, InterruptedException {
+            Path dir = Files.createTempDirectory("bank-stress");
+            try {
+                OnlineBankingApplication app = RecoveryTest.open(dir);
+                long[] ids = new long[ACCOUNTS];
+                for (int i = 0; i < ACCOUNTS; i++) {
+                    ids[i] = app.createAccount(new Account(null, "Account " + i, fromCents(OPENING_CENTS))).getId();
+                }
+                long perThread = transfers / threads;
+                long[][] moved = new long[threads][ACCOUNTS];
+                long[] refused = new long[threads];
+                Thread[] workers = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                    long[] tally = moved[t];
+                    int worker = t;
+                    workers[t] = new Thread(() -> {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        int[] from = new int[BATCH_EVERY];
+                        int[] to = new int[BATCH_EVERY];
+                        long[] cents = new long[BATCH_EVERY];
+                        long declined = 0;
+                        for (long n = 0; n < perThread; ) {
+                            int count = random.nextInt(BATCH_EVERY) == 0 ? BATCH_EVERY : 1;
+                            List<TransferRequest> batch = new ArrayList<>(count);
+                            for (int i = 0; i < count; i++) {
+                                from[i] = random.nextInt(ACCOUNTS);
+                                to[i] = random.nextInt(ACCOUNTS);
+                                cents[i] = 1 + random.nextInt(1_000);
+                                batch.add(new TransferRequest(ids[from[i]], ids[to[i]], fromCents(cents[i])));
+                            }
+                            List<String> results = count == 1
+                                    ? List.of(app.transfer(ids[from[0]], ids[to[0]], fromCents(cents[0])))
+                                    : app.transferBatch(batch);
+                            for (int i = 0; i < count; i++) {
+                                if (results.get(i).equals(TransferStatus.SUCCESS.message)) {
+                                    tally[from[i]] -= cents[i];
+                                    tally[to[i]] += cents[i];
+                                } else {
+                                    declined++;
+                                }
+                            }
+                            n += count;
+                        }
+                        refused[worker] = declined;
+                    }, "stress-" + t);
+                }
+                AtomicBoolean finished = new AtomicBoolean();
+                long[] audits = new long[2];
+                Thread auditor = new Thread(() -> {
+                    long[] balances = new long[ACCOUNTS];
+                    while (!finished.get()) {
+                        app.readBalances(0, balances);
+                        long total = 0;
+                        for (long balance : balances) total += balance;
+                        audits[0]++;
+                        if (total != OPENING_CENTS * ACCOUNTS) audits[1]++;
+                    }
+                }, "stress-auditor");
+                long start = System.nanoTime();
+                for (Thread worker : workers) worker.start();
+                auditor.start();
+                for (Thread worker : workers) worker.join();
+                long elapsed = System.nanoTime() - start;
+                finished.set(true);
+                auditor.join();
+
+                long[] expected = new long[ACCOUNTS];
+                long declined = 0;
+                for (int i = 0; i < ACCOUNTS; i++) {
+                    expected[i] = OPENING_CENTS;
+                    for (long[] tally : moved) expected[i] += tally[i];
+                }
+                for (long r : refused) declined += r;
+                boolean live = matches(app, ids, expected);
+                app.close();
+                OnlineBankingApplication reopened = RecoveryTest.open(dir);
+                boolean recovered = matches(reopened, ids, expected);
+                reopened.close();
+
+                long total = perThread * threads;
+                System.out.printf("%,d transfers among %d accounts on %d threads in %.2f s (%,.0f transfers/s), %,d refused%n",
+                        total, ACCOUNTS, threads, elapsed / 1e9, total / (elapsed / 1e9), declined);
+                System.out.printf("  %,d consistent reads of every balance, %,d with money missing or made up%n", audits[0], audits[1]);
+                System.out.printf("  balances %s, after a restart %s%n", live ? "OK" : "LOST UPDATES", recovered ? "OK" : "LOST UPDATES");
+                return audits[1] == 0 && live && recovered;
+            } finally {
+                RecoveryTest.deleteRecursively(dir);
+            }
+        }
+
+        private static boolean matches(OnlineBankingApplication app, long[] ids, long[] expected) {
+            for (int i = 0; i < ids.length; i++) {
+                if (toCents(app.getAccount(ids[i]).getBalance()) != expected[i]) return false;
+            }
+            return true;
+        }
     }
 }
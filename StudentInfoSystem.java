@@ -1,7 +1,42 @@
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.table.AbstractTableModel;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 // ===== Model =====
 class Student {
@@ -25,18 +60,1311 @@ class Student {
     public void setCourse(String course) { this.course = course; }
 }
 
+/**
+ * Column-oriented student storage. Ages are an int column, courses an int column of codes
+ * into a course dictionary, and names UTF-8 bytes packed into one shared byte array, so a
+ * row costs a few dozen bytes instead of a Student, a boxed Integer and two Strings.
+ * Renamed or deleted names leave garbage in the byte array, which is compacted once it
+ * outweighs the live bytes. A {@link StudentIndex} on course and age is updated with every
+ * change, so queries and per-course figures never scan the columns.
+ *
+ * Each student has a stable id. Ids are handed out in increasing order and rows keep that
+ * order when others are deleted, so the id column stays sorted and {@link #rowOf(int)} is
+ * a binary search. Row positions shift on delete; ids never do.
+ *
+ * All methods are thread-safe. Sorting and filtering work on a {@link Snapshot} so that
+ * long-running scans never hold the lock.
+ */
+class StudentStore {
+    static final int NAME = 0;
+    static final int AGE = 1;
+    static final int COURSE = 2;
+
+    private static final int MIN_COMPACT_BYTES = 1 << 20;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int size;
+    private int nextId = 1;
+    private int[] ids = new int[16];
+    private int[] ages = new int[16];
+    private int[] courses = new int[16];
+    private int[] nameOffsets = new int[16];
+    private int[] nameLengths = new int[16];
+    private byte[] names = new byte[256];
+    private int namesUsed;
+    private int namesGarbage;
+    private final List<String> courseNames = new ArrayList<>();
+    private final Map<String, Integer> courseCodes = new HashMap<>();
+    private final StudentIndex index = new StudentIndex();
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Student get(int row) {
+        lock.readLock().lock();
+        try {
+            checkRow(row);
+            return student(row);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Null if there is no student with this id
+    public Student getById(int id) {
+        lock.readLock().lock();
+        try {
+            int row = find(id);
+            return row < 0 ? null : student(row);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int idAt(int row) {
+        lock.readLock().lock();
+        try {
+            checkRow(row);
+            return ids[row];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The current row of a student, or -1 if there is no student with this id
+    public int rowOf(int id) {
+        lock.readLock().lock();
+        try {
+            return find(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Adds a student under a new id and returns the id
+    public int add(Student student) {
+        lock.writeLock().lock();
+        try {
+            int id = nextId;
+            append(id, student);
+            return id;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stores a student under a known id, replacing any student with that id. New ids must be
+     * greater than every id stored so far; this is how a persisted roster is reloaded.
+     */
+    public void put(int id, Student student) {
+        lock.writeLock().lock();
+        try {
+            int row = find(id);
+            if (row >= 0) {
+                replace(row, student);
+            } else if (id >= nextId) {
+                append(id, student);
+            } else {
+                throw new IllegalArgumentException("Student id " + id + " is out of order");
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Returns false if there is no student with this id
+    public boolean update(int id, Student student) {
+        lock.writeLock().lock();
+        try {
+            int row = find(id);
+            if (row < 0) return false;
+            replace(row, student);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Returns false if there is no student with this id
+    public boolean delete(int id) {
+        lock.writeLock().lock();
+        try {
+            int row = find(id);
+            if (row < 0) return false;
+            index.remove(id, courses[row], ages[row]);
+            namesGarbage += nameLengths[row];
+            int tail = size - row - 1;
+            System.arraycopy(ids, row + 1, ids, row, tail);
+            System.arraycopy(ages, row + 1, ages, row, tail);
+            System.arraycopy(courses, row + 1, courses, row, tail);
+            System.arraycopy(nameOffsets, row + 1, nameOffsets, row, tail);
+            System.arraycopy(nameLengths, row + 1, nameLengths, row, tail);
+            size--;
+            compactIfWasteful();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Ids of the students matching a query, in increasing order
+    public int[] select(StudentQuery query) {
+        lock.readLock().lock();
+        try {
+            if (query.none) return new int[0];
+            return index.select(courseCodes(query.course), query.minAge, query.maxAge);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public StudentStats summarize(StudentQuery query) {
+        lock.readLock().lock();
+        try {
+            String label = query.course == null ? "All courses" : query.course;
+            if (query.none) return new StudentStats(label, 0, 0);
+            long[] summary = index.summarize(courseCodes(query.course), query.minAge, query.maxAge);
+            return new StudentStats(label, summary[0], summary[1]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Head count and average age of every course with students, sorted by course name ignoring case
+    public List<StudentStats> courseStats() {
+        List<StudentStats> stats = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int code = 0; code < courseNames.size(); code++) {
+                if (index.count(code) > 0) stats.add(new StudentStats(courseNames.get(code), index.count(code), index.ageTotal(code)));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        stats.sort((a, b) -> String.CASE_INSENSITIVE_ORDER.compare(a.label, b.label));
+        return stats;
+    }
+
+    /**
+     * Decodes {@code count} students into a page: those with ids[first, first + count), or
+     * the rows starting at {@code first} when {@code ids} is null. Students that no longer
+     * exist are left null in the page.
+     */
+    public StudentPage read(int[] ids, int first, int count) {
+        StudentPage page = new StudentPage(count);
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                int row = ids == null ? first + i : find(ids[first + i]);
+                if (row < 0 || row >= size) continue;
+                page.names[i] = name(names, nameOffsets[row], nameLengths[row]);
+                page.ages[i] = ages[row];
+                page.courses[i] = courseNames.get(courses[row]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return page;
+    }
+
+    // Copies the row-indexed columns; the name bytes are shared because they are only ever appended to
+    public Snapshot snapshot() {
+        lock.readLock().lock();
+        try {
+            return new Snapshot(size, Arrays.copyOf(ids, size), Arrays.copyOf(ages, size), Arrays.copyOf(courses, size),
+                    Arrays.copyOf(nameOffsets, size), Arrays.copyOf(nameLengths, size), names,
+                    courseNames.toArray(new String[0]));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void append(int id, Student student) {
+        if (size == ages.length) {
+            int capacity = size + (size >> 1);
+            ids = Arrays.copyOf(ids, capacity);
+            ages = Arrays.copyOf(ages, capacity);
+            courses = Arrays.copyOf(courses, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+            nameLengths = Arrays.copyOf(nameLengths, capacity);
+        }
+        int row = size++;
+        ids[row] = id;
+        nextId = id + 1;
+        // write may compact, which copies every row's name including this one's
+        nameOffsets[row] = 0;
+        nameLengths[row] = 0;
+        write(row, student);
+    }
+
+    private void replace(int row, Student student) {
+        index.remove(ids[row], courses[row], ages[row]);
+        namesGarbage += nameLengths[row];
+        // The old name is garbage now, so a compaction in write must not copy it
+        nameOffsets[row] = 0;
+        nameLengths[row] = 0;
+        write(row, student);
+    }
+
+    private int find(int id) {
+        int row = Arrays.binarySearch(ids, 0, size, id);
+        return row >= 0 ? row : -1;
+    }
+
+    private Student student(int row) {
+        return new Student(name(names, nameOffsets[row], nameLengths[row]), ages[row], courseNames.get(courses[row]));
+    }
+
+    private void write(int row, Student student) {
+        ages[row] = student.getAge();
+        courses[row] = courseCode(student.getCourse());
+        byte[] bytes = student.getName().getBytes(StandardCharsets.UTF_8);
+        if (names.length - namesUsed < bytes.length) {
+            compactIfWasteful();
+            if (names.length - namesUsed < bytes.length) {
+                long capacity = Math.max((long) names.length + (names.length >> 1), (long) namesUsed + bytes.length);
+                if (capacity > Integer.MAX_VALUE - 8) throw new IllegalStateException("Student name storage is full");
+                names = Arrays.copyOf(names, (int) capacity);
+            }
+        }
+        System.arraycopy(bytes, 0, names, namesUsed, bytes.length);
+        nameOffsets[row] = namesUsed;
+        nameLengths[row] = bytes.length;
+        namesUsed += bytes.length;
+        index.add(ids[row], courses[row], ages[row]);
+    }
+
+    // The codes of every spelling of a course that differs only in case; null for any course
+    private int[] courseCodes(String course) {
+        if (course == null) return null;
+        int[] codes = new int[0];
+        for (int code = 0; code < courseNames.size(); code++) {
+            if (courseNames.get(code).equalsIgnoreCase(course)) {
+                codes = Arrays.copyOf(codes, codes.length + 1);
+                codes[codes.length - 1] = code;
+            }
+        }
+        return codes;
+    }
+
+    private int courseCode(String course) {
+        Integer code = courseCodes.get(course);
+        if (code == null) {
+            code = courseNames.size();
+            courseNames.add(course);
+            courseCodes.put(course, code);
+        }
+        return code;
+    }
+
+    // Copies live names into a fresh array, leaving the old one intact for open snapshots
+    private void compactIfWasteful() {
+        if (namesGarbage < MIN_COMPACT_BYTES || namesGarbage < namesUsed / 2) return;
+        byte[] compacted = new byte[Math.max(256, (namesUsed - namesGarbage) * 3 / 2)];
+        int used = 0;
+        for (int row = 0; row < size; row++) {
+            System.arraycopy(names, nameOffsets[row], compacted, used, nameLengths[row]);
+            nameOffsets[row] = used;
+            used += nameLengths[row];
+        }
+        names = compacted;
+        namesUsed = used;
+        namesGarbage = 0;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("No student at row " + row);
+    }
+
+    private static String name(byte[] names, int offset, int length) {
+        return new String(names, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An immutable copy of the columns, for sorting and filtering off the lock.
+     */
+    static final class Snapshot {
+        final int size;
+        private final int[] ids;
+        private final int[] ages;
+        private final int[] courses;
+        private final int[] nameOffsets;
+        private final int[] nameLengths;
+        private final byte[] names;
+        private final String[] courseNames;
+
+        Snapshot(int size, int[] ids, int[] ages, int[] courses, int[] nameOffsets, int[] nameLengths, byte[] names,
+                 String[] courseNames) {
+            this.size = size;
+            this.ids = ids;
+            this.ages = ages;
+            this.courses = courses;
+            this.nameOffsets = nameOffsets;
+            this.nameLengths = nameLengths;
+            this.names = names;
+            this.courseNames = courseNames;
+        }
+
+        int id(int row) {
+            return ids[row];
+        }
+
+        Student student(int row) {
+            return new Student(name(names, nameOffsets[row], nameLengths[row]), ages[row], courseNames[courses[row]]);
+        }
+
+        // The rows of the given ids in increasing order, skipping ids this snapshot does not have
+        int[] rowsOf(int[] wanted) {
+            int[] rows = new int[wanted.length];
+            int found = 0;
+            for (int id : wanted) {
+                int row = Arrays.binarySearch(ids, 0, size, id);
+                if (row >= 0) rows[found++] = row;
+            }
+            return found == rows.length ? rows : Arrays.copyOf(rows, found);
+        }
+
+        // Replaces each row in place with its student's id
+        void toIds(int[] rows) {
+            for (int i = 0; i < rows.length; i++) rows[i] = ids[rows[i]];
+        }
+
+        /**
+         * Rows whose name or course contains {@code text}, ignoring case, in store order.
+         */
+        int[] filter(String text) {
+            String needle = text.toLowerCase(Locale.ROOT);
+            boolean[] courseMatches = new boolean[courseNames.length];
+            for (int code = 0; code < courseNames.length; code++) {
+                courseMatches[code] = courseNames[code].toLowerCase(Locale.ROOT).contains(needle);
+            }
+            int[] rows = new int[size];
+            int count = 0;
+            for (int row = 0; row < size; row++) {
+                if (courseMatches[courses[row]]
+                        || name(names, nameOffsets[row], nameLengths[row]).toLowerCase(Locale.ROOT).contains(needle)) {
+                    rows[count++] = row;
+                }
+            }
+            return Arrays.copyOf(rows, count);
+        }
+
+        /**
+         * Stably sorts the given rows by a column: names and courses ignoring ASCII case, ages
+         * numerically. A merge sort over the int array avoids boxing millions of indexes.
+         */
+        void sort(int[] rows, int column, boolean ascending) {
+            int[] courseRanks = null;
+            if (column == COURSE) {
+                Integer[] codes = new Integer[courseNames.length];
+                for (int code = 0; code < codes.length; code++) codes[code] = code;
+                Arrays.sort(codes, (a, b) -> courseNames[a].compareToIgnoreCase(courseNames[b]));
+                courseRanks = new int[codes.length];
+                for (int rank = 0; rank < codes.length; rank++) courseRanks[codes[rank]] = rank;
+            }
+            int[] ranks = courseRanks;
+            RowComparator comparator;
+            switch (column) {
+                case AGE: comparator = (a, b) -> Integer.compare(ages[a], ages[b]); break;
+                case COURSE: comparator = (a, b) -> Integer.compare(ranks[courses[a]], ranks[courses[b]]); break;
+                default:
+                    long[] prefixes = namePrefixes();
+                    comparator = (a, b) -> {
+                        int order = Long.compareUnsigned(prefixes[a], prefixes[b]);
+                        return order != 0 ? order : compareNames(a, b);
+                    };
+                    break;
+            }
+            RowComparator ordered = ascending ? comparator : (a, b) -> comparator.compare(b, a);
+            mergeSort(rows, rows.clone(), 0, rows.length, ordered);
+        }
+
+        // The first eight folded name bytes of each row, big-endian, so most comparisons are one long compare
+        private long[] namePrefixes() {
+            long[] prefixes = new long[size];
+            for (int row = 0; row < size; row++) {
+                long prefix = 0;
+                int offset = nameOffsets[row];
+                int length = Math.min(nameLengths[row], 8);
+                for (int i = 0; i < 8; i++) {
+                    prefix = (prefix << 8) | (i < length ? fold(names[offset + i]) : 0);
+                }
+                prefixes[row] = prefix;
+            }
+            return prefixes;
+        }
+
+        private static int fold(byte b) {
+            int x = b & 0xFF;
+            return x >= 'A' && x <= 'Z' ? x + ('a' - 'A') : x;
+        }
+
+        // UTF-8 bytes compare in code point order; ASCII letters are folded to lower case
+        private int compareNames(int a, int b) {
+            int offsetA = nameOffsets[a];
+            int offsetB = nameOffsets[b];
+            int lengthA = nameLengths[a];
+            int lengthB = nameLengths[b];
+            int common = Math.min(lengthA, lengthB);
+            for (int i = 0; i < common; i++) {
+                int x = fold(names[offsetA + i]);
+                int y = fold(names[offsetB + i]);
+                if (x != y) return x - y;
+            }
+            return lengthA - lengthB;
+        }
+
+        // Sorts rows[from, to) using scratch, which must hold the same values
+        private static void mergeSort(int[] rows, int[] scratch, int from, int to, RowComparator comparator) {
+            if (to - from < 16) {
+                for (int i = from + 1; i < to; i++) {
+                    int row = rows[i];
+                    int j = i;
+                    while (j > from && comparator.compare(rows[j - 1], row) > 0) {
+                        rows[j] = rows[j - 1];
+                        j--;
+                    }
+                    rows[j] = row;
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            // Sort each half of scratch using rows as its scratch, then merge back into rows
+            mergeSort(scratch, rows, from, middle, comparator);
+            mergeSort(scratch, rows, middle, to, comparator);
+            int left = from;
+            int right = middle;
+            for (int i = from; i < to; i++) {
+                if (right >= to || (left < middle && comparator.compare(scratch[left], scratch[right]) <= 0)) {
+                    rows[i] = scratch[left++];
+                } else {
+                    rows[i] = scratch[right++];
+                }
+            }
+        }
+    }
+
+    interface RowComparator {
+        int compare(int a, int b);
+    }
+}
+
+/**
+ * Secondary indexes over a {@link StudentStore}, kept up to date as students change. Each
+ * course code has the ids of its students grouped by age, along with its head count and
+ * age total, and the same age grouping is kept across all courses. A query visits only the
+ * age groups inside its range, and per-course counts and averages are read off directly,
+ * so neither costs a scan of the roster.
+ *
+ * Not thread-safe; the store calls it under its own lock.
+ */
+final class StudentIndex {
+    private final List<CourseIndex> courses = new ArrayList<>();
+    private final TreeMap<Integer, IdSet> byAge = new TreeMap<>();
+
+    private static final class CourseIndex {
+        int count;
+        long ageTotal;
+        final TreeMap<Integer, IdSet> byAge = new TreeMap<>();
+    }
+
+    // A sorted, growable set of ids; new students have the highest ids, so adding is usually an append
+    private static final class IdSet {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            if (size == 0 || ids[size - 1] < id) {
+                ids[size++] = id;
+                return;
+            }
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            if (at >= 0) return;
+            at = -at - 1;
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            size++;
+        }
+
+        void remove(int id) {
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            if (at < 0) return;
+            System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+            size--;
+        }
+    }
+
+    void add(int id, int course, int age) {
+        while (courses.size() <= course) courses.add(new CourseIndex());
+        CourseIndex index = courses.get(course);
+        index.count++;
+        index.ageTotal += age;
+        index.byAge.computeIfAbsent(age, key -> new IdSet()).add(id);
+        byAge.computeIfAbsent(age, key -> new IdSet()).add(id);
+    }
+
+    void remove(int id, int course, int age) {
+        CourseIndex index = courses.get(course);
+        index.count--;
+        index.ageTotal -= age;
+        remove(index.byAge, id, age);
+        remove(byAge, id, age);
+    }
+
+    private static void remove(TreeMap<Integer, IdSet> groups, int id, int age) {
+        IdSet group = groups.get(age);
+        group.remove(id);
+        if (group.size == 0) groups.remove(age);
+    }
+
+    int count(int course) {
+        return course < courses.size() ? courses.get(course).count : 0;
+    }
+
+    long ageTotal(int course) {
+        return course < courses.size() ? courses.get(course).ageTotal : 0;
+    }
+
+    /**
+     * Ids of students aged minAge to maxAge inclusive, in increasing order, taking only the
+     * given course codes or every course when {@code codes} is null.
+     */
+    int[] select(int[] codes, int minAge, int maxAge) {
+        List<IdSet> groups = new ArrayList<>();
+        for (Map.Entry<Integer, IdSet> group : ranges(codes, minAge, maxAge)) groups.add(group.getValue());
+        int total = 0;
+        for (IdSet group : groups) total += group.size;
+        int[] selected = new int[total];
+        int used = 0;
+        for (IdSet group : groups) {
+            System.arraycopy(group.ids, 0, selected, used, group.size);
+            used += group.size;
+        }
+        // Each group is already sorted; a single group is the common case for an exact age or course
+        if (groups.size() > 1) Arrays.sort(selected);
+        return selected;
+    }
+
+    // The number of matching students and the total of their ages
+    long[] summarize(int[] codes, int minAge, int maxAge) {
+        long count = 0;
+        long ageTotal = 0;
+        if (codes != null && minAge == Integer.MIN_VALUE && maxAge == Integer.MAX_VALUE) {
+            for (int code : codes) {
+                count += count(code);
+                ageTotal += ageTotal(code);
+            }
+        } else {
+            for (Map.Entry<Integer, IdSet> group : ranges(codes, minAge, maxAge)) {
+                count += group.getValue().size;
+                ageTotal += (long) group.getKey() * group.getValue().size;
+            }
+        }
+        return new long[] {count, ageTotal};
+    }
+
+    private List<Map.Entry<Integer, IdSet>> ranges(int[] codes, int minAge, int maxAge) {
+        List<Map.Entry<Integer, IdSet>> ranges = new ArrayList<>();
+        if (minAge > maxAge) return ranges;
+        if (codes == null) {
+            ranges.addAll(byAge.subMap(minAge, true, maxAge, true).entrySet());
+        } else {
+            for (int code : codes) {
+                if (code < courses.size()) ranges.addAll(courses.get(code).byAge.subMap(minAge, true, maxAge, true).entrySet());
+            }
+        }
+        return ranges;
+    }
+}
+
+/**
+ * A parsed search such as {@code course = Physics and age between 18 and 21}: conditions on
+ * the course (ignoring case) and on age with =, <, <=, >, >= or between, joined by "and".
+ */
+final class StudentQuery {
+    private static final Pattern CONDITIONS = Pattern.compile("\\s+and\\s+(?=(course|age)\\b)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern COURSE = Pattern.compile("course\\s*=\\s*(.+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern AGE_BETWEEN = Pattern.compile("age\\s+between\\s+(-?\\d+)\\s+and\\s+(-?\\d+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern AGE_COMPARE = Pattern.compile("age\\s*(<=|>=|=|<|>)\\s*(-?\\d+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern START = Pattern.compile("(course|age)\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    // Null when any course matches
+    final String course;
+    final int minAge;
+    final int maxAge;
+    // Set when two course conditions contradict each other
+    final boolean none;
+
+    private StudentQuery(String course, int minAge, int maxAge, boolean none) {
+        this.course = course;
+        this.minAge = minAge;
+        this.maxAge = maxAge;
+        this.none = none;
+    }
+
+    // Returns null if the text is not a query at all, so it can be matched as plain text instead
+    static StudentQuery parse(String text) {
+        text = text.trim();
+        if (!START.matcher(text).matches()) return null;
+        String course = null;
+        boolean none = false;
+        long minAge = Integer.MIN_VALUE;
+        long maxAge = Integer.MAX_VALUE;
+        for (String condition : CONDITIONS.split(text)) {
+            Matcher matcher;
+            if ((matcher = COURSE.matcher(condition)).matches()) {
+                String value = unquote(matcher.group(1).trim());
+                if (course != null && !course.equalsIgnoreCase(value)) none = true;
+                course = value;
+            } else if ((matcher = AGE_BETWEEN.matcher(condition)).matches()) {
+                minAge = Math.max(minAge, age(matcher.group(1)));
+                maxAge = Math.min(maxAge, age(matcher.group(2)));
+            } else if ((matcher = AGE_COMPARE.matcher(condition)).matches()) {
+                long age = age(matcher.group(2));
+                switch (matcher.group(1)) {
+                    case "=": minAge = Math.max(minAge, age); maxAge = Math.min(maxAge, age); break;
+                    case "<": maxAge = Math.min(maxAge, age - 1); break;
+                    case "<=": maxAge = Math.min(maxAge, age); break;
+                    case ">": minAge = Math.max(minAge, age + 1); break;
+                    default: minAge = Math.max(minAge, age); break;
+                }
+            } else {
+                throw new IllegalArgumentException("Cannot understand \"" + condition + "\".");
+            }
+        }
+        // Bounds past the int range only come from comparisons at its edges and match nothing
+        if (minAge > Integer.MAX_VALUE || maxAge < Integer.MIN_VALUE) none = true;
+        return new StudentQuery(course, (int) Math.max(minAge, Integer.MIN_VALUE), (int) Math.min(maxAge, Integer.MAX_VALUE), none);
+    }
+
+    private static String unquote(String value) {
+        return value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"") ? value.substring(1, value.length() - 1) : value;
+    }
+
+    private static long age(String digits) {
+        try {
+            return Integer.parseInt(digits);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Age " + digits + " is out of range.");
+        }
+    }
+}
+
+// A head count and average age, for one course or for the students matching a query
+final class StudentStats {
+    final String label;
+    final int count;
+    final double averageAge;
+
+    StudentStats(String label, long count, long ageTotal) {
+        this.label = label;
+        this.count = (int) count;
+        this.averageAge = count == 0 ? 0 : (double) ageTotal / count;
+    }
+}
+
+// A decoded block of consecutive table rows; null names mark rows that no longer exist
+final class StudentPage {
+    final String[] names;
+    final int[] ages;
+    final String[] courses;
+
+    StudentPage(int rows) {
+        names = new String[rows];
+        ages = new int[rows];
+        courses = new String[rows];
+    }
+}
+
+// ===== Repository =====
+
+/**
+ * Durable storage behind a {@link StudentStore}. Every change is applied to the store at
+ * once and appended to a log file by a single writer thread. Changes queued while the
+ * writer is busy are committed together with one write and one fsync (group commit), and
+ * several changes to the same student in a batch collapse into its final state, so a bulk
+ * edit or import costs a handful of fsyncs rather than one per student. Each change
+ * returns a future that completes once it is on disk. A batch that fails to save is cut
+ * back off the log and retried, merged with whatever changed since, so the log never
+ * drifts from the store; its futures wait for the retry and fail only if the repository
+ * is closed before the batch could be saved.
+ *
+ * The log is a header followed by CRC-checked records, each holding a student's full state
+ * or its deletion. On open it is replayed into a fresh store and a torn tail left by a
+ * crash is cut off. Once the log holds far more records than there are students it is
+ * rewritten from a snapshot of the store.
+ */
+class StudentRepository implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(StudentRepository.class.getName());
+    private static final int MAGIC = 0x53545531; // "STU1"
+    private static final int HEADER_SIZE = 4;
+    private static final int FRAME_SIZE = 8;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // Buffered records are written out once they reach this size, even mid-batch
+    private static final int WRITE_BYTES = 1 << 20;
+    // Superseded records tolerated beyond one per student before the log is rewritten
+    private static final long COMPACT_SLACK = 1 << 20;
+    // Pause before retrying a batch that could not be saved
+    private static final long RETRY_MILLIS = 1000;
+
+    // Frames records into a growable buffer until they are drained to a file
+    private static final class RecordWriter {
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        // A null student records a deletion
+        void write(int id, Student student) {
+            byte[] name = student == null ? null : student.getName().getBytes(StandardCharsets.UTF_8);
+            byte[] course = student == null ? null : student.getCourse().getBytes(StandardCharsets.UTF_8);
+            int length = 1 + 4 + (student == null ? 0 : 4 + 4 + name.length + 4 + course.length);
+            if (buffer.remaining() < FRAME_SIZE + length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + FRAME_SIZE + length));
+                buffer.flip();
+                buffer = grown.put(buffer);
+            }
+            int start = buffer.position();
+            buffer.position(start + FRAME_SIZE);
+            buffer.put(student == null ? DELETE : PUT).putInt(id);
+            if (student != null) {
+                buffer.putInt(student.getAge());
+                buffer.putInt(name.length).put(name);
+                buffer.putInt(course.length).put(course);
+            }
+            crc.reset();
+            crc.update(buffer.array(), start + FRAME_SIZE, length);
+            buffer.putInt(start, length).putInt(start + 4, (int) crc.getValue());
+        }
+
+        int buffered() {
+            return buffer.position();
+        }
+
+        void drainTo(FileChannel channel) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        void discard() {
+            buffer.clear();
+        }
+    }
+
+    private final Path file;
+    private final StudentStore store;
+    private final RecordWriter records = new RecordWriter();
+    private final Thread writer;
+    private final Object lock = new Object();
+    // Guarded by lock: the latest state of each changed student (null once deleted) and the
+    // futures waiting on those changes, both handed to the writer as one batch
+    private Map<Integer, Student> changes = new LinkedHashMap<>();
+    private List<CompletableFuture<Void>> waiters = new ArrayList<>();
+    private boolean closed;
+    // Owned by the writer thread once it starts
+    private FileChannel channel;
+    private long committed;
+    private long logRecords;
+
+    private StudentRepository(Path file, StudentStore store, FileChannel channel, long logRecords) throws IOException {
+        this.file = file;
+        this.store = store;
+        this.channel = channel;
+        this.committed = channel.position();
+        this.logRecords = logRecords;
+        this.writer = new Thread(this::writeLoop, "student-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Loads the students logged in a file, creating it if needed
+    static StudentRepository open(Path file) throws IOException {
+        StudentStore store = new StudentStore();
+        long[] replayed = new long[1];
+        long validEnd = Files.exists(file) ? replay(file, store, replayed) : 0;
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            if (validEnd < HEADER_SIZE) {
+                channel.truncate(0);
+                channel.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).flip(), 0);
+                validEnd = HEADER_SIZE;
+            } else if (validEnd < channel.size()) {
+                channel.truncate(validEnd);
+            }
+            channel.position(validEnd);
+            return new StudentRepository(file, store, channel, replayed[0]);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Returns the offset just past the last intact record
+    private static long replay(Path file, StudentStore store, long[] replayed) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) return 0;
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (map.getInt() != MAGIC) throw new IOException("Not a student log: " + file);
+            CRC32 crc = new CRC32();
+            while (map.remaining() >= FRAME_SIZE) {
+                int start = map.position();
+                int length = map.getInt();
+                int checksum = map.getInt();
+                if (length <= 0 || length > map.remaining()) return start;
+                ByteBuffer record = map.slice(map.position(), length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != checksum) return start;
+                map.position(map.position() + length);
+                byte type = record.get();
+                int id = record.getInt();
+                try {
+                    switch (type) {
+                        case PUT:
+                            int age = record.getInt();
+                            store.put(id, new Student(getString(record), age, getString(record)));
+                            break;
+                        case DELETE: store.delete(id); break;
+                        default: throw new IOException("Unknown record type " + type + " in " + file);
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Corrupt student log " + file + ": " + e.getMessage(), e);
+                }
+                replayed[0]++;
+            }
+            return map.position();
+        }
+    }
+
+    private static String getString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public StudentStore store() {
+        return store;
+    }
+
+    public CompletableFuture<Void> add(Student student) {
+        return addAll(Collections.singletonList(student));
+    }
+
+    public CompletableFuture<Void> addAll(List<Student> students) {
+        synchronized (lock) {
+            checkOpen();
+            for (Student student : students) {
+                changes.put(store.add(student), student);
+            }
+            return enqueue();
+        }
+    }
+
+    // Fails if the student has been deleted
+    public CompletableFuture<Void> update(int id, Student student) {
+        synchronized (lock) {
+            checkOpen();
+            if (!store.update(id, student)) {
+                return CompletableFuture.failedFuture(new IllegalArgumentException("The student no longer exists."));
+            }
+            changes.put(id, student);
+            return enqueue();
+        }
+    }
+
+    // Students that are already gone are skipped
+    public CompletableFuture<Void> deleteAll(int[] ids) {
+        synchronized (lock) {
+            checkOpen();
+            for (int id : ids) {
+                if (store.delete(id)) changes.put(id, null);
+            }
+            return enqueue();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("The student repository is closed.");
+    }
+
+    private CompletableFuture<Void> enqueue() {
+        CompletableFuture<Void> saved = new CompletableFuture<>();
+        waiters.add(saved);
+        lock.notifyAll();
+        return saved;
+    }
+
+    private void writeLoop() {
+        boolean retrying = false;
+        while (true) {
+            Map<Integer, Student> batch;
+            List<CompletableFuture<Void>> batchWaiters;
+            boolean lastTry;
+            synchronized (lock) {
+                while (waiters.isEmpty() && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if (waiters.isEmpty()) return;
+                if (retrying && !closed) {
+                    try {
+                        lock.wait(RETRY_MILLIS);
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                lastTry = closed;
+                batch = changes;
+                batchWaiters = waiters;
+                changes = new LinkedHashMap<>();
+                waiters = new ArrayList<>();
+            }
+            try {
+                commit(batch);
+                for (CompletableFuture<Void> saved : batchWaiters) saved.complete(null);
+                retrying = false;
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Could not save students to " + file, e);
+                rollBack();
+                if (lastTry) {
+                    for (CompletableFuture<Void> saved : batchWaiters) saved.completeExceptionally(e);
+                } else {
+                    requeue(batch, batchWaiters);
+                    retrying = true;
+                }
+                continue;
+            }
+            if (logRecords > 2L * store.size() + COMPACT_SLACK) compact();
+        }
+    }
+
+    private void commit(Map<Integer, Student> batch) throws IOException {
+        for (Map.Entry<Integer, Student> change : batch.entrySet()) {
+            records.write(change.getKey(), change.getValue());
+            if (records.buffered() >= WRITE_BYTES) records.drainTo(channel);
+        }
+        records.drainTo(channel);
+        channel.force(false);
+        committed = channel.position();
+        logRecords += batch.size();
+    }
+
+    // Puts a failed batch back ahead of the changes queued since; their newer states win
+    private void requeue(Map<Integer, Student> batch, List<CompletableFuture<Void>> batchWaiters) {
+        synchronized (lock) {
+            batch.putAll(changes);
+            batchWaiters.addAll(waiters);
+            changes = batch;
+            waiters = batchWaiters;
+        }
+    }
+
+    // Cuts off whatever part of a failed batch reached the file, so later batches still replay
+    private void rollBack() {
+        records.discard();
+        try {
+            channel.truncate(committed);
+            channel.position(committed);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not roll back " + file, e);
+        }
+    }
+
+    /**
+     * Rewrites the log as one record per current student. Changes made while the snapshot is
+     * written are still queued for this thread, so they are appended to the new log after it.
+     */
+    private void compact() {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        StudentStore.Snapshot snapshot = store.snapshot();
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                out.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).flip());
+                for (int row = 0; row < snapshot.size; row++) {
+                    records.write(snapshot.id(row), snapshot.student(row));
+                    if (records.buffered() >= WRITE_BYTES) records.drainTo(out);
+                }
+                records.drainTo(out);
+                out.force(false);
+            }
+            // The old channel stays usable until the rewritten log has replaced it
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            committed = channel.size();
+            channel.position(committed);
+            logRecords = snapshot.size;
+        } catch (IOException e) {
+            records.discard();
+            LOGGER.log(Level.WARNING, "Could not compact " + file, e);
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Overwritten by the next compaction
+            }
+        }
+    }
+
+    // Waits for queued changes to be saved, then closes the log
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
+
+// ===== Table Model =====
+
+/**
+ * A JTable model over a {@link StudentStore} that never materializes the whole roster.
+ * Rows are decoded a page at a time on a background thread the first time the table asks
+ * for them, and a bounded number of pages are kept; until a page arrives its cells are
+ * blank. Sorting and filtering compute a row order off the EDT from a snapshot of the
+ * store and then swap it in, so the table stays responsive with millions of rows. A filter
+ * that parses as a {@link StudentQuery} is answered from the store's indexes rather than
+ * by matching text. The model never changes the store itself; whoever does calls
+ * {@link #storeChanged()}.
+ *
+ * All methods must be called on the EDT.
+ */
+class StudentTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    static final int PAGE_ROWS = 256;
+    private static final int MAX_CACHED_PAGES = 64;
+    private static final String[] COLUMNS = {"Name", "Age", "Course"};
+
+    // The model is tied to a live store and its worker threads, so none of that is serialized
+    private final transient StudentStore store;
+    private final transient ExecutorService pageLoader = Executors.newSingleThreadExecutor(daemon("student-pages"));
+    private final transient ExecutorService viewBuilder = Executors.newSingleThreadExecutor(daemon("student-view"));
+    private final transient Map<Integer, StudentPage> pages = new LinkedHashMap<Integer, StudentPage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, StudentPage> eldest) {
+            return size() > MAX_CACHED_PAGES;
+        }
+    };
+    private final transient Set<Integer> loading = new HashSet<>();
+
+    // Student ids in display order, or null to show the store in its own order
+    private int[] view;
+    private int rowCount;
+    // Bumped whenever rows change, so that pages and views computed before then are discarded;
+    // written on the EDT only, and read by the workers to skip work that is already stale
+    private volatile int generation;
+    private int sortColumn = -1;
+    private boolean ascending = true;
+    private String filter = "";
+    // The parsed filter, or null when it is plain text; summary is its latest result
+    private transient StudentQuery query;
+    private transient StudentStats summary;
+    private boolean building;
+
+    public StudentTableModel(StudentStore store) {
+        this.store = store;
+        this.rowCount = store.size();
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return column == StudentStore.AGE ? Integer.class : String.class;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        StudentPage page = pages.get(row / PAGE_ROWS);
+        if (page == null) {
+            requestPage(row / PAGE_ROWS);
+            return null;
+        }
+        int index = row % PAGE_ROWS;
+        if (index >= page.names.length || page.names[index] == null) return null;
+        switch (column) {
+            case StudentStore.NAME: return page.names[index];
+            case StudentStore.AGE: return page.ages[index];
+            default: return page.courses[index];
+        }
+    }
+
+    // Null if the student has been deleted since the row was shown
+    public Student getStudent(int row) {
+        return view == null ? store.get(row) : store.getById(view[row]);
+    }
+
+    public int idAt(int row) {
+        return view == null ? store.idAt(row) : view[row];
+    }
+
+    public boolean isBuilding() {
+        return building;
+    }
+
+    // The count and average age of the students matching the current query, or null without one
+    public StudentStats getSummary() {
+        return summary;
+    }
+
+    public List<StudentStats> courseStats() {
+        return store.courseStats();
+    }
+
+    // Redisplays the store after students were added, changed or deleted
+    public void storeChanged() {
+        if (isOrdered()) {
+            rebuildView();
+        } else {
+            rowCount = store.size();
+            invalidate();
+            fireTableDataChanged();
+        }
+    }
+
+    // Sorts by a column, toggling the direction if the table is already sorted by it
+    public void sortBy(int column) {
+        ascending = column != sortColumn || !ascending;
+        sortColumn = column;
+        rebuildView();
+    }
+
+    // Throws IllegalArgumentException, leaving the filter unchanged, if a query cannot be understood
+    public void setFilter(String text) {
+        query = StudentQuery.parse(text);
+        filter = text.trim();
+        summary = null;
+        rebuildView();
+    }
+
+    public void shutdown() {
+        pageLoader.shutdownNow();
+        viewBuilder.shutdownNow();
+    }
+
+    private boolean isOrdered() {
+        return sortColumn >= 0 || !filter.isEmpty() || building;
+    }
+
+    private void invalidate() {
+        generation++;
+        pages.clear();
+        loading.clear();
+    }
+
+    private void requestPage(int pageNumber) {
+        if (!loading.add(pageNumber)) return;
+        int first = pageNumber * PAGE_ROWS;
+        int count = Math.min(PAGE_ROWS, rowCount - first);
+        int[] ids = view;
+        int requested = generation;
+        pageLoader.execute(() -> {
+            if (requested != generation) return;
+            StudentPage page = store.read(ids, first, count);
+            SwingUtilities.invokeLater(() -> {
+                if (requested != generation || !loading.remove(pageNumber)) return;
+                pages.put(pageNumber, page);
+                fireTableRowsUpdated(first, first + count - 1);
+            });
+        });
+    }
+
+    private void rebuildView() {
+        invalidate();
+        building = true;
+        int requested = generation;
+        int column = sortColumn;
+        boolean sortAscending = ascending;
+        String text = filter;
+        StudentQuery search = query;
+        viewBuilder.execute(() -> {
+            if (requested != generation) return;
+            StudentStore.Snapshot snapshot = store.snapshot();
+            int[] rows;
+            StudentStats found = null;
+            if (search != null) {
+                rows = snapshot.rowsOf(store.select(search));
+                found = store.summarize(search);
+            } else if (text.isEmpty()) {
+                rows = new int[snapshot.size];
+                for (int i = 0; i < rows.length; i++) rows[i] = i;
+            } else {
+                rows = snapshot.filter(text);
+            }
+            if (column >= 0) snapshot.sort(rows, column, sortAscending);
+            snapshot.toIds(rows);
+            int[] built = column < 0 && text.isEmpty() ? null : rows;
+            int builtCount = rows.length;
+            StudentStats builtSummary = found;
+            SwingUtilities.invokeLater(() -> {
+                if (requested != generation) return;
+                view = built;
+                rowCount = builtCount;
+                summary = builtSummary;
+                building = false;
+                invalidate();
+                fireTableDataChanged();
+            });
+        });
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
+
 // ===== View =====
 class StudentView extends JFrame {
     JTextField nameField = new JTextField();
     JTextField ageField = new JTextField();
     JTextField courseField = new JTextField();
+    JTextField filterField = new JTextField(20);
+    JLabel statusLabel = new JLabel();
     JButton addButton = new JButton("Add");
     JButton updateButton = new JButton("Update");
     JButton deleteButton = new JButton("Delete");
+    JButton importButton = new JButton("Import...");
+    JButton coursesButton = new JButton("Courses...");
     JTable studentTable;
-    DefaultTableModel tableModel;
+    StudentTableModel tableModel;
 
-    public StudentView() {
+    public StudentView(StudentStore store) {
         setTitle("Student Information System");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setSize(700, 400);
@@ -54,27 +1382,54 @@ class StudentView extends JFrame {
         formPanel.add(ageField);
         formPanel.add(courseField);
         formPanel.add(addButton);
-        add(formPanel, BorderLayout.NORTH);
 
-        // Table
-        tableModel = new DefaultTableModel(new Object[]{"Name", "Age", "Course"}, 0);
+        // Filter
+        JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        filterPanel.add(new JLabel("Filter:"));
+        filterPanel.add(filterField);
+        filterField.setToolTipText("Text to find, or a query such as: course = Physics and age between 18 and 21");
+
+        JPanel northPanel = new JPanel(new BorderLayout());
+        northPanel.add(formPanel, BorderLayout.NORTH);
+        northPanel.add(filterPanel, BorderLayout.SOUTH);
+        add(northPanel, BorderLayout.NORTH);
+
+        // Table; rows all have the same height, so JTable never measures the whole roster
+        tableModel = new StudentTableModel(store);
         studentTable = new JTable(tableModel);
+        studentTable.getTableHeader().setToolTipText("Click a column to sort");
         add(new JScrollPane(studentTable), BorderLayout.CENTER);
 
         // Buttons
-        JPanel buttonPanel = new JPanel();
-        buttonPanel.add(updateButton);
-        buttonPanel.add(deleteButton);
+        JPanel buttonPanel = new JPanel(new BorderLayout());
+        JPanel buttons = new JPanel();
+        buttons.add(updateButton);
+        buttons.add(deleteButton);
+        buttons.add(importButton);
+        buttons.add(coursesButton);
+        buttonPanel.add(statusLabel, BorderLayout.WEST);
+        buttonPanel.add(buttons, BorderLayout.CENTER);
         add(buttonPanel, BorderLayout.SOUTH);
     }
 }
 
 // ===== Controller =====
+
+/**
+ * Turns form and table actions into repository changes. Each change is made on a
+ * {@link SwingWorker} thread, and the table is refreshed on the EDT once the change is in
+ * the store; saving it to disk finishes in the background and only a failure is reported.
+ */
 class StudentController {
+    private static final int IMPORT_CHUNK = 10_000;
+
     private final StudentView view;
+    private final StudentRepository repository;
+    private int imported = -1;
 
-    public StudentController(StudentView view) {
+    public StudentController(StudentView view, StudentRepository repository) {
         this.view = view;
+        this.repository = repository;
         initController();
     }
 
@@ -82,14 +1437,38 @@ class StudentController {
         view.addButton.addActionListener(e -> addStudent());
         view.updateButton.addActionListener(e -> updateStudent());
         view.deleteButton.addActionListener(e -> deleteStudent());
+        view.importButton.addActionListener(e -> importStudents());
+        view.coursesButton.addActionListener(e -> showCourses());
+        view.filterField.addActionListener(e -> {
+            try {
+                view.tableModel.setFilter(view.filterField.getText());
+            } catch (IllegalArgumentException ex) {
+                JOptionPane.showMessageDialog(view, "Invalid query. " + ex.getMessage());
+            }
+            updateStatus();
+        });
+        view.tableModel.addTableModelListener(e -> updateStatus());
+        updateStatus();
+
+        view.studentTable.getTableHeader().addMouseListener(new MouseAdapter() {
+            public void mouseClicked(MouseEvent e) {
+                int column = view.studentTable.columnAtPoint(e.getPoint());
+                if (column != -1) {
+                    view.tableModel.sortBy(view.studentTable.convertColumnIndexToModel(column));
+                    updateStatus();
+                }
+            }
+        });
 
         view.studentTable.addMouseListener(new MouseAdapter() {
             public void mouseClicked(MouseEvent e) {
                 int selectedRow = view.studentTable.getSelectedRow();
                 if (selectedRow != -1) {
-                    view.nameField.setText(view.tableModel.getValueAt(selectedRow, 0).toString());
-                    view.ageField.setText(view.tableModel.getValueAt(selectedRow, 1).toString());
-                    view.courseField.setText(view.tableModel.getValueAt(selectedRow, 2).toString());
+                    Student student = view.tableModel.getStudent(selectedRow);
+                    if (student == null) return;
+                    view.nameField.setText(student.getName());
+                    view.ageField.setText(String.valueOf(student.getAge()));
+                    view.courseField.setText(student.getCourse());
                 }
             }
         });
@@ -100,7 +1479,8 @@ class StudentController {
             String name = view.nameField.getText();
             int age = Integer.parseInt(view.ageField.getText());
             String course = view.courseField.getText();
-            view.tableModel.addRow(new Object[]{name, age, course});
+            Student student = new Student(name, age, course);
+            save("Could not add the student: ", () -> repository.add(student));
             clearFields();
         } catch (Exception e) {
             JOptionPane.showMessageDialog(view, "Invalid input. Please enter correct data.");
@@ -114,9 +1494,9 @@ class StudentController {
                 String name = view.nameField.getText();
                 int age = Integer.parseInt(view.ageField.getText());
                 String course = view.courseField.getText();
-                view.tableModel.setValueAt(name, selectedRow, 0);
-                view.tableModel.setValueAt(age, selectedRow, 1);
-                view.tableModel.setValueAt(course, selectedRow, 2);
+                Student student = new Student(name, age, course);
+                int id = view.tableModel.idAt(selectedRow);
+                save("Could not update the student: ", () -> repository.update(id, student));
                 clearFields();
             } catch (Exception e) {
                 JOptionPane.showMessageDialog(view, "Invalid input for update.");
@@ -124,16 +1504,155 @@ class StudentController {
         }
     }
 
+    // Deletes every selected row
     private void deleteStudent() {
-        int selectedRow = view.studentTable.getSelectedRow();
-        if (selectedRow != -1) {
-            view.tableModel.removeRow(selectedRow);
+        int[] selectedRows = view.studentTable.getSelectedRows();
+        if (selectedRows.length > 0) {
+            int[] ids = new int[selectedRows.length];
+            for (int i = 0; i < ids.length; i++) ids[i] = view.tableModel.idAt(selectedRows[i]);
+            save("Could not delete the students: ", () -> repository.deleteAll(ids));
             clearFields();
         } else {
             JOptionPane.showMessageDialog(view, "Please select a row to delete.");
         }
     }
 
+    private void save(String failure, Callable<CompletableFuture<Void>> change) {
+        new SwingWorker<Void, Boolean>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                CompletableFuture<Void> saved = change.call();
+                publish(Boolean.TRUE);
+                saved.get();
+                return null;
+            }
+
+            @Override
+            protected void process(List<Boolean> applied) {
+                view.tableModel.storeChanged();
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    JOptionPane.showMessageDialog(view, failure + cause(e).getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Reads "name,age,course" lines from a file and adds them in chunks. The table is
+     * refreshed once per published chunk rather than once per student, and the next chunk is
+     * read only after the one before it has been saved, so a large file never piles up in memory.
+     */
+    private void importStudents() {
+        if (imported >= 0) return;
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(view) != JFileChooser.APPROVE_OPTION) return;
+        Path source = chooser.getSelectedFile().toPath();
+        imported = 0;
+        view.importButton.setEnabled(false);
+        updateStatus();
+        new SwingWorker<Integer, Integer>() {
+            @Override
+            protected Integer doInBackground() throws Exception {
+                int skipped = 0;
+                CompletableFuture<Void> previous = CompletableFuture.completedFuture(null);
+                List<Student> chunk = new ArrayList<>(IMPORT_CHUNK);
+                try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.isBlank()) continue;
+                        String[] fields = line.split(",", -1);
+                        try {
+                            if (fields.length != 3) throw new NumberFormatException(line);
+                            chunk.add(new Student(fields[0].trim(), Integer.parseInt(fields[1].trim()), fields[2].trim()));
+                        } catch (NumberFormatException e) {
+                            skipped++;
+                            continue;
+                        }
+                        if (chunk.size() == IMPORT_CHUNK) {
+                            previous.get();
+                            previous = repository.addAll(chunk);
+                            publish(chunk.size());
+                            chunk = new ArrayList<>(IMPORT_CHUNK);
+                        }
+                    }
+                }
+                previous.get();
+                if (!chunk.isEmpty()) {
+                    repository.addAll(chunk).get();
+                    publish(chunk.size());
+                }
+                return skipped;
+            }
+
+            @Override
+            protected void process(List<Integer> chunks) {
+                for (int count : chunks) imported += count;
+                view.tableModel.storeChanged();
+            }
+
+            @Override
+            protected void done() {
+                String message;
+                try {
+                    int skipped = get();
+                    message = String.format("Imported %,d students.", imported)
+                            + (skipped > 0 ? String.format(" %,d lines could not be read.", skipped) : "");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    message = String.format("Import stopped after %,d students: %s", imported, cause(e).getMessage());
+                }
+                imported = -1;
+                view.importButton.setEnabled(true);
+                updateStatus();
+                JOptionPane.showMessageDialog(view, message);
+            }
+        }.execute();
+    }
+
+    // Per-course figures come straight from the store's index, so this is cheap on the EDT
+    private void showCourses() {
+        List<StudentStats> stats = view.tableModel.courseStats();
+        Object[][] rows = new Object[stats.size()][];
+        for (int i = 0; i < rows.length; i++) {
+            StudentStats course = stats.get(i);
+            rows[i] = new Object[] {course.label, course.count, String.format("%.1f", course.averageAge)};
+        }
+        JTable table = new JTable(rows, new Object[] {"Course", "Students", "Average Age"});
+        table.setEnabled(false);
+        JScrollPane scroll = new JScrollPane(table);
+        scroll.setPreferredSize(new Dimension(400, 250));
+        JOptionPane.showMessageDialog(view, scroll, "Courses", JOptionPane.PLAIN_MESSAGE);
+    }
+
+    // Unwraps a worker failure that was itself a failed save
+    private static Throwable cause(ExecutionException e) {
+        Throwable cause = e.getCause();
+        return cause instanceof ExecutionException ? cause.getCause() : cause;
+    }
+
+    private void updateStatus() {
+        StudentStats summary = view.tableModel.getSummary();
+        String status;
+        if (view.tableModel.isBuilding()) {
+            status = "Sorting and filtering...";
+        } else if (summary != null) {
+            status = String.format("%,d students, average age %.1f", summary.count, summary.averageAge);
+        } else {
+            status = String.format("%,d students", view.tableModel.getRowCount());
+        }
+        view.statusLabel.setText(imported < 0 ? status : status + String.format(" (importing, %,d read)", imported));
+    }
+
     private void clearFields() {
         view.nameField.setText("");
         view.ageField.setText("");
@@ -143,10 +1662,28 @@ class StudentController {
 
 // ===== Main =====
 public class StudentInfoSystem {
+    // Usage: StudentInfoSystem [data directory]; students are kept in students.log there
     public static void main(String[] args) {
+        Path file = Paths.get(args.length > 0 ? args[0] : ".").resolve("students.log");
+        StudentRepository repository;
+        try {
+            repository = StudentRepository.open(file);
+        } catch (IOException e) {
+            System.err.println("Could not open " + file + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        // Exiting the frame ends the JVM; changes still queued are saved on the way out
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                repository.close();
+            } catch (IOException e) {
+                System.err.println("Could not close " + file + ": " + e.getMessage());
+            }
+        }));
         SwingUtilities.invokeLater(() -> {
-            StudentView view = new StudentView();
-            new StudentController(view);
+            StudentView view = new StudentView(repository.store());
+            new StudentController(view, repository);
             view.setVisible(true);
         });
     }
@@ -1,7 +1,21 @@
+import java.math.BigDecimal;
+import java.util.InputMismatchException;
+import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Main {
-    public static void main(String[] args) {
-        BankAccount account = new BankAccount();
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length > 0 && args[0].equals("--stress")) {
+            int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 2;
+            long operations = args.length > 2 ? Long.parseLong(args[2]) : 20_000_000L;
+            boolean ok = StressTest.run(new BankAccount(), threads, operations)
+                    & StressTest.run(new StripedBankAccount(), threads, operations);
+            System.exit(ok ? 0 : 1);
+        }
+
+        Account account = new BankAccount();
         Scanner scanner = new Scanner(System.in);
 
         while (true) {
@@ -11,48 +25,188 @@ public class Main {
 
             if (choice == 1) {
                 System.out.print("Enter amount to deposit: ");
-                double amount = scanner.nextDouble();
-                account.deposit(amount);
+                long cents = readCents(scanner);
+                report(account.deposit(cents), "Deposited: ", cents);
             } else if (choice == 2) {
                 System.out.print("Enter amount to withdraw: ");
-                double amount = scanner.nextDouble();
-                account.withdraw(amount);
+                long cents = readCents(scanner);
+                report(account.withdraw(cents), "Withdrew: ", cents);
             } else if (choice == 3) {
-                System.out.println("Balance: " + account.getBalance());
+                System.out.println("Balance: " + format(account.getBalanceCents()));
             } else {
                 System.out.println("Exiting...");
                 break;
             }
         }
     }
+
+    // Reads an amount such as 12.34; anything that is not a whole number of cents comes back as -1
+    private static long readCents(Scanner scanner) {
+        try {
+            BigDecimal cents = scanner.nextBigDecimal().movePointRight(2);
+            return cents.stripTrailingZeros().scale() > 0 ? -1 : cents.longValueExact();
+        } catch (InputMismatchException | ArithmeticException e) {
+            scanner.nextLine();
+            return -1;
+        }
+    }
+
+    private static void report(Account.Status status, String done, long cents) {
+        switch (status) {
+            case OK: System.out.println(done + format(cents)); break;
+            case INVALID_AMOUNT: System.out.println("Amount must be positive, in whole cents."); break;
+            case INSUFFICIENT_FUNDS: System.out.println("Insufficient funds."); break;
+            default: System.out.println("The balance limit would be exceeded."); break;
+        }
+    }
+
+    static String format(long cents) {
+        return BigDecimal.valueOf(cents, 2).toPlainString();
+    }
+}
+
+/**
+ * A balance held in whole cents that any number of threads may deposit to and withdraw
+ * from. Operations report their outcome instead of printing it, so callers decide what, if
+ * anything, to show.
+ */
+interface Account {
+    enum Status { OK, INVALID_AMOUNT, INSUFFICIENT_FUNDS, LIMIT_EXCEEDED }
+
+    Status deposit(long cents);
+
+    // Never takes the balance below zero
+    Status withdraw(long cents);
+
+    long getBalanceCents();
 }
 
-class BankAccount {
-    private double balance;
+/**
+ * The general-purpose account: the balance is one AtomicLong updated with compare-and-set,
+ * so every deposit and withdrawal is atomic without a lock, and a withdrawal checks and
+ * debits the same balance it read.
+ */
+class BankAccount implements Account {
+    private final AtomicLong balance = new AtomicLong();
 
-    public void deposit(double amount) {
-        if (amount <= 0) {
-            System.out.println("Deposit must be positive.");
-            return;
+    @Override
+    public Status deposit(long cents) {
+        if (cents <= 0) return Status.INVALID_AMOUNT;
+        while (true) {
+            long current = balance.get();
+            if (current > Long.MAX_VALUE - cents) return Status.LIMIT_EXCEEDED;
+            if (balance.compareAndSet(current, current + cents)) return Status.OK;
         }
-        balance += amount;
-        System.out.println("Deposited: " + amount);
     }
 
-    public void withdraw(double amount) {
-        if (amount <= 0) {
-            System.out.println("Withdrawal must be positive.");
-            return;
+    @Override
+    public Status withdraw(long cents) {
+        if (cents <= 0) return Status.INVALID_AMOUNT;
+        while (true) {
+            long current = balance.get();
+            if (current < cents) return Status.INSUFFICIENT_FUNDS;
+            if (balance.compareAndSet(current, current - cents)) return Status.OK;
         }
-        if (amount > balance) {
-            System.out.println("Insufficient funds.");
-            return;
+    }
+
+    @Override
+    public long getBalanceCents() {
+        return balance.get();
+    }
+}
+
+/**
+ * An account for deposit-heavy loads. Deposits go to a LongAdder, which spreads contended
+ * updates over per-thread cells instead of retrying one compare-and-set; withdrawals are
+ * compare-and-set on a separate running total. Cells only ever grow, so the deposit sum a
+ * withdrawal reads is never more than what has really been deposited and the balance
+ * cannot go negative; at worst a withdrawal racing a deposit is refused as though it came
+ * first. Reading the balance costs a pass over the cells. Totals must stay within a long.
+ */
+class StripedBankAccount implements Account {
+    private final LongAdder deposited = new LongAdder();
+    private final AtomicLong withdrawn = new AtomicLong();
+
+    @Override
+    public Status deposit(long cents) {
+        if (cents <= 0) return Status.INVALID_AMOUNT;
+        deposited.add(cents);
+        return Status.OK;
+    }
+
+    @Override
+    public Status withdraw(long cents) {
+        if (cents <= 0) return Status.INVALID_AMOUNT;
+        while (true) {
+            long taken = withdrawn.get();
+            if (deposited.sum() - taken < cents) return Status.INSUFFICIENT_FUNDS;
+            if (withdrawn.compareAndSet(taken, taken + cents)) return Status.OK;
         }
-        balance -= amount;
-        System.out.println("Withdrew: " + amount);
     }
 
-    public double getBalance() {
-        return balance;
+    @Override
+    public long getBalanceCents() {
+        // Read withdrawals first so a concurrent withdrawal can only make the result too high, never negative
+        long taken = withdrawn.get();
+        return deposited.sum() - taken;
+    }
+}
+
+/**
+ * Hammers one account from many threads with a deposit-heavy mix (nine deposits to each
+ * withdrawal) and checks that the final balance equals the opening balance plus every
+ * deposit and minus every withdrawal the account accepted, i.e. that no update was lost.
+ * Each thread keeps its own tallies and prints nothing until the end.
+ */
+class StressTest {
+    private static final long OPENING_CENTS = 1_000_000;
+
+    static boolean run(Account account, int threads, long operations) throws InterruptedException {
+        account.deposit(OPENING_CENTS);
+        long perThread = operations / threads;
+        long[] deposits = new long[threads];
+        long[] withdrawals = new long[threads];
+        long[] refused = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int worker = t;
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long deposited = 0;
+                long withdrawn = 0;
+                long declined = 0;
+                for (long i = 0; i < perThread; i++) {
+                    long cents = 1 + random.nextInt(100);
+                    if (random.nextInt(10) != 0) {
+                        if (account.deposit(cents) == Account.Status.OK) deposited += cents;
+                    } else if (account.withdraw(cents * 9) == Account.Status.OK) {
+                        withdrawn += cents * 9;
+                    } else {
+                        declined++;
+                    }
+                }
+                deposits[worker] = deposited;
+                withdrawals[worker] = withdrawn;
+                refused[worker] = declined;
+            }, "stress-" + t);
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) worker.start();
+        for (Thread worker : workers) worker.join();
+        long elapsed = System.nanoTime() - start;
+
+        long expected = OPENING_CENTS;
+        long declined = 0;
+        for (int t = 0; t < threads; t++) {
+            expected += deposits[t] - withdrawals[t];
+            declined += refused[t];
+        }
+        long actual = account.getBalanceCents();
+        long total = perThread * threads;
+        System.out.printf("%s: %,d operations on %d threads in %.2f s (%,.0f ops/s), %,d withdrawals refused%n",
+                account.getClass().getSimpleName(), total, threads, elapsed / 1e9, total / (elapsed / 1e9), declined);
+        System.out.printf("  balance %s, expected %s: %s%n", Main.format(actual), Main.format(expected),
+                actual == expected && actual >= 0 ? "OK" : "LOST UPDATES");
+        return actual == expected && actual >= 0;
     }
 }